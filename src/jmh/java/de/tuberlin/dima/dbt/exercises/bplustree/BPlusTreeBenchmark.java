@@ -0,0 +1,236 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of the single-key operations of {BPlusTree}.
+ * <p>
+ * The tree holds the even keys {0, 2, .., 2 * (size - 1)}. Lookups and
+ * deletes draw their keys from these, inserts use the odd keys in between.
+ * Inserts and deletes run in batches of {BATCH} distinct keys that are
+ * undone outside of the measurement, so every insert adds a new key, every
+ * delete removes an existing one and the tree keeps its original size.
+ * Repeated positions of the key stream are skipped while drawing a batch.
+ * Larger trees need a larger heap, e.g.
+ * {java -Xmx16g -jar target/benchmarks.jar -p size=100000000}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BPlusTreeBenchmark {
+
+    /**
+     * Keys per insert or delete batch, a tenth of the smallest tree, so that
+     * even the Zipfian stream quickly yields a batch of distinct keys.
+     */
+    static final int BATCH = 100;
+
+    private static final int STREAM_LENGTH = 1 << 20;
+
+    private static final String VALUE = "value";
+
+    @State(Scope.Thread)
+    public static class Tree {
+
+        @Param({"4", "16", "64", "512"})
+        int capacity;
+
+        @Param({"1000", "1000000"})
+        int size;
+
+        @Param({"SEQUENTIAL", "UNIFORM", "ZIPFIAN"})
+        KeyDistribution distribution;
+
+        BPlusTree tree;
+
+        /**
+         * Pre-generated positions in {0 .. size - 1} and operations of the
+         * mixed workload, consumed cyclically.
+         */
+        private int[] positions;
+
+        private byte[] operations;
+
+        private int next;
+
+        private BitSet drawn;
+
+        @Setup(Level.Trial)
+        public void build() {
+            int[] keys = new int[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = 2 * i;
+            }
+            String[] values = new String[size];
+            Arrays.fill(values, VALUE);
+            // About the fill of a tree built by random inserts
+            tree = BPlusTree.bulkLoad(keys, values, 0.7, capacity);
+
+            drawn = new BitSet(size);
+            Random random = new Random(42);
+            positions = distribution.generate(size, STREAM_LENGTH, random);
+            operations = new byte[STREAM_LENGTH];
+            for (int i = 0; i < STREAM_LENGTH; i++) {
+                int percent = random.nextInt(100);
+                operations[i] = (byte) (percent < 80 ? 0 : percent < 90 ? 1 : 2);
+            }
+        }
+
+        int nextPosition() {
+            int position = positions[next];
+            next = (next + 1) & (STREAM_LENGTH - 1);
+            return position;
+        }
+
+        /**
+         * Fill the array with the next positions of the stream, skipping
+         * those already drawn into it, so that each is a different key.
+         */
+        void nextDistinctPositions(int[] result) {
+            for (int i = 0; i < result.length; ) {
+                int position = nextPosition();
+                if (!drawn.get(position)) {
+                    drawn.set(position);
+                    result[i++] = position;
+                }
+            }
+            for (int position : result) {
+                drawn.clear(position);
+            }
+        }
+
+        byte operation() {
+            return operations[next];
+        }
+
+    }
+
+    /**
+     * The odd keys inserted by one invocation, deleted again afterwards.
+     */
+    @State(Scope.Thread)
+    public static class InsertBatch {
+
+        final int[] keys = new int[BATCH];
+
+        @Setup(Level.Invocation)
+        public void draw(Tree state) {
+            state.nextDistinctPositions(keys);
+            for (int i = 0; i < BATCH; i++) {
+                keys[i] = 2 * keys[i] + 1;
+            }
+        }
+
+        @TearDown(Level.Invocation)
+        public void undo(Tree state) {
+            for (int key : keys) {
+                state.tree.delete(key);
+            }
+        }
+
+    }
+
+    /**
+     * The even keys deleted by one invocation, inserted again afterwards.
+     */
+    @State(Scope.Thread)
+    public static class DeleteBatch {
+
+        final int[] keys = new int[BATCH];
+
+        @Setup(Level.Invocation)
+        public void draw(Tree state) {
+            state.nextDistinctPositions(keys);
+            for (int i = 0; i < BATCH; i++) {
+                keys[i] = 2 * keys[i];
+            }
+        }
+
+        @TearDown(Level.Invocation)
+        public void undo(Tree state) {
+            for (int key : keys) {
+                state.tree.insert(key, VALUE);
+            }
+        }
+
+    }
+
+    @Benchmark
+    public String lookup(Tree state) {
+        return state.tree.lookup(2 * state.nextPosition());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void insert(Tree state, InsertBatch batch) {
+        for (int key : batch.keys) {
+            state.tree.insert(key, VALUE);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void delete(Tree state, DeleteBatch batch, Blackhole blackhole) {
+        for (int key : batch.keys) {
+            blackhole.consume(state.tree.delete(key));
+        }
+    }
+
+    /**
+     * 80% lookups of existing keys, 10% inserts and 10% deletes of odd keys.
+     * Inserts and deletes draw from the same keys, so the size of the tree
+     * stays about the same. Unlike in {insert} and {delete}, keys repeat: an
+     * insert of a key that is already present replaces its value and a
+     * delete of a missing key finds nothing.
+     */
+    @Benchmark
+    public String mixed(Tree state) {
+        byte operation = state.operation();
+        int position = state.nextPosition();
+        switch (operation) {
+            case 0:
+                return state.tree.lookup(2 * position);
+            case 1:
+                state.tree.insert(2 * position + 1, VALUE);
+                return null;
+            default:
+                return state.tree.delete(2 * position + 1);
+        }
+    }
+
+    /**
+     * Scan of 100 consecutive entries.
+     */
+    @Benchmark
+    public int scan(Tree state) {
+        int from = 2 * state.nextPosition();
+        RangeCursor cursor = state.tree.scan(from, from + 200);
+        int sum = 0;
+        while (cursor.advance()) {
+            sum += cursor.key();
+        }
+        return sum;
+    }
+
+}
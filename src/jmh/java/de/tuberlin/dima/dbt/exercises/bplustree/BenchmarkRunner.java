@@ -0,0 +1,25 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import org.openjdk.jmh.Main;
+
+import java.util.Arrays;
+
+/**
+ * Entry point of {benchmarks.jar}. Accepts the usual JMH options and always
+ * adds the GC profiler, so every result includes the allocation rate.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        if (Arrays.asList(args).contains("gc")) {
+            Main.main(args);
+            return;
+        }
+        String[] withProfiler = new String[args.length + 2];
+        withProfiler[0] = "-prof";
+        withProfiler[1] = "gc";
+        System.arraycopy(args, 0, withProfiler, 2, args.length);
+        Main.main(withProfiler);
+    }
+
+}
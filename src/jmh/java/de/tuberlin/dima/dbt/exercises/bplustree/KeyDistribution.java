@@ -0,0 +1,80 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.Random;
+
+/**
+ * Order in which the benchmarks access the keys {0 .. size - 1}.
+ */
+public enum KeyDistribution {
+
+    /**
+     * Ascending keys, wrapping around at the end.
+     */
+    SEQUENTIAL {
+        @Override
+        int[] generate(int size, int count, Random random) {
+            int[] keys = new int[count];
+            for (int i = 0; i < count; i++) {
+                keys[i] = i % size;
+            }
+            return keys;
+        }
+    },
+
+    /**
+     * Every key is equally likely.
+     */
+    UNIFORM {
+        @Override
+        int[] generate(int size, int count, Random random) {
+            int[] keys = new int[count];
+            for (int i = 0; i < count; i++) {
+                keys[i] = random.nextInt(size);
+            }
+            return keys;
+        }
+    },
+
+    /**
+     * Zipfian distribution with exponent 0.99 as in YCSB: the most frequent
+     * keys make up most of the accesses. The ranks are scattered over the
+     * key space, so hot keys do not share a leaf.
+     */
+    ZIPFIAN {
+        @Override
+        int[] generate(int size, int count, Random random) {
+            double theta = 0.99;
+            double zetaN = 0;
+            for (int i = 1; i <= size; i++) {
+                zetaN += 1 / Math.pow(i, theta);
+            }
+            double zeta2 = 1 + 1 / Math.pow(2, theta);
+            double alpha = 1 / (1 - theta);
+            double eta = (1 - Math.pow(2.0 / size, 1 - theta)) / (1 - zeta2 / zetaN);
+            int[] keys = new int[count];
+            for (int i = 0; i < count; i++) {
+                double u = random.nextDouble();
+                double uz = u * zetaN;
+                long rank;
+                if (uz < 1) {
+                    rank = 0;
+                } else if (uz < zeta2) {
+                    rank = 1;
+                } else {
+                    rank = Math.min(size - 1, (long) (size * Math.pow(eta * u - eta + 1, alpha)));
+                }
+                keys[i] = (int) Long.remainderUnsigned(rank * 0x9E3779B97F4A7C15L, size);
+            }
+            return keys;
+        }
+    };
+
+    /**
+     * Draw a sequence of keys.
+     *
+     * @param size  Number of distinct keys.
+     * @param count Length of the sequence.
+     */
+    abstract int[] generate(int size, int count, Random random);
+
+}
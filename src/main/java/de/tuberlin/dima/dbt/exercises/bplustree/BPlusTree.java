@@ -1,9 +1,15 @@
 package de.tuberlin.dima.dbt.exercises.bplustree;
 
-import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.Deque;
-import java.util.LinkedList;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Implementation of a B+ tree.
@@ -11,11 +17,25 @@ import java.util.LinkedList;
  * The capacity of the tree is given by the capacity argument to the
  * constructor. Each node has at least {capacity/2} and at most {capacity} many
  * keys. The values are strings and are stored at the leaves of the tree.
+ * The exception are the nodes along the right edge while keys are appended in
+ * ascending order: they are split unevenly, so they may hold fewer keys.
+ * <p>
+ * Keys are stored as primitive ints in a fixed-size array per node, of which
+ * only the first {node.getSize()} entries are occupied. Inserting an existing
+ * key replaces its value.
+ * <p>
+ * Each inner node also keeps the number of entries below each of its
+ * children, which answers {rank}, {select} and {countRange} with a single
+ * descent.
+ * <p>
+ * {snapshot()} returns a read-only view that modifications do not affect:
+ * while snapshots are open, nodes are copied along the path from the root
+ * before they are modified.
  * <p>
  * For each inner node, the following conditions hold:
  * <p>
  * {pre}
- * Integer[] keys = innerNode.getKeys();
+ * int[] keys = innerNode.getKeys();
  * Node[] children = innerNode.getChildren();
  * {pre}
  * <p>
@@ -28,404 +48,1598 @@ public class BPlusTree {
     ///// Implement these methods
 
 
-    private LeafNode findLeafNode(Integer key, Node node, Deque<InnerNode> parents) {
-        if (node instanceof LeafNode) {
-            return (LeafNode) node;
-        } else {
+    private LeafNode findLeafNode(int key, Node node, Path path) {
+        if (path != null) {
+            path.clear();
+        }
+        int visited = 1;
+        while (node instanceof InnerNode) {
             InnerNode innerNode = (InnerNode) node;
-            if (parents != null) {
-                parents.push(innerNode);
-            }
-            int index = 0;
-            while (index < innerNode.getKeys().length && (innerNode.getKeys()[index] == null || key > innerNode.getKeys()[index])) {
-                if (innerNode.getKeys()[index] != null) {
-                    index++;
-                } else {
-                    break; // Break out of the loop when encountering a null value
-                }
+            int index = innerNode.childIndex(key);
+            if (path != null) {
+                path.push(innerNode, index);
             }
+            node = innerNode.getChildren()[index];
+            visited++;
+        }
+        if (metrics != null) {
+            metrics.descent(visited);
+        }
+        return (LeafNode) node;
+    }
 
+    /**
+     * Descend to the leaf for the given key in order to modify it. While
+     * snapshots are open, the nodes on the path that may be shared with them
+     * are copied on the way down.
+     */
+    private LeafNode findLeafNodeForUpdate(int key) {
+        beginUpdate();
+        path.clear();
+        Node node = root;
+        int visited = 1;
+        while (node instanceof InnerNode) {
+            InnerNode innerNode = (InnerNode) node;
+            int index = innerNode.childIndex(key);
+            path.push(innerNode, index);
+            node = writableChild(innerNode, index);
+            visited++;
+        }
+        if (metrics != null) {
+            metrics.descent(visited);
+        }
+        return (LeafNode) node;
+    }
 
+    /**
+     * Descend along the right edge of the tree to the rightmost leaf, without
+     * comparing keys, for a key that is appended behind all others.
+     *
+     * @return The rightmost leaf, or {null} if the key does not go behind its
+     * last entry.
+     */
+    private LeafNode findRightmostLeafForAppend(int key) {
+        beginUpdate();
+        path.clear();
+        Node node = root;
+        int visited = 1;
+        while (node instanceof InnerNode) {
+            InnerNode innerNode = (InnerNode) node;
+            path.push(innerNode, innerNode.getSize());
+            node = writableChild(innerNode, innerNode.getSize());
+            visited++;
+        }
+        if (node.getSize() == 0 || key <= ((LeafNode) node).key(node.getSize() - 1)) {
+            return null;
+        }
+        if (metrics != null) {
+            metrics.descent(visited);
+        }
+        return (LeafNode) node;
+    }
 
+    /**
+     * Whether the recent inserts had ascending keys.
+     */
+    private boolean appending() {
+        return ascendingInserts >= APPEND_RUN;
+    }
 
-            return findLeafNode(key, innerNode.getChildren()[index], parents);
+    /**
+     * Start a modification: decide whether nodes of older generations have
+     * to be copied and make the root writable.
+     */
+    private void beginUpdate() {
+        copyOnWrite = liveSnapshots.get() > 0;
+        if (copyOnWrite && root.generation != generation) {
+            root = copyNode(root);
         }
     }
 
-    private String lookupInLeafNode(Integer key, LeafNode node) {
-        int index = 0;
-        while (index < node.getKeys().length && key > node.getKeys()[index]) {
-            index++;
+    /**
+     * The child at the given index, replaced by a copy first if it may be
+     * shared with a snapshot. The parent must be writable itself.
+     */
+    private Node writableChild(InnerNode parent, int index) {
+        Node child = parent.getChildren()[index];
+        if (copyOnWrite && child.generation != generation) {
+            child = copyNode(child);
+            parent.getChildren()[index] = child;
+        }
+        return child;
+    }
+
+    private Node copyNode(Node node) {
+        if (node instanceof InnerNode) {
+            return own(((InnerNode) node).copy());
+        }
+        // The copy takes the place of the original in the sibling chain,
+        // which only ever belongs to the current version of the tree
+        LeafNode leaf = (LeafNode) node;
+        LeafNode copy = own(leaf.copy());
+        copy.setPrevious(leaf.getPrevious());
+        copy.setNext(leaf.getNext());
+        if (leaf.getPrevious() != null) {
+            leaf.getPrevious().setNext(copy);
+        }
+        if (leaf.getNext() != null) {
+            leaf.getNext().setPrevious(copy);
+        }
+        return copy;
+    }
+
+    private <T extends Node> T own(T node) {
+        node.generation = generation;
+        return node;
+    }
+
+    /**
+     * Add the given number of entries to the subtree counts of the nodes on
+     * the first {levels} levels of the path. Levels whose children are split
+     * or merged afterwards recount them anyway.
+     */
+    private void adjustCounts(int levels, long delta) {
+        for (int level = 0; level < levels; level++) {
+            path.node(level).getCounts()[path.index(level)] += delta;
         }
+    }
 
-        if (index < node.getKeys().length && key.equals(node.getKeys()[index])) {
-            return node.getValues()[index];
+    private String lookupInLeafNode(int key, LeafNode node) {
+        int index = node.search(key);
+        if (index >= 0) {
+            return node.value(index);
         } else {
             return null; // Key not found
         }
     }
-    private void insertIntoLeafNode(Integer key, String value, LeafNode node, Deque<InnerNode> parents) {
+
+    private void insertIntoLeafNode(int key, String value, LeafNode node) {
+        int index = node.search(key);
+
+        // Replace the value of an existing key
+        if (index >= 0) {
+            node.setValue(index, value);
+            return;
+        }
+        index = -index - 1;
+        adjustCounts(path.depth(), 1);
 
         // Check if the leaf node overflows
-        if (countNonNullKeys(node.getKeys()) >= capacity) {
+        if (node.getSize() >= capacity) {
             // Leaf node is full, handle leaf node overflow
-            handleLeafNodeOverflow(node, parents, key, value);
+            handleLeafNodeOverflow(node, path.depth() - 1, index, key, value);
+        } else {
+            node.insertEntry(index, key, value);
         }
-        else {
-            // Find the index to insert the key in the sorted order
-            int index = 0;
-            while (index < node.getKeys().length && key > node.getKeys()[index]) {
-                index++;
-            }
+    }
 
-            // Shift elements to make space for the new key-value pair
-            for (int i = node.getKeys().length - 1; i > index; i--) {
-                node.getKeys()[i] = node.getKeys()[i - 1];
-                node.getValues()[i] = node.getValues()[i - 1];
-            }
+    private void handleLeafNodeOverflow(LeafNode node, int level, int index, int key, String value) {
+        // Split it in half at the median, the left half keeps capacity/2 entries
+        int medianIndex = (capacity + 1) / 2;
+        // While keys are appended, the rightmost leaf keeps most entries,
+        // since no key will go into it after the split anymore
+        appendSplit = appending() && index == capacity && node.getNext() == null;
+        if (appendSplit) {
+            medianIndex = capacity + 1 - Math.max(1, (capacity + 1) / 10);
+        }
+        LeafNode rightNode = own(newLeafNode());
+
+        // Move the upper half to the new right node and insert the new
+        // key-value pair into whichever half it belongs to
+        if (index < medianIndex) {
+            node.moveEntriesTo(rightNode, medianIndex - 1);
+            node.insertEntry(index, key, value);
+        } else {
+            node.moveEntriesTo(rightNode, medianIndex);
+            rightNode.insertEntry(index - medianIndex, key, value);
+        }
+        node.linkNext(rightNode);
+        if (metrics != null) {
+            metrics.leafSplit(node, rightNode);
+        }
+
+        // The first key of the right node separates the two halves in the parent
+        int medianKey = rightNode.key(0);
+
+        insertIntoParent(node, medianKey, rightNode, level);
+        appendSplit = false;
+    }
 
-            // Insert the new key-value pair
-            node.getKeys()[index] = key;
-            node.getValues()[index] = value;
+    /**
+     * Insert the separator and the new right child into the parent at the
+     * given level of the path, which already references the left child.
+     */
+    private void insertIntoParent(Node leftChild, int medianKey, Node rightChild, int level) {
+        // If the parent is null, create a new root
+        if (level < 0) {
+            root = own(new InnerNode(new int[]{medianKey}, new Node[]{leftChild, rightChild}, capacity));
+        } else {
+            // Insert the median key into the parent and handle parent overflow recursively
+            insertMedianIntoParent(medianKey, rightChild, level);
         }
+    }
+
+    private void insertMedianIntoParent(int medianKey, Node rightChild, int level) {
+        // The new key and right child go directly behind the left child
+        InnerNode parent = path.node(level);
+        int index = path.index(level);
 
+        // Check if the parent overflows and handle accordingly
+        if (parent.getSize() >= capacity) {
+            // Parent is full, handle parent overflow recursively
+            handleInnerNodeOverflow(parent, level, index, medianKey, rightChild);
+        } else {
+            parent.insertEntry(index, medianKey, rightChild);
+        }
     }
 
-    private void handleLeafNodeOverflow(LeafNode node, Deque<InnerNode> parents, int key, String value) {
-        // Split it in half at the median
-        int medianIndex = node.getKeys().length / 2;
+    private void handleInnerNodeOverflow(InnerNode node, int level, int index, int key, Node rightChild) {
+        // Collect all capacity + 1 keys and capacity + 2 children in the
+        // split buffers
+        int[] tempKeys = splitKeys;
+        Node[] tempChildren = splitChildren;
+        long[] tempCounts = splitCounts;
+        System.arraycopy(node.getKeys(), 0, tempKeys, 0, index);
+        System.arraycopy(node.getChildren(), 0, tempChildren, 0, index + 1);
+        System.arraycopy(node.getCounts(), 0, tempCounts, 0, index);
+        tempKeys[index] = key;
+        tempChildren[index + 1] = rightChild;
+        System.arraycopy(node.getKeys(), index, tempKeys, index + 1, capacity - index);
+        System.arraycopy(node.getChildren(), index + 1, tempChildren, index + 2, capacity - index);
+        System.arraycopy(node.getCounts(), index + 1, tempCounts, index + 2, capacity - index);
+        // The child at the index was just split into itself and the new one
+        tempCounts[index] = InnerNode.count(tempChildren[index]);
+        tempCounts[index + 1] = InnerNode.count(rightChild);
+
+        // Split it in half at the median, the median key moves to the parent.
+        // An append split of the last child continues up the right edge.
+        int medianIndex = capacity / 2;
+        if (appendSplit && index == capacity) {
+            medianIndex = capacity - Math.max(1, capacity / 10);
+        }
+        int medianKey = tempKeys[medianIndex];
+        if (metrics != null) {
+            metrics.innerSplit(medianKey);
+        }
+
+        // Move the right half into a new InnerNode
+        InnerNode rightNode = own(new InnerNode(capacity));
+        System.arraycopy(tempKeys, medianIndex + 1, rightNode.getKeys(), 0, capacity - medianIndex);
+        System.arraycopy(tempChildren, medianIndex + 1, rightNode.getChildren(), 0, capacity - medianIndex + 1);
+        System.arraycopy(tempCounts, medianIndex + 1, rightNode.getCounts(), 0, capacity - medianIndex + 1);
+        rightNode.setSize(capacity - medianIndex);
+
+        // Update the current inner node to keep only the left half
+        System.arraycopy(tempKeys, 0, node.getKeys(), 0, medianIndex);
+        System.arraycopy(tempChildren, 0, node.getChildren(), 0, medianIndex + 1);
+        System.arraycopy(tempCounts, 0, node.getCounts(), 0, medianIndex + 1);
+        Arrays.fill(node.getChildren(), medianIndex + 1, capacity + 1, null);
+        Arrays.fill(node.getCounts(), medianIndex + 1, capacity + 1, 0);
+        node.setSize(medianIndex);
+        moveMessages(node, rightNode, medianKey, Long.MAX_VALUE);
+
+        // Do not keep removed nodes reachable through the buffer
+        Arrays.fill(tempChildren, null);
+
+        insertIntoParent(node, medianKey, rightNode, level - 1);
+    }
 
-// Create a temporary array to hold all keys including the new one
-        Integer[] tempArray = new Integer[capacity + 1];
-        System.arraycopy(node.getKeys(), 0, tempArray, 0, node.getKeys().length);
-        tempArray[tempArray.length - 1] = key;
-        Arrays.sort(tempArray);
+    private String deleteFromLeafNode(int key, LeafNode node) {
+        // Find the index of the key in the leaf node
+        int index = node.search(key);
+        if (index < 0) {
+            return null; // Key not found
+        }
 
-// Create a temporary array to hold all values including the new one
-        String[] tempValues = new String[capacity + 1];
-        System.arraycopy(node.getValues(), 0, tempValues, 0, node.getValues().length);
-        tempValues[tempValues.length - 1] = value;
+        // Delete and return the corresponding value
+        String deletedValue = node.value(index);
+        node.removeEntry(index);
+        adjustCounts(path.depth(), -1);
+        if (metrics != null) {
+            metrics.deleted(node);
+        }
 
-// Create a new LeafNode for the right half
-        LeafNode rightNode = new LeafNode(
-                Arrays.copyOfRange(tempArray, medianIndex, tempArray.length),
-                Arrays.copyOfRange(tempValues, medianIndex, tempValues.length),
-                capacity
-        );
+        handleLeafNodeUnderflow(node, path.depth() - 1);
+        return deletedValue;
+    }
 
-        System.out.println(Arrays.toString(rightNode.getKeys()));
-        // Update the current leaf node to keep only the left half
-        node.setKeys(Arrays.copyOfRange(node.getKeys(), 0, medianIndex));
-        node.setValues(Arrays.copyOfRange(node.getValues(), 0, medianIndex));
-        System.out.println(Arrays.toString(node.getKeys()));
-        // Calculate the median key (middle key moved to the parent)
-        Integer medianKey = tempArray[medianIndex];
+    private void handleLeafNodeUnderflow(LeafNode node, int level) {
+        // Check if the leaf node is underflowing (has fewer elements than
+        // capacity/2), the root is allowed to underflow
+        if (node.getSize() >= capacity / 2 || level < 0) {
+            return;
+        }
 
-        // If the parent is null, create a new root
-        if (parents.isEmpty()) {
-            root = new InnerNode(new Integer[]{medianKey}, new Node[]{node, rightNode}, capacity);
+        InnerNode parent = path.node(level);
+        int index = path.index(level);
+        LeafNode left = index > 0 ? (LeafNode) parent.getChildren()[index - 1] : null;
+        LeafNode right = index < parent.getSize() ? (LeafNode) parent.getChildren()[index + 1] : null;
+
+        // Try borrowing from the left sibling, then from the right sibling
+        if (left != null && left.getSize() > capacity / 2) {
+            left = (LeafNode) writableChild(parent, index - 1);
+            borrowKeyValueFromSibling(index, parent, node, left, true);
+        } else if (right != null && right.getSize() > capacity / 2) {
+            right = (LeafNode) writableChild(parent, index + 1);
+            borrowKeyValueFromSibling(index, parent, node, right, false);
         } else {
-            // Insert the median key into the parent and handle parent overflow recursively
-            InnerNode parent = parents.pop();
-            insertMedianIntoParent(medianKey, node, rightNode, parent, parents);
+            // Merge with the left or right sibling if borrowing fails
+            if (left != null) {
+                left = (LeafNode) writableChild(parent, index - 1);
+                mergeWithSibling(index, parent, node, left, true);
+            } else {
+                right = (LeafNode) writableChild(parent, index + 1);
+                mergeWithSibling(index, parent, node, right, false);
+            }
+            handleInnerNodeUnderflow(parent, level - 1);
         }
     }
 
-    private void insertMedianIntoParent(Integer medianKey, Node leftChild, Node rightChild, InnerNode parent, Deque<InnerNode> parents) {
-        // Find the index to insert the median key in the sorted order
-        int index = 0;
-        while (index < parent.getKeys().length && (medianKey == null || medianKey > parent.getKeys()[index] || parent.getKeys()[index] == null)) {
-            index++;
+    private void borrowKeyValueFromSibling(int index, InnerNode parent, LeafNode node, LeafNode sibling, boolean borrowFromLeft) {
+        if (borrowFromLeft) {
+            // Move the last entry of the left sibling to the front of the node
+            int borrowIndex = sibling.getSize() - 1;
+            node.insertEntry(0, sibling.key(borrowIndex), sibling.value(borrowIndex));
+            sibling.removeEntry(borrowIndex);
+            parent.getKeys()[index - 1] = node.key(0);
+            parent.getCounts()[index - 1]--;
+        } else {
+            // Move the first entry of the right sibling to the end of the node
+            node.insertEntry(node.getSize(), sibling.key(0), sibling.value(0));
+            sibling.removeEntry(0);
+            parent.getKeys()[index] = sibling.key(0);
+            parent.getCounts()[index + 1]--;
+        }
+        parent.getCounts()[index]++;
+        if (metrics != null) {
+            metrics.leafBorrow(parent.getKeys()[borrowFromLeft ? index - 1 : index]);
         }
+    }
 
-        // Shift elements to make space for the new key
-        for (int i = parent.getKeys().length - 1; i > index; i--) {
-            parent.getKeys()[i] = parent.getKeys()[i - 1];
-            parent.getChildren()[i + 1] = parent.getChildren()[i];
+    private void mergeWithSibling(int index, InnerNode parent, LeafNode node, LeafNode sibling, boolean mergeWithLeft) {
+        // Always merge the right node into the left one and drop the right
+        // node together with the key separating the two
+        if (metrics != null) {
+            metrics.leafMerge(parent.getKeys()[mergeWithLeft ? index - 1 : index]);
+        }
+        if (mergeWithLeft) {
+            node.moveEntriesTo(sibling, 0);
+            node.unlink();
+            parent.removeEntry(index - 1);
+        } else {
+            sibling.moveEntriesTo(node, 0);
+            sibling.unlink();
+            parent.removeEntry(index);
         }
+    }
 
-        // Insert the median key and update children references
-        parent.getKeys()[index] = medianKey;
-        parent.getChildren()[index + 1] = rightChild;
-        parent.getChildren()[index] = leftChild;
+    private void handleInnerNodeUnderflow(InnerNode node, int level) {
+        if (level < 0) {
+            // An empty root is replaced by its only child
+            if (node.getSize() == 0) {
+                collapseRoot();
+            }
+            return;
+        }
+        if (node.getSize() >= capacity / 2) {
+            return;
+        }
 
-        // Check if the parent overflows and handle accordingly
-        if (countNonNullKeys(parent.getKeys()) >= capacity) {
-            // Parent is full, handle parent overflow recursively
-            InnerNode grandParent = parents.isEmpty() ? null : parents.pop();
-            handleInnerNodeOverflow(parent, grandParent, parents);
+        InnerNode parent = path.node(level);
+        int index = path.index(level);
+        InnerNode left = index > 0 ? (InnerNode) parent.getChildren()[index - 1] : null;
+        InnerNode right = index < parent.getSize() ? (InnerNode) parent.getChildren()[index + 1] : null;
+
+        if (left != null && left.getSize() > capacity / 2) {
+            // Rotate the last child of the left sibling through the parent
+            left = (InnerNode) writableChild(parent, index - 1);
+            int separator = parent.getKeys()[index - 1];
+            Node child = left.getChildren()[left.getSize()];
+            long childCount = left.getCounts()[left.getSize()];
+            parent.getKeys()[index - 1] = left.getKeys()[left.getSize() - 1];
+            left.removeEntry(left.getSize() - 1);
+            moveMessages(left, node, parent.getKeys()[index - 1], Long.MAX_VALUE);
+            node.insertEntry(0, separator, node.getChildren()[0]);
+            node.getChildren()[0] = child;
+            node.getCounts()[0] = childCount;
+            parent.getCounts()[index - 1] -= childCount;
+            parent.getCounts()[index] += childCount;
+            if (metrics != null) {
+                metrics.innerBorrow(parent.getKeys()[index - 1]);
+            }
+        } else if (right != null && right.getSize() > capacity / 2) {
+            // Rotate the first child of the right sibling through the parent
+            right = (InnerNode) writableChild(parent, index + 1);
+            int separator = parent.getKeys()[index];
+            Node child = right.getChildren()[0];
+            long childCount = right.getCounts()[0];
+            parent.getKeys()[index] = right.getKeys()[0];
+            right.getChildren()[0] = right.getChildren()[1];
+            right.removeEntry(0);
+            moveMessages(right, node, Long.MIN_VALUE, parent.getKeys()[index]);
+            node.insertEntry(node.getSize(), separator, child);
+            parent.getCounts()[index] += childCount;
+            parent.getCounts()[index + 1] -= childCount;
+            if (metrics != null) {
+                metrics.innerBorrow(parent.getKeys()[index]);
+            }
+        } else {
+            // Merge the right node and the separating key into the left one,
+            // the right node is only read
+            if (left != null) {
+                left = (InnerNode) writableChild(parent, index - 1);
+                mergeInnerNodes(left, parent, index - 1, node);
+            } else {
+                mergeInnerNodes(node, parent, index, right);
+            }
+            handleInnerNodeUnderflow(parent, level - 1);
         }
     }
 
+    private void mergeInnerNodes(InnerNode left, InnerNode parent, int separatorIndex, InnerNode right) {
+        int[] keys = left.getKeys();
+        Node[] children = left.getChildren();
+        int size = left.getSize();
+        keys[size] = parent.getKeys()[separatorIndex];
+        if (metrics != null) {
+            metrics.innerMerge(keys[size]);
+        }
+        System.arraycopy(right.getKeys(), 0, keys, size + 1, right.getSize());
+        System.arraycopy(right.getChildren(), 0, children, size + 1, right.getSize() + 1);
+        System.arraycopy(right.getCounts(), 0, left.getCounts(), size + 1, right.getSize() + 1);
+        left.setSize(size + 1 + right.getSize());
+        moveMessages(right, left, Long.MIN_VALUE, Long.MAX_VALUE);
+        parent.removeEntry(separatorIndex);
+    }
 
-    private void handleInnerNodeOverflow(InnerNode node, InnerNode parent, Deque<InnerNode> parents) {
-        // Split it in half at the median
-        int medianIndex = node.getKeys().length / 2;
+    private static void link(LeafNode left, LeafNode right) {
+        if (left != null) {
+            left.setNext(right);
+        }
+        if (right != null) {
+            right.setPrevious(left);
+        }
+    }
 
-        // Create a new InnerNode for the right half
-        InnerNode rightNode = new InnerNode(Arrays.copyOfRange(node.getKeys(), medianIndex + 1, node.getKeys().length),
-                Arrays.copyOfRange(node.getChildren(), medianIndex + 1, node.getChildren().length),
-                capacity);
+    private LeafNode linkLeaves(Node node, LeafNode previous) {
+        if (node instanceof LeafNode) {
+            LeafNode leaf = (LeafNode) node;
+            leaf.setPrevious(previous);
+            leaf.setNext(null);
+            if (previous != null) {
+                previous.setNext(leaf);
+            }
+            return leaf;
+        }
+        InnerNode innerNode = (InnerNode) node;
+        for (int i = 0; i <= innerNode.getSize(); i++) {
+            previous = linkLeaves(innerNode.getChildren()[i], previous);
+        }
+        return previous;
+    }
 
-        // Update the current inner node to keep only the left half
-        node.setKeys(Arrays.copyOfRange(node.getKeys(), 0, medianIndex));
-        node.setChildren(Arrays.copyOfRange(node.getChildren(), 0, medianIndex + 1));
 
-        // Calculate the median key (middle key moved to the parent)
-        Integer medianKey = node.getKeys()[medianIndex];
+    /**
+     * Sort the positions of a batch by key. Each entry holds the key in its
+     * upper and the position in its lower 32 bits, so equal keys keep their
+     * order within the batch.
+     */
+    private static long[] sortBatch(int[] keys) {
+        long[] order = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            order[i] = ((long) keys[i] << 32) | i;
+        }
+        Arrays.sort(order);
+        return order;
+    }
 
-        // If the parent is null, create a new root
-        if (parent == null) {
-            InnerNode newRoot = new InnerNode(new Integer[]{medianKey}, new Node[]{node, rightNode}, capacity);
-            root = newRoot;
-        } else {
-            // Insert the median key into the parent and handle parent overflow recursively
-            insertMedianIntoParent(medianKey, node, rightNode, parent, parents);
+    /**
+     * Exclusive upper bound of the keys that route to the same leaf as the
+     * key of the last descent, taken from its path.
+     */
+    private long upperBound() {
+        // The deepest parent with a separator right of the key gives the
+        // tightest bound
+        for (int level = path.depth() - 1; level >= 0; level--) {
+            InnerNode parent = path.node(level);
+            int index = path.index(level);
+            if (index < parent.getSize()) {
+                return parent.getKeys()[index];
+            }
         }
+        return Long.MAX_VALUE;
     }
 
+    /**
+     * Insert a batch sorted by {sortBatch}, all keys that fall into the same
+     * leaf at once.
+     */
+    private void insertSorted(long[] order, String[] values) {
+        int i = 0;
+        while (i < order.length) {
+            int key = (int) (order[i] >> 32);
+            LeafNode leafNode = findLeafNodeForUpdate(key);
+            long bound = upperBound();
+            int end = i + 1;
+            while (end < order.length && (order[end] >> 32) < bound) {
+                end++;
+            }
+            insertBatchIntoLeafNode(order, i, end, values, leafNode);
+            i = end;
+        }
+    }
 
+    private void insertBatchIntoLeafNode(long[] order, int from, int to, String[] values,
+                                         LeafNode node) {
+        // Merge the sorted batch entries with the entries of the leaf, later
+        // batch entries replace existing values and earlier duplicates
+        int[] mergedKeys = new int[node.getSize() + to - from];
+        String[] mergedValues = new String[mergedKeys.length];
+        int size = 0;
+        int index = 0;
+        for (int i = from; i < to; i++) {
+            int key = (int) (order[i] >> 32);
+            while (index < node.getSize() && node.key(index) < key) {
+                mergedKeys[size] = node.key(index);
+                mergedValues[size++] = node.value(index++);
+            }
+            if (index < node.getSize() && node.key(index) == key) {
+                index++;
+            }
+            if (size > 0 && mergedKeys[size - 1] == key) {
+                mergedValues[size - 1] = values[(int) order[i]];
+            } else {
+                mergedKeys[size] = key;
+                mergedValues[size++] = values[(int) order[i]];
+            }
+        }
+        while (index < node.getSize()) {
+            mergedKeys[size] = node.key(index);
+            mergedValues[size++] = node.value(index++);
+        }
 
+        // Split into as many evenly filled leaves as needed, the current
+        // leaf keeps the first part
+        int leafCount = (size + capacity - 1) / capacity;
+        int offset = 0;
+        LeafNode previous = null;
+        for (int i = 0; i < leafCount; i++) {
+            int leafSize = size / leafCount + (i < size % leafCount ? 1 : 0);
+            if (previous == null) {
+                adjustCounts(path.depth(), leafSize - node.getSize());
+                node.setEntries(mergedKeys, mergedValues, 0, leafSize);
+                previous = node;
+            } else {
+                LeafNode rightNode = own(new LeafNode(
+                        Arrays.copyOfRange(mergedKeys, offset, offset + leafSize),
+                        Arrays.copyOfRange(mergedValues, offset, offset + leafSize),
+                        capacity, valueDictionary, keyCompression));
+                previous.linkNext(rightNode);
+                if (metrics != null) {
+                    metrics.leafSplit(previous, rightNode);
+                }
 
+                // Only the first split can reuse the original descent path
+                if (previous != node) {
+                    findLeafNodeForUpdate(mergedKeys[offset]);
+                }
+                // The parent counts the new leaf when it is inserted
+                adjustCounts(path.depth() - 1, leafSize);
+                insertIntoParent(previous, mergedKeys[offset], rightNode, path.depth() - 1);
+                previous = rightNode;
+            }
+            offset += leafSize;
+        }
+    }
 
+    /**
+     * Delete all entries with {from <= key < to} from the subtree of the
+     * given node, whose keys lie within {lo <= key < hi}. Children covered by
+     * the range entirely are dropped without visiting them, so only the
+     * partially covered nodes along the two boundary paths are modified.
+     * Emptied children are removed, all other nodes may be left underfull.
+     *
+     * @return The number of deleted entries.
+     */
+    private long deleteRangeFromNode(Node node, int from, int to, long lo, long hi) {
+        if (node instanceof LeafNode) {
+            LeafNode leaf = (LeafNode) node;
+            int start = leaf.search(from);
+            start = start >= 0 ? start : -start - 1;
+            int end = leaf.search(to);
+            end = end >= 0 ? end : -end - 1;
+            leaf.removeEntries(start, end);
+            // Only the leaf at the lower end of the range has smaller keys
+            rangeLeaves[lo < from ? 0 : 1] = leaf;
+            return end - start;
+        }
 
+        InnerNode innerNode = (InnerNode) node;
+        int[] keys = innerNode.getKeys();
+        int first = innerNode.childIndex(from);
+        int last = innerNode.childIndex(to - 1);
+        long firstLo = first == 0 ? lo : keys[first - 1];
+        long firstHi = first == innerNode.getSize() ? hi : keys[first];
+        long lastLo = last == 0 ? lo : keys[last - 1];
+        long lastHi = last == innerNode.getSize() ? hi : keys[last];
+        boolean firstPartial = from > firstLo || (first == last && lastHi > to);
+        boolean lastPartial = last != first && lastHi > to;
+
+        // All children between the partially covered ones are dropped
+        long deleted = 0;
+        int dropFrom = firstPartial ? first + 1 : first;
+        int dropTo = lastPartial ? last : last + 1;
+        if (dropFrom < dropTo) {
+            for (int i = dropFrom; i < dropTo; i++) {
+                deleted += innerNode.getCounts()[i];
+            }
+            innerNode.removeChildren(dropFrom, dropTo);
+            last -= dropTo - dropFrom;
+        }
 
+        if (lastPartial) {
+            deleted += deleteRangeFromChild(innerNode, last, from, to, lastLo, lastHi);
+        }
+        if (firstPartial) {
+            deleted += deleteRangeFromChild(innerNode, first, from, to, firstLo, firstHi);
+        }
+        return deleted;
+    }
 
-    private String deleteFromLeafNode(Integer key, LeafNode node, Deque<InnerNode> parents) {
-        // Find the index of the key in the leaf node
-        int index = 0;
-        while (index < node.getKeys().length && key > node.getKeys()[index]) {
-            index++;
-        }
-
-        // If key is found, delete and return the corresponding value
-        if (index < node.getKeys().length && key.equals(node.getKeys()[index])) {
-            String deletedValue = node.getValues()[index];
-
-            // Create a new array excluding the deleted key and values
-            Integer[] newKeys = new Integer[node.getKeys().length - 1];
-            String[] newValues = new String[node.getValues().length - 1];
-
-            int newIndex = 0;
-            for (int i = 0; i < node.getKeys().length; i++) {
-                if (i != index) {
-                    newKeys[newIndex] = node.getKeys()[i];
-                    newValues[newIndex] = node.getValues()[i];
-                    newIndex++;
-                    System.out.println("----- Keys ------");
-                    System.out.println(Arrays.toString(newKeys));
-                    System.out.println("----- Values ------");
-                    System.out.println(Arrays.toString(newValues));
-                    System.out.println("-------------");
+    private long deleteRangeFromChild(InnerNode parent, int index, int from, int to, long lo, long hi) {
+        long deleted = deleteRangeFromNode(writableChild(parent, index), from, to, lo, hi);
+        parent.getCounts()[index] -= deleted;
+        if (parent.getCounts()[index] == 0 && parent.getSize() > 0) {
+            parent.removeChildren(index, index + 1);
+        }
+        return deleted;
+    }
 
+    /**
+     * Restore the minimum fill along the path to the given key after a range
+     * deletion. The lowest underfull node on the path is merged with or
+     * refilled from a sibling, until the path is valid again.
+     */
+    private void rebalancePath(int key) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            Node node = findLeafNodeForUpdate(key);
+            for (int level = path.depth() - 1; level >= 0 && !changed; level--) {
+                InnerNode parent = path.node(level);
+                // A node without siblings is handled once its parent is
+                if (node.getSize() < capacity / 2 && parent.getSize() > 0) {
+                    int index = path.index(level);
+                    rebalanceChildren(parent, index > 0 ? index - 1 : index);
+                    changed = true;
                 }
+                node = parent;
+            }
+            if (root instanceof InnerNode && root.getSize() == 0) {
+                collapseRoot();
+                changed = true;
             }
+        }
+    }
 
-            // Set the node's keys and values to the new array
-            node.setKeys(newKeys);
-            node.setValues(newValues);
-            handleLeafNodeUnderflow(node, parents);
-            moveKeysToLeft(node);
-            return deletedValue;
+    /**
+     * Merge the children at the given index and the one right of it, or
+     * spread their entries evenly if they do not fit into one node. Unlike
+     * borrowing a single entry, this also repairs nodes that lost more than
+     * one entry.
+     */
+    private void rebalanceChildren(InnerNode parent, int index) {
+        Node left = writableChild(parent, index);
+        Node right = writableChild(parent, index + 1);
+        int separator = parent.getKeys()[index];
+        if (left instanceof LeafNode) {
+            LeafNode leftLeaf = (LeafNode) left;
+            LeafNode rightLeaf = (LeafNode) right;
+            if (leftLeaf.getSize() + rightLeaf.getSize() <= capacity) {
+                if (metrics != null) {
+                    metrics.leafMerge(separator);
+                }
+                rightLeaf.moveEntriesTo(leftLeaf, 0);
+                rightLeaf.unlink();
+                parent.removeEntry(index);
+            } else {
+                if (metrics != null) {
+                    metrics.leafBorrow(separator);
+                }
+                redistributeLeaves(leftLeaf, rightLeaf);
+                parent.getKeys()[index] = rightLeaf.key(0);
+                parent.recount(index, index + 2);
+            }
         } else {
-            return null; // Key not found
+            InnerNode leftNode = (InnerNode) left;
+            InnerNode rightNode = (InnerNode) right;
+            if (leftNode.getSize() + 1 + rightNode.getSize() <= capacity) {
+                mergeInnerNodes(leftNode, parent, index, rightNode);
+            } else {
+                if (metrics != null) {
+                    metrics.innerBorrow(separator);
+                }
+                int newSeparator = redistributeInnerNodes(leftNode, separator, rightNode);
+                parent.getKeys()[index] = newSeparator;
+                parent.recount(index, index + 2);
+                moveMessages(leftNode, rightNode, newSeparator, Long.MAX_VALUE);
+                moveMessages(rightNode, leftNode, Long.MIN_VALUE, newSeparator);
+            }
         }
     }
 
+    private void redistributeLeaves(LeafNode left, LeafNode right) {
+        int total = left.getSize() + right.getSize();
+        int[] keys = Arrays.copyOf(left.getKeys(), total);
+        String[] values = new String[total];
+        System.arraycopy(right.getKeys(), 0, keys, left.getSize(), right.getSize());
+        for (int i = 0; i < left.getSize(); i++) {
+            values[i] = left.value(i);
+        }
+        for (int i = 0; i < right.getSize(); i++) {
+            values[left.getSize() + i] = right.value(i);
+        }
 
+        int leftSize = total / 2;
+        left.setEntries(keys, values, 0, leftSize);
+        right.setEntries(keys, values, leftSize, total - leftSize);
+    }
 
-    private void moveKeysToLeft(LeafNode node) {
-        Integer[] tempKeys = new Integer[node.getKeys().length];
-        String[] tempValues = new String[node.getValues().length];
+    /**
+     * Spread the keys and children of two inner nodes and the separator
+     * between them evenly across both.
+     *
+     * @return The new separator.
+     */
+    private int redistributeInnerNodes(InnerNode left, int separator, InnerNode right) {
+        int total = left.getSize() + 1 + right.getSize();
+        int[] keys = Arrays.copyOf(left.getKeys(), total);
+        Node[] children = Arrays.copyOf(left.getChildren(), total + 1);
+        long[] counts = Arrays.copyOf(left.getCounts(), total + 1);
+        keys[left.getSize()] = separator;
+        System.arraycopy(right.getKeys(), 0, keys, left.getSize() + 1, right.getSize());
+        System.arraycopy(right.getChildren(), 0, children, left.getSize() + 1, right.getSize() + 1);
+        System.arraycopy(right.getCounts(), 0, counts, left.getSize() + 1, right.getSize() + 1);
+
+        // The key in the middle moves up to the parent
+        int leftSize = total / 2;
+        int rightSize = total - leftSize - 1;
+        System.arraycopy(keys, 0, left.getKeys(), 0, leftSize);
+        System.arraycopy(children, 0, left.getChildren(), 0, leftSize + 1);
+        System.arraycopy(counts, 0, left.getCounts(), 0, leftSize + 1);
+        Arrays.fill(left.getChildren(), leftSize + 1, capacity + 1, null);
+        Arrays.fill(left.getCounts(), leftSize + 1, capacity + 1, 0);
+        left.setSize(leftSize);
+        System.arraycopy(keys, leftSize + 1, right.getKeys(), 0, rightSize);
+        System.arraycopy(children, leftSize + 1, right.getChildren(), 0, rightSize + 1);
+        System.arraycopy(counts, leftSize + 1, right.getCounts(), 0, rightSize + 1);
+        Arrays.fill(right.getChildren(), rightSize + 1, capacity + 1, null);
+        Arrays.fill(right.getCounts(), rightSize + 1, capacity + 1, 0);
+        right.setSize(rightSize);
+        return keys[leftSize];
+    }
+
+    /**
+     * Add a message to the buffer of the root, which has to be an inner
+     * node, and push messages further down if the buffer overflows.
+     */
+    private void bufferMessage(int key, String value, boolean delete) {
+        beginUpdate();
+        InnerNode rootNode = (InnerNode) root;
+        if (rootNode.buffer == null) {
+            rootNode.buffer = new MessageBuffer();
+        }
+        rootNode.buffer.put(key, value, delete);
+        messagesPending = true;
+        if (rootNode.buffer.size() > bufferCapacity) {
+            flushBuffers(key);
+        }
+    }
 
-        int tempIndex = 0;
-        for (int index = 0; index < node.getKeys().length; index++) {
-            if (node.getKeys()[index] != null) {
-                tempKeys[tempIndex] = node.getKeys()[index];
-                tempValues[tempIndex] = node.getValues()[index];
-                tempIndex++;
+    /**
+     * Walk down the path to the given key and flush each overfull buffer on
+     * it. Overfull buffers off the path queue their own path. Applying
+     * messages to a leaf may change the structure above it, so the walk
+     * starts again at the root afterwards.
+     */
+    private void flushBuffers(int key) {
+        flushQueue.push(key);
+        while (!flushQueue.isEmpty()) {
+            int target = flushQueue.pop();
+            beginUpdate();
+            Node node = root;
+            while (node instanceof InnerNode) {
+                InnerNode innerNode = (InnerNode) node;
+                if (innerNode.buffer != null && innerNode.buffer.size() > bufferCapacity
+                        && flushBuffer(innerNode)) {
+                    applyOrphans();
+                    flushQueue.push(target);
+                    break;
+                }
+                node = writableChild(innerNode, innerNode.childIndex(target));
             }
         }
+    }
+
+    /**
+     * Move the messages that go to the same child down one level, choosing
+     * the child that receives the most, until the buffer of the node is no
+     * longer overfull.
+     *
+     * @return Whether messages were applied to a leaf, after which the node
+     * may no longer be part of the tree.
+     */
+    private boolean flushBuffer(InnerNode node) {
+        MessageBuffer buffer = node.buffer;
+        while (buffer.size() > bufferCapacity) {
+            int child = 0;
+            int start = 0;
+            int end = 0;
+            int from = 0;
+            for (int i = 0; i <= node.getSize() && from < buffer.size(); i++) {
+                int to = i == node.getSize() ? buffer.size() : buffer.lowerBound(node.getKeys()[i]);
+                if (to - from > end - start) {
+                    child = i;
+                    start = from;
+                    end = to;
+                }
+                from = to;
+            }
 
-        // Fill the remaining positions with nulls
-        while (tempIndex < node.getKeys().length) {
-            tempKeys[tempIndex] = null;
-            tempValues[tempIndex] = null;
-            tempIndex++;
-            System.out.println(Arrays.toString(tempKeys));
+            Node childNode = writableChild(node, child);
+            if (childNode instanceof LeafNode) {
+                MessageBuffer batch = new MessageBuffer();
+                buffer.moveTo(batch, start, end);
+                applyMessages(batch);
+                return true;
+            }
+            InnerNode innerChild = (InnerNode) childNode;
+            if (innerChild.buffer == null) {
+                innerChild.buffer = new MessageBuffer();
+            }
+            int key = buffer.key(start);
+            buffer.moveTo(innerChild.buffer, start, end);
+            if (innerChild.buffer.size() > bufferCapacity) {
+                flushQueue.push(key);
+            }
+        }
+        return false;
+    }
 
+    /**
+     * Apply messages to the leaves: the deletes one by one, then the inserts
+     * merged into their leaves as a batch.
+     */
+    private void applyMessages(MessageBuffer messages) {
+        int inserts = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            if (messages.isDelete(i)) {
+                int key = messages.key(i);
+                deleteFromLeafNode(key, findLeafNodeForUpdate(key));
+            } else {
+                inserts++;
+            }
+        }
+        if (inserts == 0) {
+            return;
+        }
+        // The messages are sorted already, the batch only needs the positions
+        long[] order = new long[inserts];
+        String[] values = new String[inserts];
+        int insert = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            if (!messages.isDelete(i)) {
+                order[insert] = ((long) messages.key(i) << 32) | insert;
+                values[insert++] = messages.value(i);
+            }
         }
+        insertSorted(order, values);
+    }
 
-        // Copy the sorted and null-filled array back to the original array
-        System.arraycopy(tempKeys, 0, node.getKeys(), 0, tempKeys.length);
-        System.arraycopy(tempValues, 0, node.getValues(), 0, tempValues.length);
+    /**
+     * Apply the messages of a root that was replaced by a leaf. They are the
+     * newest ones, so this happens after the batch being applied is done.
+     */
+    private void applyOrphans() {
+        while (orphans != null) {
+            MessageBuffer messages = orphans;
+            orphans = null;
+            applyMessages(messages);
+        }
     }
 
-    private int countNonNullKeys(Integer[] keys) {
-        int count = 0;
-        for (Integer key : keys) {
-            if (key != null) {
-                count++;
+    /**
+     * Look for the newest message for the key in the buffers on the path of
+     * the last descent, before looking into the leaf.
+     */
+    private String lookupThroughBuffers(int key, LeafNode node) {
+        for (int level = 0; level < path.depth(); level++) {
+            MessageBuffer buffer = path.node(level).buffer;
+            if (buffer != null) {
+                int index = buffer.search(key);
+                if (index >= 0) {
+                    return buffer.isDelete(index) ? null : buffer.value(index);
+                }
             }
         }
-        return count;
+        return lookupInLeafNode(key, node);
     }
-    private void handleLeafNodeUnderflow(LeafNode node, Deque<InnerNode> parents) {
-        // Check if the leaf node is underflowing (has fewer elements than capacity/2)
-        if (countNonNullKeys(node.getKeys()) < capacity / 2) {
-            // Leaf node is underflowing, need to borrow or merge with siblings
-            InnerNode parent = parents.peek();
 
-            // Find the index of the current leaf node in the parent
-            int index = 0;
-            while (true) {
-                if (parent != null)
-                    if (!(index < parent.getChildren().length && parent.getChildren()[index] != node)) break;
-                index++;
+    /**
+     * Empty the buffers in the subtree of the node and append their messages
+     * to the given ones in key order.
+     *
+     * @param newer Messages from the buffers above that go to this subtree,
+     *              they replace the messages of this node.
+     */
+    private static void collectMessages(InnerNode node, MessageBuffer newer, MessageBuffer messages) {
+        MessageBuffer buffer = newer;
+        if (node.buffer != null && node.buffer.size() > 0) {
+            buffer = node.buffer;
+            node.buffer = null;
+            newer.moveTo(buffer, 0, newer.size());
+        }
+        for (int i = 0; i <= node.getSize(); i++) {
+            int end = i == node.getSize() ? buffer.size() : buffer.lowerBound(node.getKeys()[i]);
+            Node child = node.getChildren()[i];
+            if (child instanceof InnerNode) {
+                MessageBuffer childMessages = new MessageBuffer();
+                buffer.moveTo(childMessages, 0, end);
+                collectMessages((InnerNode) child, childMessages, messages);
+            } else {
+                buffer.moveTo(messages, 0, end);
             }
+        }
+    }
 
-            // Try borrowing from the left sibling
-            if (index > 0 && borrowOrMergeWithSibling(index, parent, node, parents, true)) {
-                return;
+    /**
+     * Move the buffered messages with {from <= key < to} from one inner node
+     * to another, after the children they go to were moved.
+     */
+    private static void moveMessages(InnerNode source, InnerNode target, long from, long to) {
+        if (source.buffer == null || source.buffer.size() == 0) {
+            return;
+        }
+        int start = source.buffer.lowerBound(from);
+        int end = source.buffer.lowerBound(to);
+        if (start < end) {
+            if (target.buffer == null) {
+                target.buffer = new MessageBuffer();
             }
+            source.buffer.moveTo(target.buffer, start, end);
+        }
+    }
 
-            // Try borrowing from the right sibling
-            if (index < parent.getChildren().length - 1 && borrowOrMergeWithSibling(index, parent, node, parents, false)) {
-                return;
+    /**
+     * Replace an inner root without keys by its only child. Buffered
+     * messages of the root go to the child, or are kept aside if the child
+     * is a leaf, see {applyOrphans}.
+     */
+    private void collapseRoot() {
+        InnerNode oldRoot = (InnerNode) root;
+        root = oldRoot.getChildren()[0];
+        if (root instanceof InnerNode) {
+            moveMessages(oldRoot, (InnerNode) root, Long.MIN_VALUE, Long.MAX_VALUE);
+        } else if (oldRoot.buffer != null && oldRoot.buffer.size() > 0) {
+            if (orphans == null) {
+                orphans = new MessageBuffer();
             }
+            oldRoot.buffer.moveTo(orphans, 0, oldRoot.buffer.size());
+        }
+    }
 
-            // Merge with the left or right sibling if borrowing fails
-            if (index > 0) {
-                mergeWithSibling(index, parent, node, (LeafNode) parent.getChildren()[index - 1], parents, true);
+    ///// Public API
+    ///// These can be left unchanged
+
+    /**
+     * Lookup the value stored under the given key.
+     *
+     * @return The stored value, or {null} if the key does not exist.
+     */
+    public String lookup(Integer key) {
+        long start = metrics != null ? System.nanoTime() : 0;
+        String value = lookupCache != null ? lookupCache.get(key) : null;
+        if (value == null && (bloomFilter == null || bloomFilter.mightContain(key))) {
+            if (messagesPending) {
+                value = lookupThroughBuffers(key, findLeafNode(key, root, path));
             } else {
-                mergeWithSibling(index, parent, node, (LeafNode) parent.getChildren()[index + 1], parents, false);
+                value = lookupInLeafNode(key, findLeafNode(key, root));
+            }
+            if (lookupCache != null) {
+                lookupCache.put(key, value);
             }
         }
+        if (metrics != null) {
+            metrics.lookup(System.nanoTime() - start);
+        }
+        return value;
     }
 
-    private boolean borrowOrMergeWithSibling(int index, InnerNode parent, LeafNode node, Deque<InnerNode> parents, boolean borrowFromLeft) {
-        LeafNode sibling;
-        int borrowIndex;
-        if (borrowFromLeft && index > 0) {
-            sibling = (LeafNode) parent.getChildren()[index - 1];
-                borrowIndex = sibling.getKeys().length - 1;
-        } else if (!borrowFromLeft && index < parent.getChildren().length - 1) {
-            sibling = (LeafNode) parent.getChildren()[index + 1];
-            borrowIndex = 0;
+    /**
+     * Insert the key/value pair into the B+ tree.
+     */
+    public void insert(int key, String value) {
+        long start = metrics != null ? System.nanoTime() : 0;
+        if (bufferCapacity > 0 && root instanceof InnerNode) {
+            bufferMessage(key, value, false);
+        } else {
+            LeafNode leafNode = appending() ? findRightmostLeafForAppend(key) : null;
+            if (leafNode == null) {
+                leafNode = findLeafNodeForUpdate(key);
+            }
+            insertIntoLeafNode(key, value, leafNode);
+        }
+        if (key > lastInsertKey) {
+            ascendingInserts = Math.min(ascendingInserts + 1, APPEND_RUN);
         } else {
-            return false; // Cannot borrow from left if index is 0 or from right if index is at the last child
+            ascendingInserts = 0;
+        }
+        lastInsertKey = key;
+        if (bloomFilter != null) {
+            bloomFilter.add(key);
+        }
+        if (lookupCache != null) {
+            lookupCache.update(key, value);
+        }
+        if (metrics != null) {
+            metrics.insert(System.nanoTime() - start);
         }
+    }
 
-        if (sibling.getKeys()[borrowIndex] != null && countNonNullKeys(sibling.getKeys())>capacity/2) {
-            // Borrow key-value pair from the sibling
-            borrowKeyValueFromSibling(node, sibling, borrowIndex, borrowFromLeft);
+    /**
+     * Delete the key/value pair from the B+ tree.
+     *
+     * @return The original value, or {null} if the key does not exist.
+     */
+    public String delete(Integer key) {
+        long start = metrics != null ? System.nanoTime() : 0;
+        String value;
+        if (bufferCapacity > 0 && root instanceof InnerNode) {
+            // Only the buffers and the leaf are read, the deletion itself
+            // is buffered
+            value = lookupThroughBuffers(key, findLeafNode(key, root, path));
+            bufferMessage(key, null, true);
+        } else {
+            LeafNode leafNode = findLeafNodeForUpdate(key);
+            value = deleteFromLeafNode(key, leafNode);
+        }
+        if (lookupCache != null) {
+            lookupCache.remove(key);
+        }
+        if (metrics != null) {
+            metrics.delete(System.nanoTime() - start);
+        }
+        return value;
+    }
 
-            // Update parent key
-            parent.getKeys()[index - (borrowFromLeft ? 1 : 0)] = sibling.getKeys()[borrowIndex];
+    /**
+     * Delete all entries with {from <= key < to}.
+     * <p>
+     * Subtrees that lie within the range entirely are detached from their
+     * parents as a whole, only the two leaves at the boundaries of the range
+     * are trimmed. Afterwards the nodes along the two boundary paths are
+     * rebalanced once, so the work depends on the height of the tree rather
+     * than on the number of deleted entries.
+     *
+     * @return The number of deleted entries.
+     */
+    public long deleteRange(int from, int to) {
+        if (from >= to) {
+            return 0;
+        }
+        flush();
+        if (lookupCache != null) {
+            lookupCache.removeRange(from, to);
+        }
+        // The leaves just outside the range are not touched, they only need
+        // to be linked to whatever remains in between
+        LeafNode before = findLeafNode(from, root).getPrevious();
+        LeafNode after = findLeafNode(to - 1, root).getNext();
+
+        beginUpdate();
+        rangeLeaves[0] = rangeLeaves[1] = null;
+        long deleted = deleteRangeFromNode(root, from, to, Integer.MIN_VALUE, Integer.MAX_VALUE + 1L);
+        if (metrics != null) {
+            metrics.deleteRange(deleted);
+        }
 
-            return true; // Borrowing successful
+        if (InnerNode.count(root) == 0) {
+            root = own(newLeafNode());
         } else {
+            LeafNode previous = before;
+            for (LeafNode leaf : rangeLeaves) {
+                if (leaf != null && leaf.getSize() > 0) {
+                    link(previous, leaf);
+                    previous = leaf;
+                }
+            }
+            link(previous, after);
+            Arrays.fill(rangeLeaves, null);
+            if (from > Integer.MIN_VALUE) {
+                rebalancePath(from - 1);
+            }
+            rebalancePath(to);
+        }
+        return deleted;
+    }
 
-        // Unable to borrow, perform merging
-        mergeWithSibling(index, parent, node, sibling, parents, borrowFromLeft);
-        return true;
-}
-        // Borrowing failed, merged instead
+    /**
+     * Iterate in ascending key order over all entries with
+     * {from <= key < to}.
+     */
+    public RangeCursor scan(int from, int to) {
+        flush();
+        LeafNode leafNode = findLeafNode(from, root);
+        int index = leafNode.search(from);
+        return new RangeCursor(leafNode, index >= 0 ? index : -index - 1,
+                               from, to, false);
     }
 
-    private void borrowKeyValueFromSibling(LeafNode node, LeafNode sibling, int borrowIndex, boolean borrowFromLeft) {
-        int nodeIndex = !borrowFromLeft ? node.getKeys().length - 1 : 0;
+    /**
+     * Iterate in descending key order over all entries with
+     * {from <= key < to}.
+     */
+    public RangeCursor scanDescending(int from, int to) {
+        flush();
+        LeafNode leafNode = findLeafNode(to, root);
+        int index = leafNode.search(to);
+        return new RangeCursor(leafNode, (index >= 0 ? index : -index - 1) - 1,
+                               from, to, true);
+    }
 
+    /**
+     * Spliterator over all entries with {from <= key < to} in ascending key
+     * order, which splits at the child boundaries of the inner nodes.
+     */
+    public Spliterator<Map.Entry<Integer, String>> spliterator(int from, int to) {
+        flush();
+        return new RangeSpliterator(root, from, to);
+    }
 
-        // Insert the borrowed key-value pair
-        node.getKeys()[nodeIndex] = sibling.getKeys()[borrowIndex];
-        node.getValues()[nodeIndex] = sibling.getValues()[borrowIndex];
+    /**
+     * Stream over all entries with {from <= key < to} in ascending key
+     * order. A parallel stream divides the range by subtrees.
+     */
+    public Stream<Map.Entry<Integer, String>> stream(int from, int to) {
+        return StreamSupport.stream(spliterator(from, to), false);
+    }
 
-        // Update the sibling
-        sibling.getKeys()[borrowIndex] = null;
-        sibling.getValues()[borrowIndex] = null;
-        moveKeysToLeft(sibling);
+    /**
+     * Apply the action to all entries with {from <= key < to} in the common
+     * fork/join pool, with one task per group of subtrees. The tree must not
+     * be modified until it returns.
+     */
+    public void parallelForEach(int from, int to,
+                                Consumer<? super Map.Entry<Integer, String>> action) {
+        RangeSpliterator.parallelForEach(spliterator(from, to), action);
     }
 
-    private void mergeWithSibling(int index, InnerNode parent, LeafNode node, LeafNode sibling, Deque<InnerNode> parents, boolean mergeWithLeft) {
-        int siblingIndex = mergeWithLeft ? index - 1 : index + 1;
+    /**
+     * Number of entries in the tree.
+     */
+    public long size() {
+        flush();
+        return InnerNode.count(root);
+    }
 
-        // Move all keys and values from the sibling to the node
-        int nodeIndex = capacity/2-1;
-        System.arraycopy(sibling.getKeys(), 0, node.getKeys(), nodeIndex, sibling.getKeys().length-1);
-        System.arraycopy(sibling.getValues(), 0, node.getValues(), nodeIndex, sibling.getValues().length-1);
+    /**
+     * Number of keys smaller than the given key, which is the position of
+     * the key in key order if it exists.
+     * <p>
+     * Each inner node on the way down adds the entry counts of the subtrees
+     * left of the child taken, so no leaf besides the last one is visited.
+     */
+    public long rank(int key) {
+        flush();
+        long rank = 0;
+        Node node = root;
+        while (node instanceof InnerNode) {
+            InnerNode innerNode = (InnerNode) node;
+            int index = innerNode.childIndex(key);
+            for (int i = 0; i < index; i++) {
+                rank += innerNode.getCounts()[i];
+            }
+            node = innerNode.getChildren()[index];
+        }
+        int index = node.search(key);
+        return rank + (index >= 0 ? index : -index - 1);
+    }
 
-        // Update the parent key
-        parent.getKeys()[siblingIndex - (mergeWithLeft ? 1 : 0)] = null;
+    /**
+     * The key at the given position in key order, starting from 0.
+     *
+     * @throws IndexOutOfBoundsException If {rank} is negative or not smaller
+     *                                   than {size()}.
+     */
+    public int select(long rank) {
+        if (rank < 0 || rank >= size()) {
+            throw new IndexOutOfBoundsException(
+                    "Rank " + rank + " out of range for " + size() + " entries");
+        }
+        Node node = root;
+        while (node instanceof InnerNode) {
+            InnerNode innerNode = (InnerNode) node;
+            int index = 0;
+            while (rank >= innerNode.getCounts()[index]) {
+                rank -= innerNode.getCounts()[index];
+                index++;
+            }
+            node = innerNode.getChildren()[index];
+        }
+        return ((LeafNode) node).key((int) rank);
+    }
 
-        // Update the parent's references
-        System.arraycopy(parent.getChildren(), siblingIndex + 1, parent.getChildren(), siblingIndex, parent.getChildren().length - 1 - siblingIndex);
+    /**
+     * Number of entries with {from <= key < to}, without visiting them.
+     */
+    public long countRange(int from, int to) {
+        return from < to ? rank(to) - rank(from) : 0;
+    }
 
-        // Set the last reference in the parent to null
-        parent.getChildren()[parent.getChildren().length - 1] = null;
+    /**
+     * A key drawn uniformly at random from all keys of the tree.
+     *
+     * @throws NoSuchElementException If the tree is empty.
+     */
+    public int sample(Random random) {
+        long size = size();
+        if (size == 0) {
+            throw new NoSuchElementException("Cannot sample an empty tree");
+        }
+        // Rejection sampling avoids the bias of a plain modulo
+        long bits;
+        long rank;
+        do {
+            bits = random.nextLong() >>> 1;
+            rank = bits % size;
+        } while (bits - rank + (size - 1) < 0);
+        return select(rank);
+    }
 
-        // Update parents
-        updateParents(parents);
+    /**
+     * Build a B+ tree bottom-up from sorted input.
+     * <p>
+     * The leaves are packed from left to right with about
+     * {fillFactor * capacity} entries each and the inner levels are built on
+     * top of them one level at a time. No node falls below the minimum fill
+     * of {capacity/2}, so the result is a valid tree that can be modified
+     * as usual. Entries are spread evenly, so the fill factor is a target
+     * rather than an exact value.
+     *
+     * @param sortedKeys Keys in strictly ascending order.
+     * @param values     The value of each key.
+     * @param fillFactor Target fill of each node, between 0 (exclusive) and
+     *                   1 (inclusive); values below 0.5 act as 0.5.
+     */
+    public static BPlusTree bulkLoad(int[] sortedKeys, String[] values,
+                                     double fillFactor, int capacity) {
+        if (sortedKeys.length != values.length) {
+            throw new IllegalArgumentException(
+                    "Got " + sortedKeys.length + " keys but " + values.length + " values");
+        }
+        BulkLoader loader = new BulkLoader(sortedKeys.length, fillFactor, capacity);
+        for (int i = 0; i < sortedKeys.length; i++) {
+            loader.add(sortedKeys[i], values[i]);
+        }
+        return loader.finish();
     }
 
-    private void updateParents(Deque<InnerNode> parents) {
-        while (!parents.isEmpty()) {
-            InnerNode parent = parents.pop();
+    /**
+     * Lookup the values stored under the given keys.
+     * <p>
+     * The keys are processed in sorted order, so all keys that fall into the
+     * same leaf share a single descent from the root.
+     *
+     * @return The stored value for each key, or {null} where a key does not
+     * exist, in the order of the given keys.
+     */
+    public String[] lookupAll(int[] keys) {
+        if (metrics != null) {
+            metrics.lookupBatch(keys.length);
+        }
+        String[] result = new String[keys.length];
+        long[] order = sortBatch(keys);
+        int i = 0;
+        while (i < order.length) {
+            int key = (int) (order[i] >> 32);
+            if (bloomFilter != null && !bloomFilter.mightContain(key)) {
+                i++;
+                continue;
+            }
+            LeafNode leafNode = findLeafNode(key, root, path);
+            long bound = upperBound();
+            do {
+                int batchKey = (int) (order[i] >> 32);
+                result[(int) order[i]] = messagesPending ? lookupThroughBuffers(batchKey, leafNode)
+                                                         : lookupInLeafNode(batchKey, leafNode);
+                i++;
+            } while (i < order.length && (order[i] >> 32) < bound);
+        }
+        return result;
+    }
 
-            // Update keys based on the first element of children
-            for (int i = 0; i < parent.getKeys().length; i++) {
-                if (parent.getChildren()[i] != null) {
-                    if (parent.getChildren()[i] instanceof LeafNode) {
-                        LeafNode childLeaf = (LeafNode) parent.getChildren()[i];
-                        parent.getKeys()[i] = (childLeaf.getKeys()[0] != null) ? childLeaf.getKeys()[0] : null;
-                    } else if (parent.getChildren()[i] instanceof InnerNode) {
-                        InnerNode childInner = (InnerNode) parent.getChildren()[i];
-                        parent.getKeys()[i] = (childInner.getKeys()[0] != null) ? childInner.getKeys()[0] : null;
-                    }
-                }
+    /**
+     * Insert all key/value pairs into the B+ tree.
+     * <p>
+     * The pairs are applied in sorted key order, all keys that fall into the
+     * same leaf are merged into it at once and an overflowing leaf is split
+     * into as many leaves as needed in one step. If a key occurs more than
+     * once, the last value wins.
+     */
+    public void insertAll(int[] keys, String[] values) {
+        if (keys.length != values.length) {
+            throw new IllegalArgumentException(
+                    "Got " + keys.length + " keys but " + values.length + " values");
+        }
+        if (metrics != null) {
+            metrics.insertBatch(keys.length);
+        }
+        flush();
+        insertSorted(sortBatch(keys), values);
+        if (bloomFilter != null) {
+            for (int key : keys) {
+                bloomFilter.add(key);
             }
-            parent.getKeys()[0] = null;
-            for (int i = 0; i < parent.getKeys().length - 1; i++) {
-                parent.getKeys()[i] = parent.getKeys()[i + 1];
+        }
+        if (lookupCache != null) {
+            for (int i = 0; i < keys.length; i++) {
+                lookupCache.update(keys[i], values[i]);
             }
-            // Move up to the next level of parents
         }
     }
 
+    /**
+     * Start collecting operation metrics, or keep collecting if they are
+     * already enabled.
+     */
+    public TreeMetrics enableMetrics() {
+        if (metrics == null) {
+            metrics = new TreeMetrics();
+        }
+        return metrics;
+    }
 
+    /**
+     * Stop collecting operation metrics and drop the ones collected so far.
+     */
+    public void disableMetrics() {
+        metrics = null;
+    }
 
+    /**
+     * @return The operation metrics, or {null} if they are disabled.
+     */
+    public TreeMetrics metrics() {
+        return metrics;
+    }
 
-    ///// Public API
-    ///// These can be left unchanged
+    /**
+     * Answer lookups of recently used keys from a cache of at least the given
+     * number of entries, replacing any previous cache.
+     * <p>
+     * A hit costs a hash and a comparison with a few keys instead of a
+     * descent from the root. Inserts and deletes update the cache, so it is
+     * always consistent with the tree; only keys that were looked up are
+     * added to it. The hit rate is reported by {statistics()}.
+     */
+    public void enableLookupCache(int capacity) {
+        lookupCache = new LookupCache(capacity);
+    }
+
+    public void disableLookupCache() {
+        lookupCache = null;
+    }
 
     /**
-     * Lookup the value stored under the given key.
+     * Answer lookups of keys that do not exist from a Bloom filter, without
+     * visiting any node. The filter is sized for the given number of keys,
+     * or the current number if that is larger, and filled with all keys of
+     * the tree.
+     * <p>
+     * Inserts add their keys to the filter. Deleted keys stay in it and only
+     * cause false positives, which {rebuildBloomFilter()} gets rid of. The
+     * filter is saved along with the tree by {BPlusTreeSerializer}.
+     */
+    public void enableBloomFilter(long expectedKeys, double falsePositiveRate) {
+        flush();
+        bloomFilter = new BloomFilter(Math.max(expectedKeys, InnerNode.count(root)), falsePositiveRate);
+        Node node = root;
+        while (node instanceof InnerNode) {
+            node = ((InnerNode) node).getChildren()[0];
+        }
+        for (LeafNode leaf = (LeafNode) node; leaf != null; leaf = leaf.getNext()) {
+            for (int i = 0; i < leaf.getSize(); i++) {
+                bloomFilter.add(leaf.key(i));
+            }
+        }
+    }
+
+    /**
+     * Rebuild the Bloom filter from the keys currently in the tree, so that
+     * deleted keys do not pass it anymore.
+     */
+    public void rebuildBloomFilter() {
+        if (bloomFilter == null) {
+            throw new IllegalStateException("Bloom filter is not enabled");
+        }
+        enableBloomFilter(bloomFilter.expectedKeys(), bloomFilter.falsePositiveRate());
+    }
+
+    public void disableBloomFilter() {
+        bloomFilter = null;
+    }
+
+    /**
+     * Store the values in the leaves as {int} codes of the given dictionary,
+     * which may be shared with other trees. All current leaves are encoded
+     * right away.
+     * <p>
+     * A leaf then holds a primitive array instead of one reference per
+     * entry. Values are decoded by {lookup} and by the cursors of
+     * {scan}; {RangeCursor.code()} gives the code of an entry without
+     * decoding it. Encoding cannot be turned off again.
      *
-     * @return The stored value, or {null} if the key does not exist.
+     * @throws IllegalStateException If the tree already uses a dictionary or
+     *                               snapshots are open.
      */
-    public String lookup(Integer key) {
-        LeafNode leafNode = findLeafNode(key, root);
-        return lookupInLeafNode(key, leafNode);
+    public void enableValueDictionary(ValueDictionary dictionary) {
+        if (valueDictionary != null) {
+            throw new IllegalStateException("Values are already encoded");
+        }
+        if (liveSnapshots.get() > 0) {
+            throw new IllegalStateException("Cannot encode values while snapshots are open");
+        }
+        flush();
+        valueDictionary = dictionary;
+        Node node = root;
+        while (node instanceof InnerNode) {
+            node = ((InnerNode) node).getChildren()[0];
+        }
+        for (LeafNode leaf = (LeafNode) node; leaf != null; leaf = leaf.getNext()) {
+            leaf.encode(dictionary);
+        }
     }
 
     /**
-     * Insert the key/value pair into the B+ tree.
+     * @return The dictionary of the values, or {null} if the leaves store
+     * the values themselves.
      */
-    public void insert(int key, String value) {
-        Deque<InnerNode> parents = new LinkedList<>();
-        LeafNode leafNode = findLeafNode(key, root, parents);
-        insertIntoLeafNode(key, value, leafNode, parents);
+    public ValueDictionary valueDictionary() {
+        return valueDictionary;
     }
 
     /**
-     * Delete the key/value pair from the B+ tree.
+     * Store the keys of each leaf as {short} offsets from its smallest key
+     * whenever they span at most {LeafNode.MAX_DELTA}, see {LeafNode}. All
+     * current leaves are compressed right away.
+     * <p>
+     * Dense keys then take half the memory, and {lookup} and {scan} search
+     * the offsets without decoding the leaf. Leaves whose keys spread
+     * further keep plain keys until they fit again. Compression cannot be
+     * turned off again.
      *
-     * @return The original value, or {null} if the key does not exist.
+     * @throws IllegalStateException If snapshots are open.
      */
-    public String delete(Integer key) {
-        Deque<InnerNode> parents = new LinkedList<>();
-        LeafNode leafNode = findLeafNode(key, root, parents);
-        return deleteFromLeafNode(key, leafNode, parents);
+    public void enableKeyCompression() {
+        if (liveSnapshots.get() > 0) {
+            throw new IllegalStateException("Cannot compress keys while snapshots are open");
+        }
+        flush();
+        keyCompression = true;
+        Node node = root;
+        while (node instanceof InnerNode) {
+            node = ((InnerNode) node).getChildren()[0];
+        }
+        for (LeafNode leaf = (LeafNode) node; leaf != null; leaf = leaf.getNext()) {
+            leaf.compress();
+        }
+    }
+
+    public boolean isKeyCompressionEnabled() {
+        return keyCompression;
+    }
+
+    private LeafNode newLeafNode() {
+        return new LeafNode(new int[] {}, new String[] {}, capacity, valueDictionary, keyCompression);
+    }
+
+    /**
+     * @return The Bloom filter, or {null} if it is disabled.
+     */
+    BloomFilter bloomFilter() {
+        return bloomFilter;
+    }
+
+    /**
+     * Use the given filter, which must contain all keys of the tree.
+     */
+    void setBloomFilter(BloomFilter bloomFilter) {
+        this.bloomFilter = bloomFilter;
+    }
+
+    /**
+     * Buffer modifications in the inner nodes instead of applying each one
+     * to its leaf right away.
+     * <p>
+     * {insert} and {delete} only add a message to the buffer of the root.
+     * Once a buffer holds more than {bufferCapacity} messages, the messages
+     * that go to the child receiving the most are moved into its buffer, or
+     * applied to it as a batch if it is a leaf. This way a leaf and the
+     * splits or merges it causes are dealt with for many modifications at
+     * once. {lookup} consults the buffers on its way down; scans, order
+     * statistics, snapshots and the like {flush()} all buffers first.
+     * A delete still has to read the current value in order to return it.
+     */
+    public void enableBuffering(int bufferCapacity) {
+        if (bufferCapacity < 1) {
+            throw new IllegalArgumentException("Invalid buffer capacity " + bufferCapacity);
+        }
+        this.bufferCapacity = bufferCapacity;
+    }
+
+    /**
+     * Apply all buffered messages and stop buffering.
+     */
+    public void disableBuffering() {
+        flush();
+        bufferCapacity = 0;
+    }
+
+    /**
+     * Apply all buffered messages to the leaves, so that the nodes reflect
+     * all modifications, e.g. before looking at {rootNode()}.
+     */
+    public void flush() {
+        if (!messagesPending) {
+            return;
+        }
+        messagesPending = false;
+        if (root instanceof InnerNode) {
+            MessageBuffer messages = new MessageBuffer();
+            collectMessages((InnerNode) root, new MessageBuffer(), messages);
+            applyMessages(messages);
+        }
+    }
+
+    /**
+     * Take a read-only snapshot of the current state of the tree in constant
+     * time.
+     * <p>
+     * From now on, a node is copied before it is modified for the first
+     * time, together with the path from the root to it, while the snapshot
+     * keeps the original. Nodes of this and older generations are only
+     * copied as long as at least one snapshot is open.
+     */
+    public Snapshot snapshot() {
+        flush();
+        liveSnapshots.incrementAndGet();
+        Snapshot snapshot = new Snapshot(this, root, generation);
+        generation++;
+        return snapshot;
+    }
+
+    /**
+     * Number of snapshots that were taken and not closed yet.
+     */
+    public int liveSnapshots() {
+        return liveSnapshots.get();
+    }
+
+    void releaseSnapshot() {
+        liveSnapshots.decrementAndGet();
+    }
+
+    /**
+     * Walk the whole tree and report its height, the number of nodes per
+     * level and how full the nodes are.
+     */
+    public TreeStatistics statistics() {
+        flush();
+        TreeStatistics statistics = new TreeStatistics(root, capacity);
+        if (lookupCache != null) {
+            statistics.setLookupCache(lookupCache.hits(), lookupCache.misses());
+        }
+        return statistics;
     }
 
     ///// Leave these methods unchanged
@@ -434,6 +1648,108 @@ public class BPlusTree {
 
     private Node root;
 
+    /**
+     * Generation of the nodes created by modifications, incremented by each
+     * snapshot.
+     */
+    private long generation;
+
+    private final AtomicInteger liveSnapshots = new AtomicInteger();
+
+    /**
+     * Whether the current modification has to copy nodes of older
+     * generations, decided once per operation.
+     */
+    private boolean copyOnWrite;
+
+    /**
+     * Maximum number of messages in the buffer of an inner node, {0} if
+     * modifications are not buffered.
+     */
+    private int bufferCapacity;
+
+    /**
+     * Whether any buffer may hold messages.
+     */
+    private boolean messagesPending;
+
+    /**
+     * Messages of a collapsed root that still have to be applied.
+     */
+    private MessageBuffer orphans;
+
+    /**
+     * Keys whose path has an overfull buffer.
+     */
+    private final ArrayDeque<Integer> flushQueue = new ArrayDeque<>();
+
+    /**
+     * Operation metrics, {null} while they are disabled.
+     */
+    private TreeMetrics metrics;
+
+    /**
+     * Cache of looked up values, {null} while disabled.
+     */
+    private LookupCache lookupCache;
+
+    /**
+     * Filter of all keys inserted since it was built, {null} while
+     * disabled.
+     */
+    private BloomFilter bloomFilter;
+
+    /**
+     * Dictionary of the value codes in the leaves, {null} while the leaves
+     * store the values themselves.
+     */
+    private ValueDictionary valueDictionary;
+
+    /**
+     * Whether new leaves pack their keys, see {enableKeyCompression()}.
+     */
+    private boolean keyCompression;
+
+    /**
+     * Number of consecutive inserts with ascending keys from which the tree
+     * assumes that keys are appended: inserts descend along the right edge
+     * and full nodes there are split unevenly, the left node keeping 90% of
+     * the entries.
+     */
+    static final int APPEND_RUN = 16;
+
+    private long lastInsertKey = Long.MIN_VALUE;
+
+    private int ascendingInserts;
+
+    /**
+     * Whether the current leaf split happens at the right edge while keys are
+     * appended.
+     */
+    private boolean appendSplit;
+
+    /**
+     * Descent path of the current operation, reused so that operations
+     * without a split do not allocate.
+     */
+    private final Path path = new Path();
+
+    /**
+     * Buffers holding the keys and children of an overflowing inner node
+     * while it is split.
+     */
+    private int[] splitKeys;
+
+    private Node[] splitChildren;
+
+    private long[] splitCounts;
+
+    /**
+     * The leaves trimmed by the current range deletion, at most one at each
+     * end of the range.
+     */
+    private final LeafNode[] rangeLeaves = new LeafNode[2];
+
     public BPlusTree(int capacity) {
         this(new LeafNode(capacity), capacity);
     }
@@ -442,18 +1758,68 @@ public class BPlusTree {
         assert capacity % 2 == 0;
         this.capacity = capacity;
         this.root = root;
+        this.splitKeys = new int[capacity + 1];
+        this.splitChildren = new Node[capacity + 2];
+        this.splitCounts = new long[capacity + 2];
+        linkLeaves(root, null);
     }
 
     public Node rootNode() {
         return root;
     }
 
+    public int capacity() {
+        return capacity;
+    }
+
     public String toString() {
         return new BPlusTreePrinter(this).toString();
     }
 
-    private LeafNode findLeafNode(Integer key, Node node) {
+    private LeafNode findLeafNode(int key, Node node) {
         return findLeafNode(key, node, null);
     }
 
+    /**
+     * Inner nodes on the way from the root to a leaf, together with the
+     * index of the child taken in each of them. Level 0 is the root.
+     */
+    private static class Path {
+
+        /**
+         * Upper bound for the height of a tree, a tree of capacity 2 with
+         * {2^32} keys is 32 levels high.
+         */
+        private static final int MAX_HEIGHT = 40;
+
+        private final InnerNode[] nodes = new InnerNode[MAX_HEIGHT];
+
+        private final int[] indexes = new int[MAX_HEIGHT];
+
+        private int depth;
+
+        void clear() {
+            depth = 0;
+        }
+
+        void push(InnerNode node, int index) {
+            nodes[depth] = node;
+            indexes[depth] = index;
+            depth++;
+        }
+
+        int depth() {
+            return depth;
+        }
+
+        InnerNode node(int level) {
+            return nodes[level];
+        }
+
+        int index(int level) {
+            return indexes[level];
+        }
+
+    }
+
 }
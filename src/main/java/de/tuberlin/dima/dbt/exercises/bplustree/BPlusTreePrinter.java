@@ -3,6 +3,7 @@ package de.tuberlin.dima.dbt.exercises.bplustree;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class BPlusTreePrinter {
 
@@ -12,7 +13,7 @@ public class BPlusTreePrinter {
         root = tree.rootNode();
     }
 
-    BPlusTreePrinter(LeafNode node) {
+    BPlusTreePrinter(Node node) {
         root = node;
     }
 
@@ -37,8 +38,15 @@ public class BPlusTreePrinter {
                      .collect(Collectors.joining(","));
     }
 
+    private String join(Node node) {
+        int[] keys = node.getKeys();
+        return IntStream.range(0, keys.length)
+                        .mapToObj(i -> i < node.getSize() ? String.valueOf(keys[i]) : "")
+                        .collect(Collectors.joining(","));
+    }
+
     private void toString(StringBuffer sb, InnerNode node, int indent) {
-        String keyList = join(node.getKeys());
+        String keyList = join(node);
         sb.append("[");
         sb.append(keyList);
         sb.append("] =>\n");
@@ -50,7 +58,7 @@ public class BPlusTreePrinter {
     }
 
     private void toString(StringBuffer sb, LeafNode node) {
-        String keyList = join(node.getKeys());
+        String keyList = join(node);
         String valueList = join(node.getValues());
         sb.append("[");
         sb.append(keyList);
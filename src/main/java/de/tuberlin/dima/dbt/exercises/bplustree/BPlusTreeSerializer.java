@@ -0,0 +1,344 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary format for saving a {BPlusTree} and loading it again.
+ * <p>
+ * The entries are written in key order, straight from the leaves, and
+ * loading feeds them into a bottom-up rebuild, see {BPlusTree.bulkLoad}.
+ * Neither side holds more than one block of entries in memory.
+ * <p>
+ * Layout, all integers in big-endian byte order:
+ * <p>
+ * {pre}
+ * header: magic, version (1 byte), capacity, entry count (8 bytes), CRC32
+ * block:  payload length, entry count, payload, CRC32 of all of the block
+ * end:    a block with no entries
+ * filter: filter length (0 if none), Bloom filter, CRC32 of both
+ * {pre}
+ * <p>
+ * In the payload, the first key of a block is a zigzag varint and each
+ * further key is the varint of its distance to the previous key. The value
+ * follows its key as the varint of its UTF-8 length plus one, {0} meaning
+ * {null}, and its UTF-8 bytes.
+ * <p>
+ * The Bloom filter of the tree, see {BPlusTree.enableBloomFilter}, follows
+ * the entries, so it is loaded as is instead of being rebuilt. Version 1
+ * had no filter section and is still read.
+ */
+public class BPlusTreeSerializer {
+
+    static final int MAGIC = 0x42505453;
+
+    static final byte VERSION = 2;
+
+    private static final int HEADER_SIZE = 4 + 1 + 4 + 8;
+
+    /**
+     * Size from which a block is completed.
+     */
+    private static final int BLOCK_SIZE = 1 << 16;
+
+    private BPlusTreeSerializer() {
+    }
+
+    /**
+     * Write all entries of the tree to the channel. The tree must not be
+     * modified meanwhile, use {write(Snapshot, ...)} for that.
+     */
+    public static void write(BPlusTree tree, WritableByteChannel channel) throws IOException {
+        tree.flush();
+        write(tree.rootNode(), tree.capacity(), tree.bloomFilter(), channel);
+    }
+
+    /**
+     * Write all entries of the snapshot to the channel, while the tree it
+     * was taken from may continue to be modified. The Bloom filter of the
+     * tree belongs to its current state and is not written.
+     */
+    public static void write(Snapshot snapshot, WritableByteChannel channel) throws IOException {
+        write(snapshot.rootNode(), snapshot.capacity(), null, channel);
+    }
+
+    /**
+     * Read a tree written by {write}.
+     *
+     * @param fillFactor Target fill of the nodes of the rebuilt tree, as for
+     *                   {BPlusTree.bulkLoad}.
+     */
+    public static BPlusTree read(ReadableByteChannel channel, double fillFactor) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE + 1024);
+
+        buffer.limit(HEADER_SIZE + 4);
+        readFully(channel, buffer);
+        buffer.flip();
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a serialized B+ tree");
+        }
+        byte version = buffer.get();
+        if (version != 1 && version != VERSION) {
+            throw new IOException("Unsupported format version " + version);
+        }
+        int capacity = buffer.getInt();
+        long count = buffer.getLong();
+        checkCrc(crc, buffer, 0, HEADER_SIZE);
+
+        BulkLoader loader = new BulkLoader(count, fillFactor, capacity);
+        byte[] bytes = new byte[256];
+        try {
+            while (true) {
+                buffer.clear().limit(8);
+                readFully(channel, buffer);
+                int length = buffer.getInt(0);
+                int entries = buffer.getInt(4);
+                if (length < 0 || entries < 0) {
+                    throw new IOException("Corrupt block header");
+                }
+                if (buffer.capacity() < 8 + length + 4) {
+                    buffer = ByteBuffer.allocate(8 + length + 4).put(buffer.flip());
+                }
+                buffer.limit(8 + length + 4);
+                readFully(channel, buffer);
+                buffer.flip();
+                checkCrc(crc, buffer, 0, 8 + length);
+                if (entries == 0) {
+                    break;
+                }
+
+                buffer.position(8).limit(8 + length);
+                int key = 0;
+                for (int i = 0; i < entries; i++) {
+                    key = i == 0 ? zigzagDecode(readVarint(buffer)) : (int) (key + readVarint(buffer));
+                    int valueLength = (int) readVarint(buffer) - 1;
+                    String value = null;
+                    if (valueLength >= 0) {
+                        if (bytes.length < valueLength) {
+                            bytes = new byte[Math.max(valueLength, 2 * bytes.length)];
+                        }
+                        buffer.get(bytes, 0, valueLength);
+                        value = new String(bytes, 0, valueLength, StandardCharsets.UTF_8);
+                    }
+                    loader.add(key, value);
+                }
+                if (buffer.hasRemaining()) {
+                    throw new IOException("Corrupt block: trailing bytes");
+                }
+            }
+            BPlusTree tree = loader.finish();
+            if (version > 1) {
+                tree.setBloomFilter(readBloomFilter(channel, crc));
+            }
+            return tree;
+        } catch (IllegalArgumentException | IllegalStateException
+                | BufferUnderflowException e) {
+            throw new IOException("Corrupt serialized tree: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return The filter, or {null} if none was written.
+     */
+    private static BloomFilter readBloomFilter(ReadableByteChannel channel, CRC32 crc) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        readFully(channel, header);
+        int length = header.getInt(0);
+        if (length < 0) {
+            throw new IOException("Corrupt filter header");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length + 4).putInt(length);
+        readFully(channel, buffer);
+        checkCrc(crc, buffer, 0, 4 + length);
+        if (length == 0) {
+            return null;
+        }
+        buffer.position(4).limit(4 + length);
+        return BloomFilter.read(buffer);
+    }
+
+    private static void write(Node root, int capacity, BloomFilter bloomFilter,
+                              WritableByteChannel channel) throws IOException {
+        Writer writer = new Writer(channel);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 4);
+        header.putInt(MAGIC).put(VERSION).putInt(capacity).putLong(countEntries(root));
+        header.putInt(crc(header.array(), 0, HEADER_SIZE));
+        header.flip();
+        writeFully(channel, header);
+        writer.writeLeaves(root);
+        writer.finish();
+
+        int length = bloomFilter == null ? 0 : bloomFilter.serializedSize();
+        ByteBuffer filter = ByteBuffer.allocate(4 + length + 4).putInt(length);
+        if (bloomFilter != null) {
+            bloomFilter.write(filter);
+        }
+        filter.putInt(crc(filter.array(), 0, 4 + length));
+        filter.flip();
+        writeFully(channel, filter);
+    }
+
+    private static long countEntries(Node node) {
+        if (node instanceof LeafNode) {
+            return node.getSize();
+        }
+        long count = 0;
+        InnerNode innerNode = (InnerNode) node;
+        for (int i = 0; i <= innerNode.getSize(); i++) {
+            count += countEntries(innerNode.getChildren()[i]);
+        }
+        return count;
+    }
+
+    /**
+     * Collects the entries of one block and writes it once it is full.
+     */
+    private static class Writer {
+
+        private final WritableByteChannel channel;
+
+        private ByteBuffer block = ByteBuffer.allocate(8 + BLOCK_SIZE + 1024);
+
+        private int entries;
+
+        private int previousKey;
+
+        Writer(WritableByteChannel channel) {
+            this.channel = channel;
+            block.position(8);
+        }
+
+        /**
+         * Visit the leaves in key order through the tree structure, without
+         * relying on the sibling links, which snapshots do not have.
+         */
+        void writeLeaves(Node node) throws IOException {
+            if (node instanceof InnerNode) {
+                InnerNode innerNode = (InnerNode) node;
+                for (int i = 0; i <= innerNode.getSize(); i++) {
+                    writeLeaves(innerNode.getChildren()[i]);
+                }
+                return;
+            }
+            LeafNode leaf = (LeafNode) node;
+            for (int i = 0; i < leaf.getSize(); i++) {
+                writeEntry(leaf.key(i), leaf.value(i));
+            }
+        }
+
+        private void writeEntry(int key, String value) throws IOException {
+            byte[] bytes = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+            ensureRemaining(2 * 10 + (bytes == null ? 0 : bytes.length) + 4);
+            if (entries == 0) {
+                writeVarint(block, zigzagEncode(key));
+            } else {
+                writeVarint(block, Integer.toUnsignedLong(key - previousKey));
+            }
+            if (bytes == null) {
+                writeVarint(block, 0);
+            } else {
+                writeVarint(block, bytes.length + 1L);
+                block.put(bytes);
+            }
+            previousKey = key;
+            entries++;
+            if (block.position() - 8 >= BLOCK_SIZE) {
+                finishBlock();
+            }
+        }
+
+        /**
+         * Write the last block, if any, and the empty block that marks the
+         * end.
+         */
+        void finish() throws IOException {
+            if (entries > 0) {
+                finishBlock();
+            }
+            finishBlock();
+        }
+
+        private void finishBlock() throws IOException {
+            int length = block.position() - 8;
+            block.putInt(0, length);
+            block.putInt(4, entries);
+            block.putInt(crc(block.array(), 0, 8 + length));
+            block.flip();
+            writeFully(channel, block);
+            block.clear().position(8);
+            entries = 0;
+        }
+
+        private void ensureRemaining(int bytes) {
+            if (block.remaining() < bytes) {
+                block = ByteBuffer.allocate(block.position() + bytes).put(block.flip());
+            }
+        }
+
+    }
+
+    static void writeVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long readVarint(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static long zigzagEncode(int value) {
+        return Integer.toUnsignedLong((value << 1) ^ (value >> 31));
+    }
+
+    private static int zigzagDecode(long value) {
+        int bits = (int) value;
+        return (bits >>> 1) ^ -(bits & 1);
+    }
+
+    private static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static void checkCrc(CRC32 crc, ByteBuffer buffer, int offset, int length) throws IOException {
+        crc.reset();
+        crc.update(buffer.array(), offset, length);
+        if (buffer.getInt(offset + length) != (int) crc.getValue()) {
+            throw new IOException("Checksum mismatch");
+        }
+    }
+
+    private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Serialized tree ends unexpectedly");
+            }
+        }
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+}
@@ -15,7 +15,7 @@ public class BPlusTreeUtilities {
     /**
      * Constructor for an integer array that can be used for node keys.
      */
-    public static Integer[] keys(Integer... keys) {
+    public static int[] keys(int... keys) {
         return keys;
     }
 
@@ -88,7 +88,7 @@ public class BPlusTreeUtilities {
      *
      * The node stores {CAPACITY} keys and values.
      */
-    public static LeafNode newLeaf(Integer[] keys, String[] values) {
+    public static LeafNode newLeaf(int[] keys, String[] values) {
         return newLeaf(keys, values, CAPACITY);
     }
 
@@ -97,7 +97,7 @@ public class BPlusTreeUtilities {
      *
      * The node stores capacity keys and values.
      */
-    public static LeafNode newLeaf(Integer[] keys, String[] values,
+    public static LeafNode newLeaf(int[] keys, String[] values,
                                    int capacity) {
         return new LeafNode(keys, values, capacity);
     }
@@ -107,7 +107,7 @@ public class BPlusTreeUtilities {
      *
      * The node stores {CAPACITY} keys and {CAPACITY} + 1 values.
      */
-    public static InnerNode newNode(Integer[] keys, Node[] nodes) {
+    public static InnerNode newNode(int[] keys, Node[] nodes) {
         return newNode(keys, nodes, CAPACITY);
     }
 
@@ -116,7 +116,7 @@ public class BPlusTreeUtilities {
      *
      * The node stores capacity keys and capacity + 1 values.
      */
-    public static InnerNode newNode(Integer[] keys, Node[] nodes,
+    public static InnerNode newNode(int[] keys, Node[] nodes,
                                     int capacity) {
         return new InnerNode(keys, nodes, capacity);
     }
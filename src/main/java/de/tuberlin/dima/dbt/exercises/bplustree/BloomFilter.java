@@ -0,0 +1,149 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Blocked Bloom filter over int keys, see {BPlusTree.enableBloomFilter}.
+ * <p>
+ * The bits are divided into blocks of 512 bits, the size of a cache line.
+ * The hash of a key selects one block and sets or tests all of the key's
+ * bits within it, so each operation touches a single cache line instead of
+ * one per hash function. In exchange, the false positive rate is slightly
+ * higher than that of a plain Bloom filter of the same size.
+ * <p>
+ * The size and the number of hash functions follow from the expected number
+ * of keys and the wanted false positive rate. A filter never forgets a key,
+ * so removed keys only lead to more false positives until it is rebuilt.
+ */
+class BloomFilter {
+
+    private static final int BLOCK_BITS = 512;
+
+    private static final int BLOCK_WORDS = BLOCK_BITS / Long.SIZE;
+
+    private final long expectedKeys;
+
+    private final double falsePositiveRate;
+
+    private final int hashes;
+
+    private final int blocks;
+
+    private final long[] words;
+
+    BloomFilter(long expectedKeys, double falsePositiveRate) {
+        if (expectedKeys < 0) {
+            throw new IllegalArgumentException("Invalid number of expected keys " + expectedKeys);
+        }
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException("Invalid false positive rate " + falsePositiveRate);
+        }
+        this.expectedKeys = expectedKeys;
+        this.falsePositiveRate = falsePositiveRate;
+        // m = -n ln p / (ln 2)^2 and k = m / n ln 2
+        double bitsPerKey = -Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        long bits = (long) Math.ceil(Math.max(1, expectedKeys) * bitsPerKey);
+        this.blocks = (int) Math.min((bits + BLOCK_BITS - 1) / BLOCK_BITS, Integer.MAX_VALUE / BLOCK_WORDS);
+        this.hashes = Math.max(1, (int) Math.round(bitsPerKey * Math.log(2)));
+        this.words = new long[blocks * BLOCK_WORDS];
+    }
+
+    long expectedKeys() {
+        return expectedKeys;
+    }
+
+    double falsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    void add(int key) {
+        long hash = mix(key);
+        int base = block(hash) * BLOCK_WORDS;
+        int h1 = (int) hash;
+        int h2 = (int) mix(hash) | 1;
+        for (int i = 0; i < hashes; i++) {
+            int bit = (h1 + i * h2) & (BLOCK_BITS - 1);
+            words[base + (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @return {false} if the key was definitely never added.
+     */
+    boolean mightContain(int key) {
+        long hash = mix(key);
+        int base = block(hash) * BLOCK_WORDS;
+        int h1 = (int) hash;
+        int h2 = (int) mix(hash) | 1;
+        for (int i = 0; i < hashes; i++) {
+            int bit = (h1 + i * h2) & (BLOCK_BITS - 1);
+            if ((words[base + (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void clear() {
+        Arrays.fill(words, 0);
+    }
+
+    /**
+     * Number of bytes written by {write}.
+     */
+    int serializedSize() {
+        return 8 + 8 + 8 * words.length;
+    }
+
+    /**
+     * Write the configuration and the bits of the filter.
+     */
+    void write(ByteBuffer buffer) {
+        buffer.putLong(expectedKeys);
+        buffer.putDouble(falsePositiveRate);
+        for (long word : words) {
+            buffer.putLong(word);
+        }
+    }
+
+    /**
+     * Read a filter written by {write}.
+     */
+    static BloomFilter read(ByteBuffer buffer) throws IOException {
+        BloomFilter filter;
+        try {
+            filter = new BloomFilter(buffer.getLong(), buffer.getDouble());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt Bloom filter: " + e.getMessage(), e);
+        }
+        if (buffer.remaining() != 8 * filter.words.length) {
+            throw new IOException("Corrupt Bloom filter: size mismatch");
+        }
+        for (int i = 0; i < filter.words.length; i++) {
+            filter.words[i] = buffer.getLong();
+        }
+        return filter;
+    }
+
+    /**
+     * The block selected by the upper half of the hash.
+     */
+    private int block(long hash) {
+        return (int) (((hash >>> 32) * blocks) >>> 32);
+    }
+
+    /**
+     * Finalizer of MurmurHash3, spreads every input bit over the result.
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+}
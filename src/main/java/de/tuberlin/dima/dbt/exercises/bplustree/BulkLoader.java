@@ -0,0 +1,164 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.Arrays;
+
+/**
+ * Builds a B+ tree bottom-up from a stream of entries in ascending key
+ * order, see {BPlusTree.bulkLoad}.
+ * <p>
+ * Since the number of entries is known in advance, the number of nodes on
+ * each level and the size of each node can be computed before the first
+ * entry arrives. Each completed node is handed to the level above right
+ * away, so besides the tree itself only one partially filled node per level
+ * is kept and the entries never have to be buffered as a whole.
+ */
+class BulkLoader {
+
+    private final int capacity;
+
+    private final long count;
+
+    /**
+     * Number of nodes on each level, starting with the leaves.
+     */
+    private final long[] nodeCounts;
+
+    /**
+     * Per level, the index of the node being filled and the children and
+     * smallest keys collected for it so far. The leaf level only uses
+     * {leafKeys} and {leafValues} instead.
+     */
+    private final long[] nodeIndexes;
+
+    private final Node[][] children;
+
+    private final int[][] minKeys;
+
+    private final int[] filled;
+
+    private final int[] leafKeys;
+
+    private final String[] leafValues;
+
+    private long added;
+
+    private int lastKey;
+
+    private Node root;
+
+    /**
+     * @param count      Exact number of entries that will be added.
+     * @param fillFactor Target fill of each node, between 0 (exclusive) and
+     *                   1 (inclusive); values below 0.5 act as 0.5.
+     */
+    BulkLoader(long count, double fillFactor, int capacity) {
+        if (!(fillFactor > 0 && fillFactor <= 1)) {
+            throw new IllegalArgumentException("Invalid fill factor " + fillFactor);
+        }
+        this.capacity = capacity;
+        this.count = count;
+        int target = Math.max(capacity / 2, Math.min(capacity, (int) Math.round(capacity * fillFactor)));
+
+        long[] counts = new long[64];
+        int levels = 1;
+        counts[0] = nodeCount(count, target, capacity / 2);
+        while (counts[levels - 1] > 1) {
+            counts[levels] = nodeCount(counts[levels - 1], target + 1, capacity / 2 + 1);
+            levels++;
+        }
+        this.nodeCounts = Arrays.copyOf(counts, levels);
+        this.nodeIndexes = new long[levels];
+        this.children = new Node[levels][];
+        this.minKeys = new int[levels][];
+        this.filled = new int[levels];
+        for (int level = 1; level < levels; level++) {
+            children[level] = new Node[capacity + 1];
+            minKeys[level] = new int[capacity + 1];
+        }
+        this.leafKeys = new int[capacity];
+        this.leafValues = new String[capacity];
+    }
+
+    /**
+     * Number of nodes needed to pack {count} entries at roughly {target}
+     * entries per node without any node falling below {minimum}.
+     */
+    static long nodeCount(long count, int target, int minimum) {
+        long nodeCount = Math.max(1, (count + target - 1) / target);
+        while (nodeCount > 1 && count / nodeCount < minimum) {
+            nodeCount--;
+        }
+        return nodeCount;
+    }
+
+    /**
+     * Add the next entry, its key has to be larger than all keys added
+     * before.
+     */
+    void add(int key, String value) {
+        if (added == count) {
+            throw new IllegalStateException("Expected only " + count + " entries");
+        }
+        if (added > 0 && key <= lastKey) {
+            throw new IllegalArgumentException("Keys are not strictly ascending at index " + added);
+        }
+        leafKeys[filled[0]] = key;
+        leafValues[filled[0]] = value;
+        filled[0]++;
+        added++;
+        lastKey = key;
+        if (filled[0] == sizeOf(0, nodeIndexes[0])) {
+            LeafNode leaf = new LeafNode(Arrays.copyOf(leafKeys, filled[0]),
+                                         Arrays.copyOf(leafValues, filled[0]), capacity);
+            Arrays.fill(leafValues, null);
+            filled[0] = 0;
+            nodeIndexes[0]++;
+            completed(0, leaf, leaf.getKeys()[0]);
+        }
+    }
+
+    /**
+     * @return The tree built from all entries.
+     */
+    BPlusTree finish() {
+        if (added != count) {
+            throw new IllegalStateException("Expected " + count + " entries but got " + added);
+        }
+        return root == null ? new BPlusTree(capacity) : new BPlusTree(root, capacity);
+    }
+
+    /**
+     * Number of entries or children of the given node on the given level.
+     */
+    private int sizeOf(int level, long index) {
+        long total = level == 0 ? count : nodeCounts[level - 1];
+        long nodes = nodeCounts[level];
+        return (int) (total / nodes + (index < total % nodes ? 1 : 0));
+    }
+
+    /**
+     * Hand a completed node on the given level to its parent.
+     */
+    private void completed(int level, Node node, int minKey) {
+        if (level == nodeCounts.length - 1) {
+            root = node;
+            return;
+        }
+        int parentLevel = level + 1;
+        int size = filled[parentLevel];
+        children[parentLevel][size] = node;
+        minKeys[parentLevel][size] = minKey;
+        filled[parentLevel] = ++size;
+        if (size == sizeOf(parentLevel, nodeIndexes[parentLevel])) {
+            // The smallest key of each child but the first becomes a separator
+            InnerNode parent = new InnerNode(Arrays.copyOfRange(minKeys[parentLevel], 1, size),
+                                             Arrays.copyOf(children[parentLevel], size),
+                                             capacity);
+            Arrays.fill(children[parentLevel], null);
+            filled[parentLevel] = 0;
+            nodeIndexes[parentLevel]++;
+            completed(parentLevel, parent, minKeys[parentLevel][0]);
+        }
+    }
+
+}
@@ -0,0 +1,965 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Latch-free B+ tree following the design of the Bw-tree.
+ * <p>
+ * Nodes are pages that refer to each other by logical page ids. A mapping
+ * table translates a page id to the current state of the page, which is an
+ * immutable chain of delta records on top of a base page. Writers never
+ * modify a state: they prepend a delta record and install it with a single
+ * compare-and-set on the mapping table, readers never wait. Once a chain
+ * grows longer than {MAX_CHAIN} records, the writer that noticed replaces it
+ * by a consolidated base page.
+ * <p>
+ * Splits and merges are structure modifications made of several such
+ * steps. A split installs a split delta that hands the upper half of the
+ * page to a new page, reachable through the right link until the second
+ * step posts an index entry for it to the parent. A merge marks the right
+ * page as removed, installs a merge delta on its left sibling and finally
+ * deletes the index entry of the removed page from the parent. Every thread
+ * that finds an unfinished modification on its way completes it, so no
+ * thread ever waits for another one. Merges are best effort: an underfull
+ * page is only merged with a neighbour under the same parent, and only if
+ * the result fits into one page.
+ * <p>
+ * Page ids of removed pages are not reused, so the mapping table grows with
+ * the number of splits. Old states are reclaimed by the garbage collector.
+ */
+public class BwTree {
+
+    /**
+     * Number of delta records after which a chain is consolidated.
+     */
+    private static final int MAX_CHAIN = 8;
+
+    /**
+     * Page id of a missing page, e.g. the right sibling of the last page on
+     * a level.
+     */
+    private static final int NONE = -1;
+
+    /**
+     * Exclusive upper bound of the key range of the last page on a level.
+     */
+    private static final long INFINITY = Integer.MAX_VALUE + 1L;
+
+    /**
+     * The mapping table is made of chunks of {2^CHUNK_BITS} page ids that
+     * are allocated on demand.
+     */
+    private static final int CHUNK_BITS = 14;
+
+    private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+    /**
+     * Result of {find} if the key is not stored in a leaf page, to tell it
+     * apart from a {null} value.
+     */
+    private static final Object ABSENT = new Object();
+
+    private final int capacity;
+
+    private final AtomicReferenceArray<AtomicReferenceArray<Page>> mappingTable =
+            new AtomicReferenceArray<>(1 << (31 - CHUNK_BITS));
+
+    private final AtomicInteger nextPage = new AtomicInteger();
+
+    private final AtomicInteger root = new AtomicInteger();
+
+    public BwTree(int capacity) {
+        this(new LeafNode(capacity), capacity);
+    }
+
+    /**
+     * Create a tree with the entries and the structure of the given nodes.
+     */
+    public BwTree(Node root, int capacity) {
+        assert capacity % 2 == 0;
+        this.capacity = capacity;
+        int[] rightmost = new int[64];
+        Arrays.fill(rightmost, NONE);
+        this.root.set(load(root, 0, Integer.MIN_VALUE, INFINITY, rightmost));
+    }
+
+    /**
+     * The current state as a tree of nodes. Only consistent while no writer
+     * is active, and pages not yet posted to their parent are left out.
+     */
+    public Node rootNode() {
+        return toNode(root.get());
+    }
+
+    /**
+     * Print the tree. Only consistent while no writer is active.
+     */
+    public String toString() {
+        return new BPlusTreePrinter(rootNode()).toString();
+    }
+
+    /**
+     * Lookup the value stored under the given key.
+     *
+     * @return The stored value, or {null} if the key does not exist.
+     */
+    public String lookup(Integer key) {
+        Path path = new Path();
+        descend(key, path);
+        Object value = find(path.leaf, key);
+        return value == ABSENT ? null : (String) value;
+    }
+
+    /**
+     * Insert the key/value pair into the tree.
+     */
+    public void insert(int key, String value) {
+        Path path = new Path();
+        int pid = descend(key, path);
+        Page page = path.leaf;
+        while (true) {
+            int size = find(page, key) == ABSENT ? page.size + 1 : page.size;
+            Page delta = new InsertDelta(page, key, value, size);
+            if (install(pid, page, delta)) {
+                maintain(pid, delta, path, path.depth);
+                return;
+            }
+            // Another writer got in between, only descend again if the
+            // key moved to another page
+            page = page(pid);
+            if (page instanceof RemoveDelta || key >= page.high) {
+                pid = descend(key, path);
+                page = path.leaf;
+            }
+        }
+    }
+
+    /**
+     * Delete the key/value pair from the tree.
+     *
+     * @return The original value, or {null} if the key does not exist.
+     */
+    public String delete(Integer key) {
+        Path path = new Path();
+        int pid = descend(key, path);
+        Page page = path.leaf;
+        while (true) {
+            Object value = find(page, key);
+            if (value == ABSENT) {
+                return null; // Key not found
+            }
+            Page delta = new DeleteDelta(page, key, page.size - 1);
+            if (install(pid, page, delta)) {
+                maintain(pid, delta, path, path.depth);
+                return (String) value;
+            }
+            page = page(pid);
+            if (page instanceof RemoveDelta || key >= page.high) {
+                pid = descend(key, path);
+                page = path.leaf;
+            }
+        }
+    }
+
+    ///// Traversal
+
+    /**
+     * Descend to the leaf page responsible for the given key, completing
+     * unfinished structure modifications on the way. The page ids of the
+     * pages passed are recorded in the path, the state of the leaf page is
+     * left in {path.leaf}.
+     *
+     * @return The page id of the leaf page.
+     */
+    private int descend(int key, Path path) {
+        restart:
+        while (true) {
+            path.depth = 0;
+            int pid = root.get();
+            Page page = page(pid);
+            while (true) {
+                if (page instanceof RemoveDelta) {
+                    RemoveDelta removed = (RemoveDelta) page;
+                    if (removed.left == NONE) {
+                        // A retired root, make its only child the root
+                        root.compareAndSet(pid, route(removed.next, key));
+                    } else {
+                        int target = completeMerge(pid, removed);
+                        if (path.depth > 0) {
+                            removeIndexEntry(path, path.depth - 1, pid, key, target);
+                        }
+                    }
+                    continue restart;
+                }
+                if (key >= page.high) {
+                    // The page was split and the parent does not know yet
+                    if (path.depth == 0) {
+                        growRoot(pid, page);
+                        continue restart;
+                    }
+                    postIndexEntry(path, path.depth - 1, pid, (int) page.high, page.right, key);
+                    pid = page.right;
+                    page = page(pid);
+                    continue;
+                }
+                assert key >= page.low;
+                if (page.leaf) {
+                    path.pids[path.depth] = pid;
+                    path.leaf = page;
+                    return pid;
+                }
+                path.push(pid);
+                pid = route(page, key);
+                page = page(pid);
+            }
+        }
+    }
+
+    /**
+     * Search a leaf page.
+     *
+     * @return The value stored under the key, or {ABSENT}.
+     */
+    private static Object find(Page page, int key) {
+        while (true) {
+            if (page instanceof InsertDelta) {
+                InsertDelta insert = (InsertDelta) page;
+                if (insert.key == key) {
+                    return insert.value;
+                }
+            } else if (page instanceof DeleteDelta) {
+                if (((DeleteDelta) page).key == key) {
+                    return ABSENT;
+                }
+            } else if (page instanceof MergeDelta) {
+                MergeDelta merge = (MergeDelta) page;
+                if (key >= merge.separator) {
+                    page = merge.merged;
+                    continue;
+                }
+            } else if (page instanceof LeafBase) {
+                LeafBase base = (LeafBase) page;
+                int index = Arrays.binarySearch(base.keys, key);
+                return index >= 0 ? base.values[index] : ABSENT;
+            }
+            page = page.next;
+        }
+    }
+
+    /**
+     * Search an inner page.
+     *
+     * @return The page id of the child responsible for the key.
+     */
+    private static int route(Page page, int key) {
+        if (page instanceof IndexEntryDelta) {
+            IndexEntryDelta entry = (IndexEntryDelta) page;
+            int child = route(entry.next, key);
+            return child == entry.splitChild && key >= entry.separator ? entry.child : child;
+        } else if (page instanceof IndexDeleteDelta) {
+            IndexDeleteDelta delete = (IndexDeleteDelta) page;
+            int child = route(delete.next, key);
+            return child == delete.removed ? delete.replacement : child;
+        } else if (page instanceof MergeDelta) {
+            MergeDelta merge = (MergeDelta) page;
+            return route(key >= merge.separator ? merge.merged : merge.next, key);
+        } else if (page instanceof InnerBase) {
+            InnerBase base = (InnerBase) page;
+            return base.children[childIndex(base.keys, key)];
+        }
+        return route(page.next, key);
+    }
+
+    private static int childIndex(int[] keys, int key) {
+        int index = Arrays.binarySearch(keys, key);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    ///// Structure modifications
+
+    /**
+     * Split, merge or consolidate the page after the given state was
+     * installed, as needed.
+     */
+    private void maintain(int pid, Page state, Path path, int level) {
+        if (state.size > capacity) {
+            split(pid, path, level);
+        } else if (level == 0 && !state.leaf && state.size == 0) {
+            collapseRoot(pid);
+        } else if (!(state.size < capacity / 2 && merge(pid, path, level))
+                && state.length > MAX_CHAIN) {
+            consolidate(pid, state);
+        }
+    }
+
+    /**
+     * Replace the state of the page by a base page without deltas.
+     *
+     * @return The new state, or {null} if the page changed in the meantime.
+     */
+    private Page consolidate(int pid, Page page) {
+        if (page instanceof RemoveDelta) {
+            return null;
+        }
+        Page base = page.leaf ? buildLeaf(page) : buildInner(page);
+        return install(pid, page, base) ? base : null;
+    }
+
+    /**
+     * Move the upper half of an overfull page to a new page and post an
+     * index entry for it to the parent.
+     */
+    private void split(int pid, Path path, int level) {
+        Page page = page(pid);
+        if (page instanceof RemoveDelta || page.size <= capacity) {
+            return;
+        }
+
+        // The split delta goes on top of the consolidated page
+        Page base = page.leaf ? buildLeaf(page) : buildInner(page);
+        int half = base.size / 2;
+        int separator;
+        Page right;
+        if (base instanceof LeafBase) {
+            LeafBase leaf = (LeafBase) base;
+            separator = leaf.keys[half];
+            right = new LeafBase(Arrays.copyOfRange(leaf.keys, half, leaf.size),
+                                 Arrays.copyOfRange(leaf.values, half, leaf.size),
+                                 separator, base.high, base.right);
+        } else {
+            // The middle key moves up
+            InnerBase inner = (InnerBase) base;
+            separator = inner.keys[half];
+            right = new InnerBase(Arrays.copyOfRange(inner.keys, half + 1, inner.size),
+                                  Arrays.copyOfRange(inner.children, half + 1, inner.size + 1),
+                                  separator, base.high, base.right);
+        }
+        // If the split fails, the page id stays unused
+        int rightPid = allocate(right);
+        Page delta = new SplitDelta(base, separator, rightPid, half);
+        if (!install(pid, page, delta)) {
+            return;
+        }
+
+        if (level == 0) {
+            growRoot(pid, delta);
+        } else {
+            postIndexEntry(path, level - 1, pid, separator, rightPid, separator);
+        }
+    }
+
+    /**
+     * Make the page that took over the keys from {separator} on from a
+     * split page known to the parent on the given level of the path.
+     *
+     * @param probe A key routed to the split page that is not smaller than
+     *              the separator.
+     */
+    private void postIndexEntry(Path path, int level, int splitPid, int separator, int pid, int probe) {
+        int parentPid = path.pids[level];
+        while (true) {
+            Page parent = page(parentPid);
+            probe = (int) Math.max(probe, parent.low);
+            if (parent instanceof RemoveDelta || probe >= parent.high || route(parent, probe) != splitPid) {
+                return; // Already posted, or left to a later traversal
+            }
+            Page delta = new IndexEntryDelta(parent, separator, pid, splitPid);
+            if (install(parentPid, parent, delta)) {
+                maintain(parentPid, delta, path, level);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Put a new root above the given root page, which was split.
+     */
+    private void growRoot(int pid, Page page) {
+        if (root.get() != pid) {
+            return;
+        }
+        Page newRoot = new InnerBase(new int[] {(int) page.high}, new int[] {pid, page.right},
+                                     Integer.MIN_VALUE, INFINITY, NONE);
+        root.compareAndSet(pid, allocate(newRoot));
+    }
+
+    /**
+     * Merge an underfull page into its left sibling, or merge the right
+     * sibling into the page if it is the first child of its parent.
+     *
+     * @return Whether two pages were merged.
+     */
+    private boolean merge(int pid, Path path, int level) {
+        if (level == 0) {
+            return false;
+        }
+        Page page = page(pid);
+        Page parent = page(path.pids[level - 1]);
+        if (page instanceof RemoveDelta || parent instanceof RemoveDelta) {
+            return false;
+        }
+        if (page.low > parent.low) {
+            return merge(route(parent, (int) page.low - 1), pid, path, level);
+        }
+        return page.right != NONE && merge(pid, page.right, path, level);
+    }
+
+    /**
+     * Merge the right page into the left one, if both are neighbours under
+     * the same parent and fit into one page.
+     */
+    private boolean merge(int left, int right, Path path, int level) {
+        Page parent = page(path.pids[level - 1]);
+        Page leftPage = page(left);
+        Page rightPage = page(right);
+        if (parent instanceof RemoveDelta || leftPage instanceof RemoveDelta
+                || rightPage instanceof RemoveDelta
+                || rightPage.low <= parent.low || rightPage.low >= parent.high
+                || route(parent, (int) rightPage.low) != right
+                || route(parent, (int) rightPage.low - 1) != left
+                || leftPage.high != rightPage.low || leftPage.right != right
+                || leftPage.size + rightPage.size + (leftPage.leaf ? 0 : 1) > capacity) {
+            return false;
+        }
+
+        // From here on the right page does not change anymore, all threads
+        // that meet it help to finish the merge
+        RemoveDelta removed = new RemoveDelta(rightPage, left);
+        if (!install(right, rightPage, removed)) {
+            return false;
+        }
+        int target = completeMerge(right, removed);
+        removeIndexEntry(path, level - 1, right, (int) rightPage.low, target);
+        return true;
+    }
+
+    /**
+     * Install the merge delta for a removed page on the page left of it,
+     * unless some other thread did so already.
+     *
+     * @return The page id of the page that took over the removed one.
+     */
+    private int completeMerge(int pid, RemoveDelta removed) {
+        int target = removed.left;
+        while (true) {
+            Page page = page(target);
+            if (page instanceof RemoveDelta && ((RemoveDelta) page).left == NONE) {
+                // The left page became the root and was retired since, which
+                // its parent only allowed once this merge was complete
+                return target;
+            } else if (page instanceof RemoveDelta) {
+                // The left page is being merged itself, finish that first
+                RemoveDelta left = (RemoveDelta) page;
+                completeMerge(target, left);
+                target = left.left;
+            } else if (page.high < removed.low) {
+                // The left page was split
+                target = page.right;
+            } else if (page.high == removed.low && page.right == pid) {
+                if (install(target, page, new MergeDelta(page, (int) removed.low, removed.next))) {
+                    return target;
+                }
+            } else {
+                return target;
+            }
+        }
+    }
+
+    /**
+     * Redirect the keys that the parent on the given level of the path
+     * routes to a removed page to the page that took it over.
+     *
+     * @param probe A key routed to the removed page.
+     */
+    private void removeIndexEntry(Path path, int level, int removedPid, int probe, int target) {
+        int parentPid = path.pids[level];
+        while (true) {
+            Page parent = page(parentPid);
+            if (parent instanceof RemoveDelta || probe < parent.low || probe >= parent.high
+                    || route(parent, probe) != removedPid) {
+                return; // Already removed, or left to a later traversal
+            }
+            // Unless it was the first child, the parent loses an entry
+            boolean first = route(parent, (int) parent.low) == removedPid;
+            Page delta = new IndexDeleteDelta(parent, removedPid, target,
+                                              first ? parent.size : parent.size - 1);
+            if (install(parentPid, parent, delta)) {
+                maintain(parentPid, delta, path, level);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Replace an inner root page with a single child by the child. The root
+     * is marked as removed first, so nobody changes it any more.
+     */
+    private void collapseRoot(int pid) {
+        Page page = page(pid);
+        if (root.get() != pid || page.high != INFINITY) {
+            return;
+        }
+        Page base = consolidate(pid, page);
+        if (base == null || base.size > 0) {
+            return;
+        }
+        if (install(pid, base, new RemoveDelta(base, NONE))) {
+            root.compareAndSet(pid, ((InnerBase) base).children[0]);
+        }
+    }
+
+    ///// Consolidation
+
+    /**
+     * The entries of a leaf page as a base page.
+     */
+    private static LeafBase buildLeaf(Page page) {
+        // Collect the newest delta for each key down to the base page
+        int[] keys = new int[page.length];
+        String[] values = new String[page.length];
+        boolean[] deletes = new boolean[page.length];
+        int count = 0;
+        Page current = page;
+        LeafBase base;
+        while (true) {
+            if (current instanceof InsertDelta || current instanceof DeleteDelta) {
+                boolean delete = current instanceof DeleteDelta;
+                int key = delete ? ((DeleteDelta) current).key : ((InsertDelta) current).key;
+                int index = 0;
+                while (index < count && keys[index] < key) {
+                    index++;
+                }
+                if (index == count || keys[index] != key) {
+                    System.arraycopy(keys, index, keys, index + 1, count - index);
+                    System.arraycopy(values, index, values, index + 1, count - index);
+                    System.arraycopy(deletes, index, deletes, index + 1, count - index);
+                    keys[index] = key;
+                    values[index] = delete ? null : ((InsertDelta) current).value;
+                    deletes[index] = delete;
+                    count++;
+                }
+            } else if (current instanceof MergeDelta) {
+                LeafBase left = buildLeaf(current.next);
+                LeafBase right = buildLeaf(((MergeDelta) current).merged);
+                int[] mergedKeys = Arrays.copyOf(left.keys, left.size + right.size);
+                String[] mergedValues = Arrays.copyOf(left.values, mergedKeys.length);
+                System.arraycopy(right.keys, 0, mergedKeys, left.size, right.size);
+                System.arraycopy(right.values, 0, mergedValues, left.size, right.size);
+                base = new LeafBase(mergedKeys, mergedValues, current.low, current.high, current.right);
+                break;
+            } else if (current instanceof LeafBase) {
+                base = (LeafBase) current;
+                break;
+            }
+            current = current.next;
+        }
+
+        // Merge the deltas into the entries of the base page
+        int[] mergedKeys = new int[base.size + count];
+        String[] mergedValues = new String[mergedKeys.length];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < base.size || j < count) {
+            if (j == count || (i < base.size && base.keys[i] < keys[j])) {
+                mergedKeys[size] = base.keys[i];
+                mergedValues[size++] = base.values[i++];
+            } else {
+                if (i < base.size && base.keys[i] == keys[j]) {
+                    i++;
+                }
+                if (!deletes[j]) {
+                    mergedKeys[size] = keys[j];
+                    mergedValues[size++] = values[j];
+                }
+                j++;
+            }
+        }
+        // Entries moved away by a split are dropped
+        while (size > 0 && mergedKeys[size - 1] >= page.high) {
+            size--;
+        }
+        return new LeafBase(Arrays.copyOf(mergedKeys, size), Arrays.copyOf(mergedValues, size),
+                            page.low, page.high, page.right);
+    }
+
+    /**
+     * The index entries of an inner page as a base page.
+     */
+    private static InnerBase buildInner(Page page) {
+        int[] keys;
+        int[] children;
+        if (page instanceof InnerBase) {
+            return (InnerBase) page;
+        } else if (page instanceof MergeDelta) {
+            // The separator of the merged page goes between the entries
+            MergeDelta merge = (MergeDelta) page;
+            InnerBase left = buildInner(merge.next);
+            InnerBase right = buildInner(merge.merged);
+            keys = Arrays.copyOf(left.keys, left.size + 1 + right.size);
+            keys[left.size] = merge.separator;
+            System.arraycopy(right.keys, 0, keys, left.size + 1, right.size);
+            children = Arrays.copyOf(left.children, keys.length + 1);
+            System.arraycopy(right.children, 0, children, left.size + 1, right.size + 1);
+        } else if (page instanceof SplitDelta) {
+            InnerBase base = buildInner(page.next);
+            int index = childIndex(base.keys, ((SplitDelta) page).separator - 1);
+            keys = Arrays.copyOf(base.keys, index);
+            children = Arrays.copyOf(base.children, index + 1);
+        } else if (page instanceof IndexEntryDelta) {
+            // Split the range of the split child at the separator
+            IndexEntryDelta entry = (IndexEntryDelta) page;
+            InnerBase base = buildInner(entry.next);
+            keys = base.keys;
+            children = base.children.clone();
+            for (int i = children.length - 1; i >= 0; i--) {
+                if (children[i] != entry.splitChild) {
+                    continue;
+                }
+                if (i > 0 && entry.separator <= keys[i - 1]) {
+                    children[i] = entry.child;
+                } else if (i == keys.length || entry.separator < keys[i]) {
+                    keys = insert(keys, i, entry.separator);
+                    children = insert(children, i + 1, entry.child);
+                }
+            }
+        } else if (page instanceof IndexDeleteDelta) {
+            IndexDeleteDelta delete = (IndexDeleteDelta) page;
+            InnerBase base = buildInner(delete.next);
+            keys = base.keys;
+            children = base.children.clone();
+            for (int i = 0; i < children.length; i++) {
+                if (children[i] == delete.removed) {
+                    children[i] = delete.replacement;
+                }
+            }
+        } else {
+            return buildInner(page.next);
+        }
+
+        // Adjacent entries for the same child are joined, and entries for
+        // keys below the range of the page are dropped
+        int first = 0;
+        while (first < keys.length && keys[first] <= page.low) {
+            first++;
+        }
+        int[] newKeys = new int[keys.length - first];
+        int[] newChildren = new int[newKeys.length + 1];
+        newChildren[0] = children[first];
+        int size = 0;
+        for (int i = first; i < keys.length; i++) {
+            if (children[i + 1] != newChildren[size]) {
+                newKeys[size++] = keys[i];
+                newChildren[size] = children[i + 1];
+            }
+        }
+        return new InnerBase(Arrays.copyOf(newKeys, size), Arrays.copyOf(newChildren, size + 1),
+                             page.low, page.high, page.right);
+    }
+
+    private static int[] insert(int[] array, int index, int value) {
+        int[] result = new int[array.length + 1];
+        System.arraycopy(array, 0, result, 0, index);
+        result[index] = value;
+        System.arraycopy(array, index, result, index + 1, array.length - index);
+        return result;
+    }
+
+    ///// Mapping table
+
+    private Page page(int pid) {
+        return mappingTable.get(pid >>> CHUNK_BITS).get(pid & CHUNK_MASK);
+    }
+
+    private boolean install(int pid, Page expected, Page state) {
+        return mappingTable.get(pid >>> CHUNK_BITS).compareAndSet(pid & CHUNK_MASK, expected, state);
+    }
+
+    /**
+     * Assign a new page id to the given state. The page becomes visible to
+     * other threads once a state referring to it is installed.
+     */
+    private int allocate(Page state) {
+        int pid = nextPage.getAndIncrement();
+        if (pid < 0) {
+            throw new IllegalStateException("Mapping table is full");
+        }
+        int chunk = pid >>> CHUNK_BITS;
+        if (mappingTable.get(chunk) == null) {
+            mappingTable.compareAndSet(chunk, null, new AtomicReferenceArray<>(1 << CHUNK_BITS));
+        }
+        mappingTable.get(chunk).set(pid & CHUNK_MASK, state);
+        return pid;
+    }
+
+    /**
+     * Create the pages for the given node and its subtree. The page created
+     * last on each level is the right sibling of the next one.
+     *
+     * @return The page id of the node.
+     */
+    private int load(Node node, int level, long low, long high, int[] rightmost) {
+        int[] keys = Arrays.copyOf(node.getKeys(), node.getSize());
+        Page page;
+        if (node instanceof LeafNode) {
+            String[] values = Arrays.copyOf(((LeafNode) node).getValues(), node.getSize());
+            page = new LeafBase(keys, values, low, high, rightmost[level]);
+        } else {
+            // Children from right to left, so their right siblings exist
+            Node[] nodes = ((InnerNode) node).getChildren();
+            int[] children = new int[keys.length + 1];
+            for (int i = keys.length; i >= 0; i--) {
+                children[i] = load(nodes[i], level + 1, i == 0 ? low : keys[i - 1],
+                                   i == keys.length ? high : keys[i], rightmost);
+            }
+            page = new InnerBase(keys, children, low, high, rightmost[level]);
+        }
+        rightmost[level] = allocate(page);
+        return rightmost[level];
+    }
+
+    private Node toNode(int pid) {
+        Page page = page(pid);
+        if (page.leaf) {
+            LeafBase base = buildLeaf(page);
+            return new LeafNode(base.keys, base.values, Math.max(capacity, base.size));
+        }
+        InnerBase base = buildInner(page);
+        Node[] children = new Node[base.children.length];
+        for (int i = 0; i < children.length; i++) {
+            children[i] = toNode(base.children[i]);
+        }
+        return new InnerNode(base.keys, children, Math.max(capacity, base.size));
+    }
+
+    ///// Pages
+
+    /**
+     * State of a page: a base page or a delta record on top of an older
+     * state. States are immutable.
+     */
+    private abstract static class Page {
+
+        /**
+         * The state this delta record applies to, {null} for a base page.
+         */
+        final Page next;
+
+        final boolean leaf;
+
+        /**
+         * Inclusive lower bound of the keys of this page, it never changes.
+         */
+        final long low;
+
+        /**
+         * Exclusive upper bound of the keys of this page.
+         */
+        final long high;
+
+        /**
+         * Page id of the right sibling on the same level, or {NONE}.
+         */
+        final int right;
+
+        /**
+         * Number of entries of a leaf page, or of keys of an inner page. For
+         * inner pages this is an estimate until the page is consolidated.
+         */
+        final int size;
+
+        /**
+         * Number of delta records, including those of merged pages.
+         */
+        final int length;
+
+        Page(boolean leaf, long low, long high, int right, int size) {
+            this.next = null;
+            this.leaf = leaf;
+            this.low = low;
+            this.high = high;
+            this.right = right;
+            this.size = size;
+            this.length = 0;
+        }
+
+        Page(Page next, long high, int right, int size, int length) {
+            this.next = next;
+            this.leaf = next.leaf;
+            this.low = next.low;
+            this.high = high;
+            this.right = right;
+            this.size = size;
+            this.length = length;
+        }
+
+        Page(Page next, int size) {
+            this(next, next.high, next.right, size, next.length + 1);
+        }
+
+    }
+
+    private static class LeafBase extends Page {
+
+        final int[] keys;
+
+        final String[] values;
+
+        LeafBase(int[] keys, String[] values, long low, long high, int right) {
+            super(true, low, high, right, keys.length);
+            this.keys = keys;
+            this.values = values;
+        }
+
+    }
+
+    private static class InnerBase extends Page {
+
+        final int[] keys;
+
+        final int[] children;
+
+        InnerBase(int[] keys, int[] children, long low, long high, int right) {
+            super(false, low, high, right, keys.length);
+            this.keys = keys;
+            this.children = children;
+        }
+
+    }
+
+    private static class InsertDelta extends Page {
+
+        final int key;
+
+        final String value;
+
+        InsertDelta(Page next, int key, String value, int size) {
+            super(next, size);
+            this.key = key;
+            this.value = value;
+        }
+
+    }
+
+    private static class DeleteDelta extends Page {
+
+        final int key;
+
+        DeleteDelta(Page next, int key, int size) {
+            super(next, size);
+            this.key = key;
+        }
+
+    }
+
+    /**
+     * The keys from {separator} on moved to the page {right}.
+     */
+    private static class SplitDelta extends Page {
+
+        final int separator;
+
+        SplitDelta(Page next, int separator, int right, int size) {
+            super(next, separator, right, size, next.length + 1);
+            this.separator = separator;
+        }
+
+    }
+
+    /**
+     * The page is merged into the page {left}, or was the root if that is
+     * {NONE}. Its state does not change anymore.
+     */
+    private static class RemoveDelta extends Page {
+
+        final int left;
+
+        RemoveDelta(Page next, int left) {
+            super(next, next.size);
+            this.left = left;
+        }
+
+    }
+
+    /**
+     * The keys from {separator} on are those of the state {merged} of a
+     * removed page.
+     */
+    private static class MergeDelta extends Page {
+
+        final int separator;
+
+        final Page merged;
+
+        MergeDelta(Page next, int separator, Page merged) {
+            super(next, merged.high, merged.right, next.size + merged.size + (next.leaf ? 0 : 1),
+                  next.length + merged.length + 1);
+            this.separator = separator;
+            this.merged = merged;
+        }
+
+    }
+
+    /**
+     * The keys from {separator} on that were routed to {splitChild} go to
+     * {child} now.
+     */
+    private static class IndexEntryDelta extends Page {
+
+        final int separator;
+
+        final int child;
+
+        final int splitChild;
+
+        IndexEntryDelta(Page next, int separator, int child, int splitChild) {
+            super(next, next.size + 1);
+            this.separator = separator;
+            this.child = child;
+            this.splitChild = splitChild;
+        }
+
+    }
+
+    /**
+     * The keys that were routed to {removed} go to {replacement} now.
+     */
+    private static class IndexDeleteDelta extends Page {
+
+        final int removed;
+
+        final int replacement;
+
+        IndexDeleteDelta(Page next, int removed, int replacement, int size) {
+            super(next, size);
+            this.removed = removed;
+            this.replacement = replacement;
+        }
+
+    }
+
+    ///// Helpers
+
+    /**
+     * Page ids on the way from the root to a leaf page.
+     */
+    private static class Path {
+
+        int[] pids = new int[16];
+
+        int depth;
+
+        Page leaf;
+
+        void push(int pid) {
+            if (depth + 1 >= pids.length) {
+                pids = Arrays.copyOf(pids, 2 * pids.length);
+            }
+            pids[depth++] = pid;
+        }
+
+    }
+
+}
@@ -0,0 +1,287 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {BPlusTree} for many threads, based on flat combining.
+ * <p>
+ * Instead of taking turns on a lock around the tree, each thread publishes
+ * its operations in a slot chosen by its id and then tries to become the
+ * combiner. The combiner drains the operations of all slots, sorts them by
+ * key and applies them in one pass: consecutive inserts go through
+ * {BPlusTree.insertAll}, so all of them that fall into the same leaf share a
+ * single descent. It completes the future of each operation and keeps going
+ * as long as new operations arrive, while the other threads only wait for
+ * their futures. Like {WriteAheadLog.sync}, the tree is handed over once per
+ * batch rather than once per operation.
+ * <p>
+ * Operations of the same thread are applied in the order they were
+ * published. Dependent stages that are not async run on the combining
+ * thread, so they should be short. The number of slots is fixed, a few per
+ * processor, so threads may share a slot, but a combiner never visits more
+ * slots no matter how many threads ever used the tree.
+ */
+public class CombiningBPlusTree {
+
+    private static final byte INSERT = 1;
+
+    private static final byte DELETE = 2;
+
+    private static final byte LOOKUP = 3;
+
+    private final BPlusTree tree;
+
+    /**
+     * Queues of published operations, a power of two of them. All operations
+     * of a thread go to the same queue, which keeps them in order.
+     */
+    private final Queue<Operation>[] slots;
+
+    /**
+     * Number of operations published but not yet drained by a combiner.
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final AtomicBoolean combining = new AtomicBoolean();
+
+    /**
+     * Operations of the current batch. Like the tree, only used by the
+     * combiner, the flag {combining} hands them over to the next one.
+     */
+    private Operation[] batch = new Operation[64];
+
+    private volatile long batchCount;
+
+    public CombiningBPlusTree(int capacity) {
+        this(new BPlusTree(capacity));
+    }
+
+    /**
+     * Combine the operations on the given tree, which must not be used
+     * directly any more.
+     */
+    @SuppressWarnings("unchecked")
+    public CombiningBPlusTree(BPlusTree tree) {
+        this.tree = tree;
+        int count = Integer.highestOneBit(4 * Runtime.getRuntime().availableProcessors() - 1) * 2;
+        this.slots = (Queue<Operation>[]) new Queue<?>[count];
+        for (int i = 0; i < count; i++) {
+            slots[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    /**
+     * Lookup the value stored under the given key.
+     *
+     * @return The stored value, or {null} if the key does not exist.
+     */
+    public String lookup(Integer key) {
+        return lookupAsync(key).join();
+    }
+
+    /**
+     * Insert the key/value pair and wait until it was applied.
+     */
+    public void insert(int key, String value) {
+        insertAsync(key, value).join();
+    }
+
+    /**
+     * Delete the key and wait until it was applied.
+     *
+     * @return The original value, or {null} if the key does not exist.
+     */
+    public String delete(Integer key) {
+        return deleteAsync(key).join();
+    }
+
+    /**
+     * @return A future for the value stored under the given key, or for
+     * {null} if the key does not exist.
+     */
+    public CompletableFuture<String> lookupAsync(int key) {
+        return publish(new Operation(LOOKUP, key, null));
+    }
+
+    /**
+     * @return A future that completes once the key/value pair was inserted.
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<Void> insertAsync(int key, String value) {
+        // Completes with null like a future of Void
+        CompletableFuture<?> future = publish(new Operation(INSERT, key, value));
+        return (CompletableFuture<Void>) future;
+    }
+
+    /**
+     * @return A future for the original value, or for {null} if the key
+     * does not exist.
+     */
+    public CompletableFuture<String> deleteAsync(int key) {
+        return publish(new Operation(DELETE, key, null));
+    }
+
+    /**
+     * Number of batches applied so far.
+     */
+    public long batchCount() {
+        return batchCount;
+    }
+
+    /**
+     * The combined tree. It must not be used while operations are pending.
+     */
+    BPlusTree tree() {
+        return tree;
+    }
+
+    private Operation publish(Operation operation) {
+        slot().add(operation);
+        pending.incrementAndGet();
+        combine();
+        return operation;
+    }
+
+    /**
+     * The queue of the current thread, chosen by the upper bits of the
+     * Fibonacci hash of its id.
+     */
+    private Queue<Operation> slot() {
+        long hash = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return slots[(int) (hash >>> (64 - Integer.numberOfTrailingZeros(slots.length)))];
+    }
+
+    /**
+     * Become the combiner unless another thread is, and apply batches until
+     * no operations are pending. An operation published while the previous
+     * combiner is about to leave is seen by that combiner's final check.
+     */
+    private void combine() {
+        while (pending.get() > 0 && combining.compareAndSet(false, true)) {
+            try {
+                while (pending.get() > 0) {
+                    applyBatch();
+                }
+            } finally {
+                combining.set(false);
+            }
+        }
+    }
+
+    private void applyBatch() {
+        // Drain all slots, keeping the order of each thread
+        int size = 0;
+        for (Queue<Operation> queue : slots) {
+            Operation operation;
+            while ((operation = queue.poll()) != null) {
+                if (size == batch.length) {
+                    batch = Arrays.copyOf(batch, 2 * size);
+                }
+                batch[size++] = operation;
+            }
+        }
+        pending.addAndGet(-size);
+        if (size == 0) {
+            return;
+        }
+
+        // Sort by key, the position breaks ties to keep that order
+        long[] order = new long[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = ((long) batch[i].key << 32) | i;
+        }
+        Arrays.sort(order);
+
+        int i = 0;
+        while (i < size) {
+            Operation operation = batch[(int) order[i]];
+            if (operation.type == INSERT) {
+                // Consecutive inserts go into the tree together
+                int end = i + 1;
+                while (end < size && batch[(int) order[end]].type == INSERT) {
+                    end++;
+                }
+                applyInserts(order, i, end);
+                i = end;
+            } else {
+                try {
+                    operation.result = operation.type == DELETE ? tree.delete(operation.key)
+                                                                : tree.lookup(operation.key);
+                } catch (RuntimeException e) {
+                    operation.failure = e;
+                }
+                i++;
+            }
+        }
+        batchCount++;
+
+        for (int j = 0; j < size; j++) {
+            Operation operation = batch[j];
+            batch[j] = null;
+            if (operation.failure == null) {
+                operation.complete(operation.result);
+            } else {
+                operation.completeExceptionally(operation.failure);
+            }
+        }
+    }
+
+    private void applyInserts(long[] order, int from, int to) {
+        if (to - from == 1) {
+            Operation operation = batch[(int) order[from]];
+            try {
+                tree.insert(operation.key, operation.value);
+            } catch (RuntimeException e) {
+                operation.failure = e;
+            }
+            return;
+        }
+        // Sorted and stable, so the last value for a key wins
+        int[] keys = new int[to - from];
+        String[] values = new String[to - from];
+        for (int i = from; i < to; i++) {
+            Operation operation = batch[(int) order[i]];
+            keys[i - from] = operation.key;
+            values[i - from] = operation.value;
+        }
+        try {
+            tree.insertAll(keys, values);
+        } catch (RuntimeException e) {
+            for (int i = from; i < to; i++) {
+                batch[(int) order[i]].failure = e;
+            }
+        }
+    }
+
+    /**
+     * A published operation and the future for its result.
+     */
+    private static class Operation extends CompletableFuture<String> {
+
+        final byte type;
+
+        final int key;
+
+        final String value;
+
+        /**
+         * Outcome, set by the combiner before completing the future.
+         */
+        String result;
+
+        RuntimeException failure;
+
+        Operation(byte type, int key, String value) {
+            this.type = type;
+            this.key = key;
+            this.value = value;
+        }
+
+    }
+
+}
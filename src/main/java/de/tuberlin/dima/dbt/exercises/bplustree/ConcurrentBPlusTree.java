@@ -0,0 +1,512 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.Arrays;
+
+/**
+ * Thread-safe B+ tree based on optimistic lock coupling.
+ * <p>
+ * Every node carries a version counter that doubles as its write lock.
+ * Readers never lock: they remember the version of each node on their way
+ * down, check it again after reading from the node, and restart from the
+ * root if a writer got in between. Writers descend the same way and then
+ * lock only the nodes they change: the leaf for an insert or delete that
+ * fits into it, and for a split or merge the affected part of the path plus
+ * the siblings that may lend or absorb entries.
+ * <p>
+ * Node layout and rebalancing rules are the same as for {BPlusTree}. The
+ * leaves are not linked to their siblings, so range scans are only offered
+ * by {BPlusTree}.
+ */
+public class ConcurrentBPlusTree {
+
+    /**
+     * Upper bound for the height of a tree, a tree of capacity 2 with
+     * {2^32} keys is 32 levels high.
+     */
+    private static final int MAX_HEIGHT = 40;
+
+    private static final Restart RESTART = new Restart();
+
+    private final int capacity;
+
+    private volatile Node root;
+
+    /**
+     * Path and split buffers of each writing thread, reused by all of its
+     * operations.
+     */
+    private final ThreadLocal<Path> paths;
+
+    public ConcurrentBPlusTree(int capacity) {
+        this(new LeafNode(capacity), capacity);
+    }
+
+    public ConcurrentBPlusTree(Node root, int capacity) {
+        assert capacity % 2 == 0;
+        this.capacity = capacity;
+        this.root = root;
+        this.paths = ThreadLocal.withInitial(() -> new Path(capacity));
+    }
+
+    public Node rootNode() {
+        return root;
+    }
+
+    /**
+     * Print the tree. Only consistent while no writer is active.
+     */
+    public String toString() {
+        return new BPlusTreePrinter(root).toString();
+    }
+
+    /**
+     * Lookup the value stored under the given key.
+     *
+     * @return The stored value, or {null} if the key does not exist.
+     */
+    public String lookup(Integer key) {
+        while (true) {
+            try {
+                return lookupOptimistic(key);
+            } catch (Restart restart) {
+                // A writer changed a node on the path, start over
+            }
+        }
+    }
+
+    /**
+     * Insert the key/value pair into the B+ tree.
+     */
+    public void insert(int key, String value) {
+        Path path = paths.get();
+        while (true) {
+            try {
+                insertOptimistic(key, value, path);
+                return;
+            } catch (Restart restart) {
+                // A writer changed a node on the path, start over
+                path.unlockAll();
+            }
+        }
+    }
+
+    /**
+     * Delete the key/value pair from the B+ tree.
+     *
+     * @return The original value, or {null} if the key does not exist.
+     */
+    public String delete(Integer key) {
+        Path path = paths.get();
+        while (true) {
+            try {
+                return deleteOptimistic(key, path);
+            } catch (Restart restart) {
+                // A writer changed a node on the path, start over
+                path.unlockAll();
+            }
+        }
+    }
+
+    ///// Optimistic operations
+
+    private String lookupOptimistic(int key) {
+        Node node = root;
+        long version = readLockOrRestart(node);
+        if (node != root) {
+            throw RESTART;
+        }
+        while (node instanceof InnerNode) {
+            InnerNode innerNode = (InnerNode) node;
+            Node child = innerNode.getChildren()[innerNode.childIndex(key)];
+            checkOrRestart(innerNode, version);
+            long childVersion = readLockOrRestart(child);
+            checkOrRestart(innerNode, version);
+            node = child;
+            version = childVersion;
+        }
+        LeafNode leafNode = (LeafNode) node;
+        int index = leafNode.search(key);
+        String value = index >= 0 ? leafNode.getValues()[index] : null;
+        checkOrRestart(leafNode, version);
+        return value;
+    }
+
+    private void insertOptimistic(int key, String value, Path path) {
+        int depth = descend(key, path);
+        LeafNode leafNode = (LeafNode) path.nodes[depth];
+        int index = leafNode.search(key);
+
+        // Replace or insert in place if the leaf has room, locking only the leaf
+        if (index >= 0 || leafNode.getSize() < capacity) {
+            upgradeOrRestart(leafNode, path.versions[depth]);
+            if (index >= 0) {
+                leafNode.getValues()[index] = value;
+            } else {
+                leafNode.insertEntry(-index - 1, key, value);
+            }
+            leafNode.writeUnlock();
+            return;
+        }
+
+        // The split stops at the deepest inner node that has room for one
+        // more key, or creates a new root
+        int top = depth - 1;
+        while (top > 0 && path.nodes[top].getSize() >= capacity) {
+            top--;
+        }
+        top = Math.max(top, 0);
+        for (int level = top; level <= depth; level++) {
+            path.lock(path.nodes[level], path.versions[level]);
+        }
+        try {
+            splitLocked(-index - 1, key, value, depth, path);
+        } finally {
+            path.unlockAll();
+        }
+    }
+
+    private String deleteOptimistic(int key, Path path) {
+        int depth = descend(key, path);
+        LeafNode leafNode = (LeafNode) path.nodes[depth];
+        int index = leafNode.search(key);
+        if (index < 0) {
+            checkOrRestart(leafNode, path.versions[depth]);
+            return null; // Key not found
+        }
+
+        // Delete in place if the leaf does not underflow, locking only the leaf
+        if (depth == 0 || leafNode.getSize() > capacity / 2) {
+            upgradeOrRestart(leafNode, path.versions[depth]);
+            String value = leafNode.getValues()[index];
+            leafNode.removeEntry(index);
+            leafNode.writeUnlock();
+            return value;
+        }
+
+        // Rebalancing stops at the deepest inner node that can lose a key
+        // without underflowing, or at the root
+        int top = depth - 1;
+        while (top > 0 && path.nodes[top].getSize() <= capacity / 2) {
+            top--;
+        }
+
+        // Lock the path below that node together with the siblings that
+        // may lend entries or get merged. Siblings held by another writer
+        // are not waited for, as that writer may need one of our nodes.
+        path.lock(path.nodes[top], path.versions[top]);
+        for (int level = top + 1; level <= depth; level++) {
+            InnerNode parent = (InnerNode) path.nodes[level - 1];
+            int childIndex = path.indexes[level - 1];
+            path.lock(path.nodes[level], path.versions[level]);
+            if (childIndex > 0) {
+                Node left = parent.getChildren()[childIndex - 1];
+                path.lock(left, left.readVersion());
+            }
+            if (childIndex < parent.getSize()) {
+                Node right = parent.getChildren()[childIndex + 1];
+                path.lock(right, right.readVersion());
+            }
+        }
+        try {
+            String value = leafNode.getValues()[index];
+            leafNode.removeEntry(index);
+            rebalanceLocked(top, depth, path);
+            return value;
+        } finally {
+            path.unlockAll();
+        }
+    }
+
+    /**
+     * Descend optimistically to the leaf for the given key, recording the
+     * nodes, their versions and the child taken at each level in the path.
+     *
+     * @return The level of the leaf.
+     */
+    private int descend(int key, Path path) {
+        path.clear();
+        Node node = root;
+        long version = readLockOrRestart(node);
+        if (node != root) {
+            throw RESTART;
+        }
+        int depth = 0;
+        while (node instanceof InnerNode) {
+            InnerNode innerNode = (InnerNode) node;
+            int index = innerNode.childIndex(key);
+            Node child = innerNode.getChildren()[index];
+            checkOrRestart(innerNode, version);
+            long childVersion = readLockOrRestart(child);
+            checkOrRestart(innerNode, version);
+            path.nodes[depth] = innerNode;
+            path.versions[depth] = version;
+            path.indexes[depth] = index;
+            depth++;
+            node = child;
+            version = childVersion;
+        }
+        path.nodes[depth] = node;
+        path.versions[depth] = version;
+        return depth;
+    }
+
+    private static long readLockOrRestart(Node node) {
+        long version = node.readVersion();
+        while ((version & Node.LOCKED) != 0) {
+            Thread.onSpinWait();
+            version = node.readVersion();
+        }
+        if ((version & Node.OBSOLETE) != 0) {
+            throw RESTART;
+        }
+        return version;
+    }
+
+    private static void checkOrRestart(Node node, long version) {
+        if (!node.validate(version)) {
+            throw RESTART;
+        }
+    }
+
+    private static void upgradeOrRestart(Node node, long version) {
+        if (!node.tryUpgrade(version)) {
+            throw RESTART;
+        }
+    }
+
+    ///// Structure modifications, all touched nodes are locked by the caller
+
+    private void splitLocked(int index, int key, String value, int depth, Path path) {
+        LeafNode leafNode = (LeafNode) path.nodes[depth];
+
+        // Split the leaf in half at the median, the left half keeps capacity/2 entries
+        int medianIndex = (capacity + 1) / 2;
+        LeafNode rightLeaf = new LeafNode(capacity);
+        if (index < medianIndex) {
+            leafNode.moveEntriesTo(rightLeaf, medianIndex - 1);
+            leafNode.insertEntry(index, key, value);
+        } else {
+            leafNode.moveEntriesTo(rightLeaf, medianIndex);
+            rightLeaf.insertEntry(index - medianIndex, key, value);
+        }
+
+        // Insert the separator into the parents until one has room for it
+        Node left = leafNode;
+        Node right = rightLeaf;
+        int medianKey = rightLeaf.getKeys()[0];
+        for (int level = depth - 1; level >= 0; level--) {
+            InnerNode parent = (InnerNode) path.nodes[level];
+            int childIndex = path.indexes[level];
+            if (parent.getSize() < capacity) {
+                parent.insertEntry(childIndex, medianKey, right);
+                return;
+            }
+
+            // Collect all capacity + 1 keys and capacity + 2 children and
+            // split them at the median, the median key moves up
+            int[] tempKeys = path.splitKeys;
+            Node[] tempChildren = path.splitChildren;
+            System.arraycopy(parent.getKeys(), 0, tempKeys, 0, childIndex);
+            System.arraycopy(parent.getChildren(), 0, tempChildren, 0, childIndex + 1);
+            tempKeys[childIndex] = medianKey;
+            tempChildren[childIndex + 1] = right;
+            System.arraycopy(parent.getKeys(), childIndex, tempKeys, childIndex + 1, capacity - childIndex);
+            System.arraycopy(parent.getChildren(), childIndex + 1, tempChildren, childIndex + 2, capacity - childIndex);
+
+            int median = capacity / 2;
+            medianKey = tempKeys[median];
+            InnerNode rightNode = new InnerNode(capacity);
+            System.arraycopy(tempKeys, median + 1, rightNode.getKeys(), 0, capacity - median);
+            System.arraycopy(tempChildren, median + 1, rightNode.getChildren(), 0, capacity - median + 1);
+            rightNode.setSize(capacity - median);
+            rightNode.recount(0, capacity - median + 1);
+            System.arraycopy(tempKeys, 0, parent.getKeys(), 0, median);
+            System.arraycopy(tempChildren, 0, parent.getChildren(), 0, median + 1);
+            Arrays.fill(parent.getChildren(), median + 1, capacity + 1, null);
+            parent.setSize(median);
+            parent.recount(0, capacity + 1);
+            // Do not keep removed nodes reachable through the buffer
+            Arrays.fill(tempChildren, null);
+            right = rightNode;
+            left = parent;
+        }
+
+        // The old root was split, it stays locked until the new root is visible
+        root = new InnerNode(new int[]{medianKey}, new Node[]{left, right}, capacity);
+    }
+
+    private void rebalanceLocked(int top, int depth, Path path) {
+        Node node = path.nodes[depth];
+        for (int level = depth - 1; level >= top; level--) {
+            if (node.getSize() >= capacity / 2) {
+                return;
+            }
+            InnerNode parent = (InnerNode) path.nodes[level];
+            int index = path.indexes[level];
+            Node left = index > 0 ? parent.getChildren()[index - 1] : null;
+            Node right = index < parent.getSize() ? parent.getChildren()[index + 1] : null;
+
+            // Try borrowing from the left sibling, then from the right sibling
+            if (left != null && left.getSize() > capacity / 2) {
+                borrowFromLeft(parent, index, left, node);
+                return;
+            }
+            if (right != null && right.getSize() > capacity / 2) {
+                borrowFromRight(parent, index, node, right);
+                return;
+            }
+
+            // Merge the right node into the left one otherwise
+            if (left != null) {
+                merge(parent, index - 1, left, node, path);
+            } else {
+                merge(parent, index, node, right, path);
+            }
+            node = parent;
+        }
+
+        // An empty root is replaced by its only child
+        if (top == 0 && node == path.nodes[0] && node instanceof InnerNode && node.getSize() == 0) {
+            root = ((InnerNode) node).getChildren()[0];
+            path.markObsolete(node);
+        }
+    }
+
+    private void borrowFromLeft(InnerNode parent, int index, Node left, Node node) {
+        if (node instanceof LeafNode) {
+            LeafNode leftLeaf = (LeafNode) left;
+            LeafNode leafNode = (LeafNode) node;
+            int last = leftLeaf.getSize() - 1;
+            leafNode.insertEntry(0, leftLeaf.getKeys()[last], leftLeaf.getValues()[last]);
+            leftLeaf.removeEntry(last);
+            parent.getKeys()[index - 1] = leafNode.getKeys()[0];
+        } else {
+            // Rotate the last child of the left sibling through the parent
+            InnerNode leftInner = (InnerNode) left;
+            InnerNode innerNode = (InnerNode) node;
+            int last = leftInner.getSize() - 1;
+            Node child = leftInner.getChildren()[last + 1];
+            innerNode.insertEntry(0, parent.getKeys()[index - 1], innerNode.getChildren()[0]);
+            innerNode.getChildren()[0] = child;
+            parent.getKeys()[index - 1] = leftInner.getKeys()[last];
+            leftInner.removeEntry(last);
+        }
+    }
+
+    private void borrowFromRight(InnerNode parent, int index, Node node, Node right) {
+        if (node instanceof LeafNode) {
+            LeafNode rightLeaf = (LeafNode) right;
+            LeafNode leafNode = (LeafNode) node;
+            leafNode.insertEntry(leafNode.getSize(), rightLeaf.getKeys()[0], rightLeaf.getValues()[0]);
+            rightLeaf.removeEntry(0);
+            parent.getKeys()[index] = rightLeaf.getKeys()[0];
+        } else {
+            // Rotate the first child of the right sibling through the parent
+            InnerNode rightInner = (InnerNode) right;
+            InnerNode innerNode = (InnerNode) node;
+            innerNode.insertEntry(innerNode.getSize(), parent.getKeys()[index], rightInner.getChildren()[0]);
+            parent.getKeys()[index] = rightInner.getKeys()[0];
+            rightInner.getChildren()[0] = rightInner.getChildren()[1];
+            rightInner.removeEntry(0);
+        }
+    }
+
+    private void merge(InnerNode parent, int separatorIndex, Node left, Node right, Path path) {
+        if (left instanceof LeafNode) {
+            ((LeafNode) right).moveEntriesTo((LeafNode) left, 0);
+        } else {
+            InnerNode leftInner = (InnerNode) left;
+            InnerNode rightInner = (InnerNode) right;
+            int size = leftInner.getSize();
+            leftInner.getKeys()[size] = parent.getKeys()[separatorIndex];
+            System.arraycopy(rightInner.getKeys(), 0, leftInner.getKeys(), size + 1, rightInner.getSize());
+            System.arraycopy(rightInner.getChildren(), 0, leftInner.getChildren(), size + 1, rightInner.getSize() + 1);
+            leftInner.setSize(size + 1 + rightInner.getSize());
+        }
+        parent.removeEntry(separatorIndex);
+        path.markObsolete(right);
+    }
+
+    ///// Helpers
+
+    /**
+     * Nodes on the way from the root to a leaf, and the write locks held by
+     * a writer, together with its buffers for splitting inner nodes.
+     */
+    private static class Path {
+
+        final Node[] nodes = new Node[MAX_HEIGHT];
+
+        final long[] versions = new long[MAX_HEIGHT];
+
+        final int[] indexes = new int[MAX_HEIGHT];
+
+        private final Node[] locked = new Node[3 * MAX_HEIGHT];
+
+        private final boolean[] obsolete = new boolean[3 * MAX_HEIGHT];
+
+        private int lockCount;
+
+        final int[] splitKeys;
+
+        final Node[] splitChildren;
+
+        Path(int capacity) {
+            splitKeys = new int[capacity + 1];
+            splitChildren = new Node[capacity + 2];
+        }
+
+        void clear() {
+            lockCount = 0;
+        }
+
+        /**
+         * Lock the node if it is still at the given version, otherwise
+         * restart. The caller releases the locks taken so far.
+         */
+        void lock(Node node, long version) {
+            if (!node.tryUpgrade(version)) {
+                throw RESTART;
+            }
+            locked[lockCount] = node;
+            obsolete[lockCount] = false;
+            lockCount++;
+        }
+
+        void markObsolete(Node node) {
+            for (int i = 0; i < lockCount; i++) {
+                if (locked[i] == node) {
+                    obsolete[i] = true;
+                }
+            }
+        }
+
+        void unlockAll() {
+            for (int i = 0; i < lockCount; i++) {
+                if (obsolete[i]) {
+                    locked[i].writeUnlockObsolete();
+                } else {
+                    locked[i].writeUnlock();
+                }
+                locked[i] = null;
+            }
+            lockCount = 0;
+        }
+
+    }
+
+    /**
+     * Thrown when an optimistic read or lock upgrade failed. Carries no
+     * stack trace, as it is part of the normal control flow.
+     */
+    private static class Restart extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        Restart() {
+            super(null, null, false, false);
+        }
+
+    }
+
+}
@@ -0,0 +1,166 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {BPlusTree} whose modifications survive a crash of the process.
+ * <p>
+ * Every {insert} and {delete} is applied to the in-memory tree, appended to
+ * a {WriteAheadLog} and returns only once its record is on disk. Records of
+ * concurrent writers are synced together, see {WriteAheadLog.sync}.
+ * {checkpoint()} writes all entries into a checkpoint file in the format
+ * of {BPlusTreeSerializer} and empties the log. On startup the tree is
+ * loaded from the last checkpoint and the log is replayed on top of it.
+ * <p>
+ * All methods may be called from multiple threads; the tree itself is
+ * guarded by the monitor of this object, only the sync happens outside.
+ */
+public class DurableBPlusTree implements Closeable {
+
+    static final String CHECKPOINT_FILE = "checkpoint";
+
+    static final String LOG_FILE = "wal";
+
+    private final Path directory;
+
+    private final int capacity;
+
+    private final BPlusTree tree;
+
+    private final WriteAheadLog log;
+
+    /**
+     * Log sequence number of the last record appended.
+     */
+    private long lastLsn;
+
+    /**
+     * Open the tree stored in the given directory, or create an empty one.
+     */
+    public DurableBPlusTree(Path directory, int capacity) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.capacity = capacity;
+        this.tree = readCheckpoint();
+        this.log = new WriteAheadLog(directory.resolve(LOG_FILE), new WriteAheadLog.Replay() {
+            @Override
+            public void insert(int key, String value) {
+                tree.insert(key, value);
+            }
+
+            @Override
+            public void delete(int key) {
+                tree.delete(key);
+            }
+        });
+    }
+
+    /**
+     * Lookup the value stored under the given key.
+     *
+     * @return The stored value, or {null} if the key does not exist.
+     */
+    public synchronized String lookup(int key) {
+        return tree.lookup(key);
+    }
+
+    /**
+     * Insert the key/value pair and wait until the insertion is durable.
+     */
+    public void insert(int key, String value) throws IOException {
+        long lsn;
+        synchronized (this) {
+            tree.insert(key, value);
+            lsn = lastLsn = log.appendInsert(key, value);
+        }
+        log.sync(lsn);
+    }
+
+    /**
+     * Delete the key and wait until the deletion is durable.
+     *
+     * @return The original value, or {null} if the key does not exist.
+     */
+    public String delete(int key) throws IOException {
+        String value;
+        long lsn;
+        synchronized (this) {
+            value = tree.delete(key);
+            if (value != null) {
+                lastLsn = log.appendDelete(key);
+            }
+            // Even if nothing was deleted, the result may depend on a
+            // deletion of another thread that is not durable yet
+            lsn = lastLsn;
+        }
+        log.sync(lsn);
+        return value;
+    }
+
+    /**
+     * Write all entries to a new checkpoint and empty the log, so the next
+     * startup does not need to replay it.
+     */
+    public synchronized void checkpoint() throws IOException {
+        Path temporary = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            BPlusTreeSerializer.write(tree, channel);
+            channel.force(true);
+        }
+        Files.move(temporary, directory.resolve(CHECKPOINT_FILE),
+                   StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory();
+        // Replaying the log on top of the new checkpoint would be harmless,
+        // so a crash before the truncation loses nothing
+        log.truncate();
+    }
+
+    /**
+     * Number of times the log was forced to disk.
+     */
+    public long syncCount() {
+        return log.syncCount();
+    }
+
+    /**
+     * The in-memory tree. It must not be modified directly.
+     */
+    BPlusTree tree() {
+        return tree;
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+
+    private BPlusTree readCheckpoint() throws IOException {
+        Path file = directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(file)) {
+            return new BPlusTree(capacity);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return BPlusTreeSerializer.read(channel, 1.0);
+        }
+    }
+
+    /**
+     * Make the rename of the checkpoint durable. Not all platforms can open
+     * a directory, those have to do without.
+     */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // best effort
+        }
+    }
+
+}
@@ -0,0 +1,350 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Page store that keeps its pages in a local file and caches them in a
+ * buffer pool of fixed size.
+ * <p>
+ * Pinning a page that is not cached reads it into a free frame of the pool.
+ * If there is none, a frame is evicted with the CLOCK policy: the clock hand
+ * sweeps over the frames, skips pinned ones, gives recently used ones a
+ * second chance by clearing their reference bit, and evicts the first frame
+ * whose bit is already clear. Modified pages are written back when they are
+ * evicted or on {flush()}, so hot pages such as the upper levels of a tree
+ * stay cached while cold pages are read on demand.
+ * <p>
+ * The file is scratch space: it is truncated when the store is opened.
+ * Freed pages are chained through their first four bytes and reused.
+ */
+public class FilePageStore implements PageStore {
+
+    private final FileChannel channel;
+
+    private final int pageSize;
+
+    private final ByteBuffer pool;
+
+    private final ByteBuffer[] frameBuffers;
+
+    private final int[] framePages;
+
+    private final int[] pinCounts;
+
+    private final boolean[] dirty;
+
+    private final boolean[] referenced;
+
+    private final PageTable pageTable;
+
+    private int clockHand;
+
+    private int pageCount;
+
+    private int firstFreePage = NO_PAGE;
+
+    private long hits;
+
+    private long misses;
+
+    private long writes;
+
+    /**
+     * @param file      The page file, created or truncated.
+     * @param pageSize  Size of a page in bytes, a power of two.
+     * @param poolPages Number of pages cached in memory.
+     */
+    public FilePageStore(Path file, int pageSize, int poolPages) throws IOException {
+        if (Integer.bitCount(pageSize) != 1 || poolPages < 1
+                || (long) pageSize * poolPages > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(
+                    "Invalid pool of " + poolPages + " pages of " + pageSize + " bytes");
+        }
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.pageSize = pageSize;
+        this.pool = ByteBuffer.allocateDirect(pageSize * poolPages).order(ByteOrder.nativeOrder());
+        this.frameBuffers = new ByteBuffer[poolPages];
+        for (int frame = 0; frame < poolPages; frame++) {
+            ByteBuffer buffer = pool.duplicate();
+            buffer.position(frame * pageSize).limit((frame + 1) * pageSize);
+            frameBuffers[frame] = buffer.slice();
+        }
+        this.framePages = new int[poolPages];
+        Arrays.fill(framePages, NO_PAGE);
+        this.pinCounts = new int[poolPages];
+        this.dirty = new boolean[poolPages];
+        this.referenced = new boolean[poolPages];
+        this.pageTable = new PageTable(poolPages);
+    }
+
+    @Override
+    public int pageSize() {
+        return pageSize;
+    }
+
+    @Override
+    public int allocatePage() {
+        if (firstFreePage != NO_PAGE) {
+            int page = firstFreePage;
+            long address = pin(page);
+            firstFreePage = getInt(address);
+            unpin(page, false);
+            return page;
+        }
+        return pageCount++;
+    }
+
+    @Override
+    public void freePage(int page) {
+        long address = pin(page);
+        putInt(address, firstFreePage);
+        unpin(page, true);
+        firstFreePage = page;
+    }
+
+    @Override
+    public long pin(int page) {
+        int frame = pageTable.get(page);
+        if (frame >= 0) {
+            hits++;
+        } else {
+            misses++;
+            frame = evict();
+            read(page, frame);
+            framePages[frame] = page;
+            pageTable.put(page, frame);
+        }
+        pinCounts[frame]++;
+        referenced[frame] = true;
+        return (long) frame * pageSize;
+    }
+
+    @Override
+    public void unpin(int page, boolean dirty) {
+        int frame = pageTable.get(page);
+        if (frame < 0 || pinCounts[frame] == 0) {
+            throw new IllegalStateException("Page " + page + " is not pinned");
+        }
+        pinCounts[frame]--;
+        this.dirty[frame] |= dirty;
+    }
+
+    /**
+     * Write all modified pages back to the file.
+     */
+    public void flush() throws IOException {
+        for (int frame = 0; frame < framePages.length; frame++) {
+            if (dirty[frame]) {
+                write(frame);
+            }
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Number of pins served from the pool.
+     */
+    public long hits() {
+        return hits;
+    }
+
+    /**
+     * Number of pins that had to read the page from the file.
+     */
+    public long misses() {
+        return misses;
+    }
+
+    /**
+     * Number of pages written back to the file.
+     */
+    public long writes() {
+        return writes;
+    }
+
+    @Override
+    public int getInt(long address) {
+        return pool.getInt((int) address);
+    }
+
+    @Override
+    public void putInt(long address, int value) {
+        pool.putInt((int) address, value);
+    }
+
+    @Override
+    public long getLong(long address) {
+        return pool.getLong((int) address);
+    }
+
+    @Override
+    public void putLong(long address, long value) {
+        pool.putLong((int) address, value);
+    }
+
+    @Override
+    public void getBytes(long address, byte[] bytes, int offset, int length) {
+        ByteBuffer buffer = pool.duplicate();
+        buffer.position((int) address);
+        buffer.get(bytes, offset, length);
+    }
+
+    @Override
+    public void putBytes(long address, byte[] bytes, int offset, int length) {
+        ByteBuffer buffer = pool.duplicate();
+        buffer.position((int) address);
+        buffer.put(bytes, offset, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Find a frame for a new page, writing back the page it held before.
+     */
+    private int evict() {
+        // Two full sweeps clear all reference bits, so an unpinned frame
+        // must have been found by then
+        for (int step = 0; step < 2 * framePages.length + 1; step++) {
+            int frame = clockHand;
+            clockHand = (clockHand + 1) % framePages.length;
+            if (pinCounts[frame] > 0) {
+                continue;
+            }
+            if (referenced[frame]) {
+                referenced[frame] = false;
+                continue;
+            }
+            if (framePages[frame] != NO_PAGE) {
+                if (dirty[frame]) {
+                    write(frame);
+                }
+                pageTable.remove(framePages[frame]);
+                framePages[frame] = NO_PAGE;
+            }
+            return frame;
+        }
+        throw new IllegalStateException("All " + framePages.length + " frames are pinned");
+    }
+
+    private void read(int page, int frame) {
+        ByteBuffer buffer = frameBuffers[frame];
+        buffer.clear();
+        try {
+            long position = (long) page * pageSize;
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position + buffer.position());
+                if (read < 0) {
+                    // The page was never written, its contents are undefined
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void write(int frame) {
+        ByteBuffer buffer = frameBuffers[frame];
+        buffer.clear();
+        try {
+            long position = (long) framePages[frame] * pageSize;
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, position + buffer.position());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        dirty[frame] = false;
+        writes++;
+    }
+
+    /**
+     * Maps cached page numbers to frames, using open addressing with
+     * linear probing over primitive arrays.
+     */
+    private static class PageTable {
+
+        private final int[] pages;
+
+        private final int[] frames;
+
+        private final int mask;
+
+        /**
+         * Shift that keeps as many of the high bits of the product as the
+         * table has index bits, which are the best mixed ones.
+         */
+        private final int shift;
+
+        PageTable(int poolPages) {
+            int size = Integer.highestOneBit(Math.max(2, poolPages) * 2 - 1) * 2;
+            this.pages = new int[size];
+            this.frames = new int[size];
+            this.mask = size - 1;
+            this.shift = Integer.numberOfLeadingZeros(mask);
+            Arrays.fill(pages, NO_PAGE);
+        }
+
+        /**
+         * @return The frame of the page, or -1 if it is not cached.
+         */
+        int get(int page) {
+            for (int slot = hash(page); ; slot = (slot + 1) & mask) {
+                if (pages[slot] == page) {
+                    return frames[slot];
+                }
+                if (pages[slot] == NO_PAGE) {
+                    return -1;
+                }
+            }
+        }
+
+        void put(int page, int frame) {
+            int slot = hash(page);
+            while (pages[slot] != NO_PAGE) {
+                slot = (slot + 1) & mask;
+            }
+            pages[slot] = page;
+            frames[slot] = frame;
+        }
+
+        void remove(int page) {
+            int slot = hash(page);
+            while (pages[slot] != page) {
+                slot = (slot + 1) & mask;
+            }
+            // Shift later entries of the probe sequence back into the gap
+            int gap = slot;
+            for (slot = (slot + 1) & mask; pages[slot] != NO_PAGE; slot = (slot + 1) & mask) {
+                int home = hash(pages[slot]);
+                if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+                    pages[gap] = pages[slot];
+                    frames[gap] = frames[slot];
+                    gap = slot;
+                }
+            }
+            pages[gap] = NO_PAGE;
+        }
+
+        private int hash(int page) {
+            return (page * 0x9E3779B9) >>> shift;
+        }
+
+    }
+
+}
@@ -7,22 +7,151 @@ public class InnerNode extends Node {
 
     private Node[] children;
 
+    /**
+     * Number of entries in the subtree of each child, parallel to
+     * {children}.
+     */
+    private long[] counts;
+
+    /**
+     * Messages not yet pushed down to the children, {null} while there
+     * are none, see {BPlusTree.enableBuffering}.
+     */
+    MessageBuffer buffer;
+
     public InnerNode(int capacity) {
-        this(new Integer[] {}, new Node[] {null}, capacity);
+        this(new int[] {}, new Node[] {null}, capacity);
     }
 
-    public InnerNode(Integer[] keys, Node[] children, int capacity) {
+    public InnerNode(int[] keys, Node[] children, int capacity) {
         super(keys, capacity);
         assert keys.length == children.length - 1;
         this.children = Arrays.copyOf(children, capacity + 1);
+        this.counts = new long[capacity + 1];
+        recount(0, children.length);
     }
 
+    /**
+     * The backing child array. Only the first {getSize() + 1} entries are
+     * valid.
+     */
     public Node[] getChildren() {
         return children;
     }
 
     public void setChildren(Node[] children) {
-        this.children = Arrays.copyOf(children, this.children.length);
+        System.arraycopy(children, 0, this.children, 0, children.length);
+        Arrays.fill(this.children, children.length, this.children.length, null);
+        recount(0, this.children.length);
+    }
+
+    /**
+     * The backing array of subtree entry counts, parallel to
+     * {getChildren()}. The tree adjusts it along the path of each
+     * modification; methods that add or remove children recount the
+     * children they touch.
+     */
+    long[] getCounts() {
+        return counts;
+    }
+
+    /**
+     * Number of entries in the subtree of the given node.
+     */
+    static long count(Node node) {
+        if (node == null) {
+            return 0;
+        }
+        if (!(node instanceof InnerNode)) {
+            return node.getSize();
+        }
+        InnerNode innerNode = (InnerNode) node;
+        long count = 0;
+        for (int i = 0; i <= innerNode.size; i++) {
+            count += innerNode.counts[i];
+        }
+        return count;
+    }
+
+    /**
+     * Recompute the counts of the children in the given range from the
+     * children themselves.
+     */
+    void recount(int from, int to) {
+        for (int i = from; i < to; i++) {
+            counts[i] = count(children[i]);
+        }
+    }
+
+    /**
+     * Copy of this node that references the same children.
+     */
+    InnerNode copy() {
+        InnerNode copy = new InnerNode(keys.length);
+        System.arraycopy(keys, 0, copy.keys, 0, size);
+        System.arraycopy(children, 0, copy.children, 0, size + 1);
+        System.arraycopy(counts, 0, copy.counts, 0, size + 1);
+        copy.size = size;
+        if (buffer != null) {
+            copy.buffer = buffer.copy();
+        }
+        return copy;
+    }
+
+    /**
+     * Index of the child whose subtree may contain the given key.
+     */
+    public int childIndex(int key) {
+        int index = search(key);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    /**
+     * Insert a key and the child to the right of it at the given key
+     * position. The node must not be full. The counts of the new child
+     * and of its left neighbour, which usually was just split, are
+     * recomputed.
+     */
+    public void insertEntry(int index, int key, Node rightChild) {
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(children, index + 1, children, index + 2, size - index);
+        System.arraycopy(counts, index + 1, counts, index + 2, size - index);
+        keys[index] = key;
+        children[index + 1] = rightChild;
+        size++;
+        recount(index, index + 2);
+    }
+
+    /**
+     * Remove the key at the given position together with the child to the
+     * right of it. The count of the child to the left, which usually just
+     * absorbed the removed one, is recomputed.
+     */
+    public void removeEntry(int index) {
+        System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+        System.arraycopy(children, index + 2, children, index + 1, size - index - 1);
+        System.arraycopy(counts, index + 2, counts, index + 1, size - index - 1);
+        children[size] = null;
+        counts[size] = 0;
+        size--;
+        recount(index, index + 1);
+    }
+
+    /**
+     * Remove the children at the positions {from} (inclusive) to {to}
+     * (exclusive) together with the key left of each of them, or right of
+     * them if they include the first child. At least one child has to
+     * remain.
+     */
+    void removeChildren(int from, int to) {
+        int removed = to - from;
+        int keyFrom = from > 0 ? from - 1 : 0;
+        System.arraycopy(keys, keyFrom + removed, keys, keyFrom, size - keyFrom - removed);
+        System.arraycopy(children, to, children, from, size + 1 - to);
+        System.arraycopy(counts, to, counts, from, size + 1 - to);
+        Arrays.fill(children, size + 1 - removed, size + 1, null);
+        Arrays.fill(counts, size + 1 - removed, size + 1, 0);
+        size -= removed;
     }
 
     @Override
@@ -36,9 +165,10 @@ public class InnerNode extends Node {
     }
 
     public String toString() {
-        String keyList = Arrays.stream(keys).map(String::valueOf)
+        String keyList = Arrays.stream(keys, 0, size).mapToObj(String::valueOf)
                                .collect(Collectors.joining(", "));
-        String childrenList = Arrays.stream(children).map(String::valueOf)
+        String childrenList = Arrays.stream(children, 0, size + 1)
+                                    .map(String::valueOf)
                                     .collect(Collectors.joining(", "));
         return "keys: [" + keyList + "]; " + "children: [" + childrenList + "]";
     }
@@ -0,0 +1,73 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of operation latencies in nanoseconds.
+ * <p>
+ * Bucket {i} counts the latencies in {[2^(i-1), 2^i)}, so recording is a
+ * single array increment and percentiles are accurate up to a factor of two,
+ * which is enough to spot regressions and outliers.
+ */
+public class LatencyHistogram {
+
+    private final long[] buckets = new long[64];
+
+    private long count;
+
+    private long total;
+
+    private long max;
+
+    void record(long nanos) {
+        long latency = Math.max(0, nanos);
+        buckets[64 - Long.numberOfLeadingZeros(latency)]++;
+        count++;
+        total += latency;
+        max = Math.max(max, latency);
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    public double mean() {
+        return count == 0 ? 0 : (double) total / count;
+    }
+
+    /**
+     * Upper bound of the latency below which the given fraction of all
+     * recorded latencies falls.
+     *
+     * @param fraction Between 0 and 1, e.g. 0.99 for the 99th percentile.
+     */
+    public long percentile(double fraction) {
+        long rank = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank && seen > 0) {
+                return i == 0 ? 0 : Math.min(max, (1L << i) - 1);
+            }
+        }
+        return max;
+    }
+
+    void reset() {
+        Arrays.fill(buckets, 0);
+        count = 0;
+        total = 0;
+        max = 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.0fns p50=%dns p99=%dns max=%dns",
+                             count, mean(), percentile(0.5), percentile(0.99), max);
+    }
+
+}
@@ -2,26 +2,480 @@ package de.tuberlin.dima.dbt.exercises.bplustree;
 
 import java.util.Arrays;
 
+/**
+ * Leaf of a {BPlusTree}, holding the values of its keys.
+ * <p>
+ * The values are either stored as strings or, once the leaf is encoded with
+ * a {ValueDictionary}, as the {int} codes of the dictionary. Encoded leaves
+ * decode each value on access through {value}, and {getValues()} returns a
+ * decoded copy.
+ * <p>
+ * Once the leaf is compressed, its keys are stored as {short} offsets from
+ * a base key as long as they span at most {MAX_DELTA}, which halves their
+ * size. {search} compares the offsets directly and {key} adds the base to
+ * a single offset, {getKeys()} returns a decoded copy. An insert that does
+ * not fit the span falls back to plain {int} keys, which are packed again
+ * once removals bring the span back into range.
+ */
 public class LeafNode extends Node {
 
+    /**
+     * Largest difference between the keys of a packed leaf.
+     */
+    static final int MAX_DELTA = 0xFFFF;
+
+    /**
+     * The values, {null} while the leaf is encoded.
+     */
     private String[] values;
 
+    /**
+     * The codes of the values, {null} unless the leaf is encoded.
+     */
+    private int[] codes;
+
+    private ValueDictionary dictionary;
+
+    /**
+     * Whether the keys are packed whenever their span allows it.
+     */
+    private boolean compressed;
+
+    /**
+     * The unsigned offsets of the keys from {base}, {null} unless the keys
+     * are packed, in which case {keys} is {null}.
+     */
+    private short[] deltas;
+
+    private int base;
+
+    private LeafNode previous;
+
+    private LeafNode next;
+
     public LeafNode(int capacity) {
-        this(new Integer[] {}, new String[] {}, capacity);
+        this(new int[] {}, new String[] {}, capacity);
     }
 
-    public LeafNode(Integer[] keys, String[] values, int capacity) {
+    public LeafNode(int[] keys, String[] values, int capacity) {
         super(keys, capacity);
         assert keys.length == values.length;
         this.values = Arrays.copyOf(values, capacity);
     }
 
+    LeafNode(int[] keys, String[] values, int capacity, ValueDictionary dictionary) {
+        this(keys, values, capacity);
+        if (dictionary != null) {
+            encode(dictionary);
+        }
+    }
+
+    LeafNode(int[] keys, String[] values, int capacity, ValueDictionary dictionary,
+             boolean compressed) {
+        this(keys, values, capacity, dictionary);
+        if (compressed) {
+            compress();
+        }
+    }
+
+    /**
+     * The backing key array, or a decoded copy of the keys if they are
+     * packed. Only the first {getSize()} entries are valid.
+     */
+    @Override
+    public int[] getKeys() {
+        if (keys != null) {
+            return keys;
+        }
+        int[] decoded = new int[deltas.length];
+        for (int i = 0; i < size; i++) {
+            decoded[i] = base + (deltas[i] & MAX_DELTA);
+        }
+        return decoded;
+    }
+
+    @Override
+    public void setKeys(int[] keys) {
+        unpack();
+        super.setKeys(keys);
+        pack();
+    }
+
+    public int key(int index) {
+        return keys != null ? keys[index] : base + (deltas[index] & MAX_DELTA);
+    }
+
+    /**
+     * Binary search over the occupied keys, on the packed offsets if the
+     * keys are packed.
+     */
+    @Override
+    public int search(int key) {
+        if (keys != null) {
+            return super.search(key);
+        }
+        long delta = (long) key - base;
+        if (size == 0 || delta < 0) {
+            return -1;
+        }
+        if (delta > MAX_DELTA) {
+            return -size - 1;
+        }
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int current = deltas[middle] & MAX_DELTA;
+            if (current < delta) {
+                low = middle + 1;
+            } else if (current > delta) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * @return Whether the keys are currently stored as packed offsets.
+     */
+    boolean isPacked() {
+        return deltas != null;
+    }
+
+    boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Pack the keys from now on whenever their span allows it.
+     */
+    void compress() {
+        compressed = true;
+        pack();
+    }
+
+    /**
+     * Replace the keys by their offsets from the first key, if the leaf is
+     * compressed and their span fits.
+     */
+    private void pack() {
+        if (!compressed || keys == null
+            || (size > 0 && (long) keys[size - 1] - keys[0] > MAX_DELTA)) {
+            return;
+        }
+        base = size == 0 ? 0 : keys[0];
+        deltas = new short[keys.length];
+        for (int i = 0; i < size; i++) {
+            deltas[i] = (short) (keys[i] - base);
+        }
+        keys = null;
+    }
+
+    /**
+     * Turn packed keys back into plain {int} keys.
+     */
+    private void unpack() {
+        if (keys == null) {
+            keys = getKeys();
+            deltas = null;
+        }
+    }
+
+    /**
+     * Make the packed keys able to hold keys from {low} to {high}, changing
+     * the base if needed, or unpack them if the span is too large.
+     */
+    private void reserve(int low, int high) {
+        if (keys != null) {
+            return;
+        }
+        long newBase = size == 0 ? low : Math.min(low, base);
+        long last = size == 0 ? high : Math.max(high, (long) base + (deltas[size - 1] & MAX_DELTA));
+        if (last - newBase > MAX_DELTA) {
+            unpack();
+            return;
+        }
+        int shift = base - (int) newBase;
+        if (shift != 0 && size > 0) {
+            for (int i = 0; i < size; i++) {
+                deltas[i] = (short) ((deltas[i] & MAX_DELTA) + shift);
+            }
+        }
+        base = (int) newBase;
+    }
+
+    /**
+     * The backing value array, or a decoded copy of the values if the leaf
+     * is encoded. Only the first {getSize()} entries are valid.
+     */
     public String[] getValues() {
-        return values;
+        if (codes == null) {
+            return values;
+        }
+        String[] decoded = new String[codes.length];
+        for (int i = 0; i < size; i++) {
+            decoded[i] = dictionary.decode(codes[i]);
+        }
+        return decoded;
     }
 
     public void setValues(String[] values) {
-        this.values = Arrays.copyOf(values, this.values.length);
+        if (codes != null) {
+            for (int i = 0; i < values.length; i++) {
+                codes[i] = dictionary.encode(values[i]);
+            }
+            return;
+        }
+        System.arraycopy(values, 0, this.values, 0, values.length);
+        Arrays.fill(this.values, values.length, this.values.length, null);
+    }
+
+    public String value(int index) {
+        return codes == null ? values[index] : dictionary.decode(codes[index]);
+    }
+
+    public void setValue(int index, String value) {
+        if (codes == null) {
+            values[index] = value;
+        } else {
+            codes[index] = dictionary.encode(value);
+        }
+    }
+
+    /**
+     * The dictionary code of the value at the given position.
+     *
+     * @throws IllegalStateException If the leaf is not encoded.
+     */
+    int code(int index) {
+        if (codes == null) {
+            throw new IllegalStateException("Leaf is not encoded");
+        }
+        return codes[index];
+    }
+
+    /**
+     * @return The dictionary of the codes, or {null} if the leaf stores the
+     * values themselves.
+     */
+    ValueDictionary dictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Replace the values by their codes in the given dictionary.
+     */
+    void encode(ValueDictionary dictionary) {
+        if (codes != null) {
+            throw new IllegalStateException("Leaf is already encoded");
+        }
+        int[] encoded = new int[values.length];
+        for (int i = 0; i < size; i++) {
+            encoded[i] = dictionary.encode(values[i]);
+        }
+        this.dictionary = dictionary;
+        this.codes = encoded;
+        this.values = null;
+    }
+
+    /**
+     * Replace all entries of the leaf by the given number of entries of the
+     * arrays, starting at the given offset.
+     */
+    void setEntries(int[] keys, String[] values, int offset, int count) {
+        if (compressed && (count == 0 || (long) keys[offset + count - 1] - keys[offset] <= MAX_DELTA)) {
+            if (deltas == null) {
+                deltas = new short[this.keys.length];
+                this.keys = null;
+            }
+            base = count == 0 ? 0 : keys[offset];
+            for (int i = 0; i < count; i++) {
+                deltas[i] = (short) (keys[offset + i] - base);
+            }
+        } else {
+            unpack();
+            System.arraycopy(keys, offset, this.keys, 0, count);
+        }
+        if (codes == null) {
+            System.arraycopy(values, offset, this.values, 0, count);
+            Arrays.fill(this.values, count, this.values.length, null);
+        } else {
+            for (int i = 0; i < count; i++) {
+                codes[i] = dictionary.encode(values[offset + i]);
+            }
+        }
+        size = count;
+    }
+
+    /**
+     * The left sibling of this leaf, or {null} for the leftmost leaf.
+     */
+    public LeafNode getPrevious() {
+        return previous;
+    }
+
+    public void setPrevious(LeafNode previous) {
+        this.previous = previous;
+    }
+
+    /**
+     * The right sibling of this leaf, or {null} for the rightmost leaf.
+     */
+    public LeafNode getNext() {
+        return next;
+    }
+
+    public void setNext(LeafNode next) {
+        this.next = next;
+    }
+
+    /**
+     * Link the given leaf directly to the right of this leaf.
+     */
+    public void linkNext(LeafNode leaf) {
+        leaf.previous = this;
+        leaf.next = next;
+        if (next != null) {
+            next.previous = leaf;
+        }
+        next = leaf;
+    }
+
+    /**
+     * Remove this leaf from the sibling chain.
+     */
+    public void unlink() {
+        if (previous != null) {
+            previous.next = next;
+        }
+        if (next != null) {
+            next.previous = previous;
+        }
+        previous = null;
+        next = null;
+    }
+
+    /**
+     * Copy of this leaf with the same entries but without siblings.
+     */
+    LeafNode copy() {
+        LeafNode copy = new LeafNode(keys != null ? keys.length : deltas.length);
+        copy.compressed = compressed;
+        if (keys != null) {
+            System.arraycopy(keys, 0, copy.keys, 0, size);
+        } else {
+            copy.keys = null;
+            copy.base = base;
+            copy.deltas = Arrays.copyOf(deltas, deltas.length);
+        }
+        if (codes == null) {
+            System.arraycopy(values, 0, copy.values, 0, size);
+        } else {
+            copy.values = null;
+            copy.dictionary = dictionary;
+            copy.codes = Arrays.copyOf(codes, codes.length);
+        }
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * Insert the key/value pair at the given position, shifting the
+     * following entries to the right. The leaf must not be full.
+     */
+    public void insertEntry(int index, int key, String value) {
+        reserve(key, key);
+        if (keys != null) {
+            System.arraycopy(keys, index, keys, index + 1, size - index);
+            keys[index] = key;
+        } else {
+            System.arraycopy(deltas, index, deltas, index + 1, size - index);
+            deltas[index] = (short) (key - base);
+        }
+        if (codes == null) {
+            System.arraycopy(values, index, values, index + 1, size - index);
+        } else {
+            System.arraycopy(codes, index, codes, index + 1, size - index);
+        }
+        size++;
+        setValue(index, value);
+    }
+
+    /**
+     * Remove the entry at the given position, shifting the following entries
+     * to the left.
+     */
+    public void removeEntry(int index) {
+        if (keys != null) {
+            System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+        } else {
+            System.arraycopy(deltas, index + 1, deltas, index, size - index - 1);
+        }
+        size--;
+        if (codes == null) {
+            System.arraycopy(values, index + 1, values, index, size - index);
+            values[size] = null;
+        } else {
+            System.arraycopy(codes, index + 1, codes, index, size - index);
+        }
+        pack();
+    }
+
+    /**
+     * Remove the entries at the positions {from} (inclusive) to {to}
+     * (exclusive), shifting the following entries to the left.
+     */
+    public void removeEntries(int from, int to) {
+        if (keys != null) {
+            System.arraycopy(keys, to, keys, from, size - to);
+        } else {
+            System.arraycopy(deltas, to, deltas, from, size - to);
+        }
+        if (codes == null) {
+            System.arraycopy(values, to, values, from, size - to);
+            Arrays.fill(values, size - (to - from), size, null);
+        } else {
+            System.arraycopy(codes, to, codes, from, size - to);
+        }
+        size -= to - from;
+        pack();
+    }
+
+    /**
+     * Append the entries from position {from} onwards to the end of the
+     * target leaf and drop them from this leaf.
+     */
+    public void moveEntriesTo(LeafNode target, int from) {
+        int count = size - from;
+        if (count > 0) {
+            target.reserve(key(from), key(size - 1));
+        }
+        for (int i = 0; i < count; i++) {
+            if (target.keys != null) {
+                target.keys[target.size + i] = key(from + i);
+            } else {
+                target.deltas[target.size + i] = (short) (key(from + i) - target.base);
+            }
+        }
+        if (codes == null && target.codes == null) {
+            System.arraycopy(values, from, target.values, target.size, count);
+            Arrays.fill(values, from, size, null);
+        } else if (codes != null && dictionary == target.dictionary) {
+            System.arraycopy(codes, from, target.codes, target.size, count);
+        } else {
+            for (int i = 0; i < count; i++) {
+                target.setValue(target.size + i, value(from + i));
+            }
+            if (codes == null) {
+                Arrays.fill(values, from, size, null);
+            }
+        }
+        target.size += count;
+        size = from;
+        target.pack();
+        pack();
     }
 
     @Override
@@ -0,0 +1,205 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of the values of recently looked up keys, in front of a
+ * {BPlusTree}, see {BPlusTree.enableLookupCache}.
+ * <p>
+ * The cache is set-associative like a CPU cache: the hash of a key selects
+ * a set of {WAYS} slots, and the key can only be stored in one of them, so
+ * a lookup checks at most {WAYS} primitive keys. Each slot has a reference
+ * bit that is set by every hit. When a key is added to a full set, the
+ * set's clock hand sweeps over its slots, clearing the reference bits,
+ * until it finds a slot that was not referenced since the last sweep
+ * (CLOCK replacement). Frequently hit keys thus stay, while keys that are
+ * only looked up once are replaced soon.
+ * <p>
+ * The sets are guarded by a fixed number of striped locks, so the cache can
+ * be used by several threads. Values that are {null} are never cached.
+ */
+class LookupCache {
+
+    /**
+     * Number of slots per set.
+     */
+    static final int WAYS = 8;
+
+    private static final int STRIPES = 64;
+
+    private final int[] keys;
+
+    /**
+     * Value of each slot, {null} if the slot is empty.
+     */
+    private final String[] values;
+
+    private final boolean[] referenced;
+
+    /**
+     * Position of the clock hand within each set.
+     */
+    private final byte[] hands;
+
+    private final Object[] locks;
+
+    private final int setMask;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Create a cache for at least the given number of entries, rounded up
+     * to a power of two number of sets.
+     */
+    LookupCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid cache capacity " + capacity);
+        }
+        int minimum = (capacity + WAYS - 1) / WAYS;
+        int sets = minimum == 1 ? 1 : Integer.highestOneBit(minimum - 1) << 1;
+        setMask = sets - 1;
+        keys = new int[sets * WAYS];
+        values = new String[sets * WAYS];
+        referenced = new boolean[sets * WAYS];
+        hands = new byte[sets];
+        locks = new Object[Math.min(sets, STRIPES)];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Number of entries the cache can hold.
+     */
+    int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * @return The cached value of the key, or {null} on a miss.
+     */
+    String get(int key) {
+        int set = set(key);
+        synchronized (locks[set & (locks.length - 1)]) {
+            int slot = find(set, key);
+            if (slot >= 0) {
+                referenced[slot] = true;
+                hits.increment();
+                return values[slot];
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Add the value of a key that was just looked up in the tree, replacing
+     * an entry of its set if necessary.
+     */
+    void put(int key, String value) {
+        if (value == null) {
+            return;
+        }
+        int set = set(key);
+        synchronized (locks[set & (locks.length - 1)]) {
+            int slot = find(set, key);
+            if (slot < 0) {
+                slot = victim(set);
+                keys[slot] = key;
+                referenced[slot] = false;
+            }
+            values[slot] = value;
+        }
+    }
+
+    /**
+     * Replace the value of a key if it is cached, or drop the key if the
+     * new value is {null}.
+     */
+    void update(int key, String value) {
+        int set = set(key);
+        synchronized (locks[set & (locks.length - 1)]) {
+            int slot = find(set, key);
+            if (slot >= 0) {
+                values[slot] = value;
+            }
+        }
+    }
+
+    void remove(int key) {
+        update(key, null);
+    }
+
+    /**
+     * Drop all cached keys with {from <= key < to}.
+     */
+    void removeRange(int from, int to) {
+        for (int set = 0; set <= setMask; set++) {
+            synchronized (locks[set & (locks.length - 1)]) {
+                for (int slot = set * WAYS; slot < (set + 1) * WAYS; slot++) {
+                    if (keys[slot] >= from && keys[slot] < to) {
+                        values[slot] = null;
+                    }
+                }
+            }
+        }
+    }
+
+    void clear() {
+        for (int set = 0; set <= setMask; set++) {
+            synchronized (locks[set & (locks.length - 1)]) {
+                Arrays.fill(values, set * WAYS, (set + 1) * WAYS, null);
+            }
+        }
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    private int set(int key) {
+        int hash = key * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & setMask;
+    }
+
+    /**
+     * @return The slot of the key in the given set, or -1 if it is not
+     * cached.
+     */
+    private int find(int set, int key) {
+        for (int slot = set * WAYS; slot < (set + 1) * WAYS; slot++) {
+            if (keys[slot] == key && values[slot] != null) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * An empty slot of the set, or else the next one the clock hand finds
+     * unreferenced.
+     */
+    private int victim(int set) {
+        int base = set * WAYS;
+        for (int slot = base; slot < base + WAYS; slot++) {
+            if (values[slot] == null) {
+                return slot;
+            }
+        }
+        int hand = hands[set];
+        while (referenced[base + hand]) {
+            referenced[base + hand] = false;
+            hand = (hand + 1) % WAYS;
+        }
+        hands[set] = (byte) ((hand + 1) % WAYS);
+        return base + hand;
+    }
+
+}
@@ -0,0 +1,164 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.Arrays;
+
+/**
+ * Pending inserts and deletes of an {InnerNode} while the tree buffers
+ * modifications, see {BPlusTree.enableBuffering}.
+ * <p>
+ * The messages are sorted by key and there is at most one per key: since
+ * an insert replaces the value and a delete removes the key, a newer
+ * message makes any older one for the same key obsolete.
+ */
+class MessageBuffer {
+
+    private int[] keys;
+
+    private String[] values;
+
+    private boolean[] deletes;
+
+    private int size;
+
+    MessageBuffer() {
+        this(8);
+    }
+
+    private MessageBuffer(int capacity) {
+        keys = new int[capacity];
+        values = new String[capacity];
+        deletes = new boolean[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    int key(int index) {
+        return keys[index];
+    }
+
+    String value(int index) {
+        return values[index];
+    }
+
+    boolean isDelete(int index) {
+        return deletes[index];
+    }
+
+    /**
+     * @return The index of the message for the given key, or
+     * {-(insertion point) - 1} if there is none.
+     */
+    int search(int key) {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    /**
+     * Position of the first message whose key is not smaller than the given
+     * key.
+     */
+    int lowerBound(long key) {
+        if (key > Integer.MAX_VALUE) {
+            return size;
+        }
+        if (key < Integer.MIN_VALUE) {
+            return 0;
+        }
+        int index = search((int) key);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    /**
+     * Add a message, replacing an older one for the same key.
+     */
+    void put(int key, String value, boolean delete) {
+        int index = search(key);
+        if (index < 0) {
+            index = -index - 1;
+            ensureCapacity(size + 1);
+            System.arraycopy(keys, index, keys, index + 1, size - index);
+            System.arraycopy(values, index, values, index + 1, size - index);
+            System.arraycopy(deletes, index, deletes, index + 1, size - index);
+            size++;
+        }
+        keys[index] = key;
+        values[index] = value;
+        deletes[index] = delete;
+    }
+
+    /**
+     * Move the messages at the positions {from} (inclusive) to {to}
+     * (exclusive) into the target buffer. They have to be newer than the
+     * messages of the target and replace those for the same keys.
+     */
+    void moveTo(MessageBuffer target, int from, int to) {
+        int count = to - from;
+        if (count == 0) {
+            return;
+        }
+        if (target.size == 0 || target.keys[target.size - 1] < keys[from]) {
+            // All messages go behind those of the target
+            target.ensureCapacity(target.size + count);
+            System.arraycopy(keys, from, target.keys, target.size, count);
+            System.arraycopy(values, from, target.values, target.size, count);
+            System.arraycopy(deletes, from, target.deletes, target.size, count);
+            target.size += count;
+        } else {
+            merge(target, from, to);
+        }
+
+        System.arraycopy(keys, to, keys, from, size - to);
+        System.arraycopy(values, to, values, from, size - to);
+        System.arraycopy(deletes, to, deletes, from, size - to);
+        Arrays.fill(values, size - count, size, null);
+        size -= count;
+    }
+
+    private void merge(MessageBuffer target, int from, int to) {
+        int count = to - from;
+        int[] mergedKeys = new int[Math.max(8, target.size + count)];
+        String[] mergedValues = new String[mergedKeys.length];
+        boolean[] mergedDeletes = new boolean[mergedKeys.length];
+        int merged = 0;
+        int i = from;
+        int j = 0;
+        while (i < to || j < target.size) {
+            if (j == target.size || (i < to && keys[i] <= target.keys[j])) {
+                if (j < target.size && keys[i] == target.keys[j]) {
+                    j++;
+                }
+                mergedKeys[merged] = keys[i];
+                mergedValues[merged] = values[i];
+                mergedDeletes[merged++] = deletes[i++];
+            } else {
+                mergedKeys[merged] = target.keys[j];
+                mergedValues[merged] = target.values[j];
+                mergedDeletes[merged++] = target.deletes[j++];
+            }
+        }
+        target.keys = mergedKeys;
+        target.values = mergedValues;
+        target.deletes = mergedDeletes;
+        target.size = merged;
+    }
+
+    MessageBuffer copy() {
+        MessageBuffer copy = new MessageBuffer(Math.max(8, size));
+        System.arraycopy(keys, 0, copy.keys, 0, size);
+        System.arraycopy(values, 0, copy.values, 0, size);
+        System.arraycopy(deletes, 0, copy.deletes, 0, size);
+        copy.size = size;
+        return copy;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (keys.length < capacity) {
+            int length = Math.max(capacity, 2 * keys.length);
+            keys = Arrays.copyOf(keys, length);
+            values = Arrays.copyOf(values, length);
+            deletes = Arrays.copyOf(deletes, length);
+        }
+    }
+
+}
@@ -1,22 +1,117 @@
 package de.tuberlin.dima.dbt.exercises.bplustree;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.Arrays;
 
 public abstract class Node {
 
-    protected Integer[] keys;
+    /**
+     * Bit of the version that is set while a writer holds the node.
+     */
+    static final long LOCKED = 0b10;
 
-    public Node(Integer[] keys, int capacity) {
+    /**
+     * Bit of the version that is set once the node was removed from the
+     * tree.
+     */
+    static final long OBSOLETE = 0b01;
+
+    private static final VarHandle VERSION;
+
+    static {
+        try {
+            VERSION = MethodHandles.lookup().findVarHandle(Node.class, "version", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    protected int[] keys;
+
+    protected int size;
+
+    /**
+     * Version counter used by {ConcurrentBPlusTree} for optimistic lock
+     * coupling. Every write lock and unlock increments it, the lowest two
+     * bits hold the {LOCKED} and {OBSOLETE} flags.
+     */
+    private volatile long version = 0b100;
+
+    /**
+     * Generation of the {BPlusTree} in which this node was created. Nodes of
+     * older generations may be shared with snapshots and are copied before
+     * they are modified.
+     */
+    long generation;
+
+    public Node(int[] keys, int capacity) {
         assert keys.length <= capacity;
         this.keys = Arrays.copyOf(keys, capacity);
+        this.size = keys.length;
     }
 
-    public Integer[] getKeys() {
+    /**
+     * The backing key array. Only the first {getSize()} entries are valid.
+     */
+    public int[] getKeys() {
         return keys;
     }
 
-    public void setKeys(Integer[] keys) {
-        this.keys = Arrays.copyOf(keys, this.keys.length);;
+    public void setKeys(int[] keys) {
+        System.arraycopy(keys, 0, this.keys, 0, keys.length);
+        this.size = keys.length;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    /**
+     * Binary search over the occupied keys.
+     *
+     * @return The index of the key, or {-(insertion point) - 1} if the key
+     * is not stored in this node.
+     */
+    public int search(int key) {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    long readVersion() {
+        return version;
+    }
+
+    /**
+     * Check that the node did not change since the given version was read.
+     * Must be called after reading the node contents.
+     */
+    boolean validate(long version) {
+        VarHandle.acquireFence();
+        return this.version == version;
+    }
+
+    /**
+     * Acquire the write lock if the node is still at the given unlocked
+     * version.
+     */
+    boolean tryUpgrade(long version) {
+        return (version & (LOCKED | OBSOLETE)) == 0
+                && VERSION.compareAndSet(this, version, version + LOCKED);
+    }
+
+    void writeUnlock() {
+        VERSION.getAndAdd(this, LOCKED);
+    }
+
+    /**
+     * Release the write lock and mark the node as removed from the tree.
+     */
+    void writeUnlockObsolete() {
+        VERSION.getAndAdd(this, LOCKED | OBSOLETE);
     }
 
     public abstract Object[] getPayload();
@@ -0,0 +1,155 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Page store that keeps all pages in memory outside of the Java heap.
+ * <p>
+ * The pages are carved out of direct byte buffers of a fixed chunk size, so
+ * the garbage collector only sees one object per chunk, no matter how many
+ * nodes a tree has. Pinning is free: the address of a page is simply
+ * {page * pageSize}. Freed pages are chained through their first four bytes
+ * and reused by later allocations.
+ */
+public class OffHeapPageStore implements PageStore {
+
+    /**
+     * Default chunk size of 64 MiB.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 26;
+
+    private final int pageSize;
+
+    private final int chunkShift;
+
+    private final long chunkMask;
+
+    private ByteBuffer[] chunks = new ByteBuffer[16];
+
+    private int chunkCount;
+
+    private int pageCount;
+
+    private int firstFreePage = NO_PAGE;
+
+    public OffHeapPageStore(int pageSize) {
+        this(pageSize, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param pageSize  Size of a page in bytes, a power of two.
+     * @param chunkSize Size of the buffers memory is allocated in, a power of
+     *                  two that is at least the page size.
+     */
+    public OffHeapPageStore(int pageSize, int chunkSize) {
+        if (Integer.bitCount(pageSize) != 1 || Integer.bitCount(chunkSize) != 1
+                || pageSize > chunkSize) {
+            throw new IllegalArgumentException(
+                    "Invalid page size " + pageSize + " for chunk size " + chunkSize);
+        }
+        this.pageSize = pageSize;
+        this.chunkShift = Integer.numberOfTrailingZeros(chunkSize);
+        this.chunkMask = chunkSize - 1;
+    }
+
+    @Override
+    public int pageSize() {
+        return pageSize;
+    }
+
+    @Override
+    public int allocatePage() {
+        if (firstFreePage != NO_PAGE) {
+            int page = firstFreePage;
+            firstFreePage = getInt((long) page * pageSize);
+            return page;
+        }
+        if ((long) (pageCount + 1) * pageSize > (long) chunkCount << chunkShift) {
+            if (chunkCount == chunks.length) {
+                chunks = Arrays.copyOf(chunks, 2 * chunkCount);
+            }
+            chunks[chunkCount++] = ByteBuffer.allocateDirect(1 << chunkShift)
+                                             .order(ByteOrder.nativeOrder());
+        }
+        return pageCount++;
+    }
+
+    @Override
+    public void freePage(int page) {
+        putInt((long) page * pageSize, firstFreePage);
+        firstFreePage = page;
+    }
+
+    @Override
+    public long pin(int page) {
+        return (long) page * pageSize;
+    }
+
+    @Override
+    public void unpin(int page, boolean dirty) {
+        // Pages never leave memory
+    }
+
+    /**
+     * Number of bytes allocated outside of the heap.
+     */
+    public long allocatedBytes() {
+        return (long) chunkCount << chunkShift;
+    }
+
+    @Override
+    public int getInt(long address) {
+        return chunk(address).getInt(offset(address));
+    }
+
+    @Override
+    public void putInt(long address, int value) {
+        chunk(address).putInt(offset(address), value);
+    }
+
+    @Override
+    public long getLong(long address) {
+        return chunk(address).getLong(offset(address));
+    }
+
+    @Override
+    public void putLong(long address, long value) {
+        chunk(address).putLong(offset(address), value);
+    }
+
+    @Override
+    public void getBytes(long address, byte[] bytes, int offset, int length) {
+        ByteBuffer buffer = chunk(address).duplicate();
+        buffer.position(offset(address));
+        buffer.get(bytes, offset, length);
+    }
+
+    @Override
+    public void putBytes(long address, byte[] bytes, int offset, int length) {
+        ByteBuffer buffer = chunk(address).duplicate();
+        buffer.position(offset(address));
+        buffer.put(bytes, offset, length);
+    }
+
+    /**
+     * Drop all chunks, the memory is released once they are collected.
+     */
+    @Override
+    public void close() {
+        Arrays.fill(chunks, null);
+        chunkCount = 0;
+        pageCount = 0;
+        firstFreePage = NO_PAGE;
+    }
+
+    private ByteBuffer chunk(long address) {
+        return chunks[(int) (address >>> chunkShift)];
+    }
+
+    private int offset(long address) {
+        return (int) (address & chunkMask);
+    }
+
+}
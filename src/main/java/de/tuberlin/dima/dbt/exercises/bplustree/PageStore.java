@@ -0,0 +1,69 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Storage for fixed-size pages addressed by page number, used by
+ * {PagedBPlusTree}.
+ * <p>
+ * A page has to be pinned before it can be accessed. Pinning returns the
+ * address of the first byte of the page, which stays valid until the page is
+ * unpinned again. The accessors take such an address plus an offset into
+ * the page.
+ */
+public interface PageStore extends Closeable {
+
+    /**
+     * Page number that never refers to a page.
+     */
+    int NO_PAGE = -1;
+
+    /**
+     * Size of each page in bytes, a power of two.
+     */
+    int pageSize();
+
+    /**
+     * Allocate a new page. Its contents are undefined.
+     */
+    int allocatePage();
+
+    /**
+     * Return a page that is no longer used, so it can be allocated again.
+     */
+    void freePage(int page);
+
+    /**
+     * Make the page accessible until it is unpinned.
+     *
+     * @return The address of the first byte of the page.
+     */
+    long pin(int page);
+
+    /**
+     * Release a page pinned before.
+     *
+     * @param dirty Whether the page was modified while it was pinned.
+     */
+    void unpin(int page, boolean dirty);
+
+    int getInt(long address);
+
+    void putInt(long address, int value);
+
+    long getLong(long address);
+
+    void putLong(long address, long value);
+
+    void getBytes(long address, byte[] bytes, int offset, int length);
+
+    void putBytes(long address, byte[] bytes, int offset, int length);
+
+    /**
+     * Release all resources held by the store.
+     */
+    @Override
+    void close() throws IOException;
+
+}
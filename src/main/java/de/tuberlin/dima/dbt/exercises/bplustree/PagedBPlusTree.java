@@ -0,0 +1,661 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+/**
+ * B+ tree whose nodes live in the fixed-size pages of a {PageStore} instead
+ * of being Java objects.
+ * <p>
+ * Children are referenced by page number and the string values are kept in
+ * a {ValueHeap} in the same store, so with an {OffHeapPageStore} the tree
+ * adds no objects to the Java heap, regardless of its size. The rebalancing
+ * rules are the same as for {BPlusTree}, but only its core operations are
+ * supported: {lookup}, {insert}, {delete} and an ascending {scan} along the
+ * sibling links of the leaves. Bulk loading, batches, snapshots and the
+ * other extensions of {BPlusTree} work on its object nodes only.
+ * <p>
+ * Node page layout: type, size, previous leaf, next leaf, {capacity} keys,
+ * then either {capacity} value handles (leaves) or {capacity + 1} child page
+ * numbers (inner nodes).
+ */
+public class PagedBPlusTree {
+
+    private static final int LEAF = 0;
+
+    private static final int INNER = 1;
+
+    private static final int TYPE = 0;
+
+    private static final int SIZE = 4;
+
+    private static final int PREVIOUS = 8;
+
+    private static final int NEXT = 12;
+
+    private static final int KEYS = 16;
+
+    /**
+     * Upper bound for the height of a tree, a tree of capacity 2 with
+     * {2^32} keys is 32 levels high.
+     */
+    private static final int MAX_HEIGHT = 40;
+
+    private final PageStore store;
+
+    private final ValueHeap values;
+
+    private final int capacity;
+
+    private final long payload;
+
+    private int rootPage;
+
+    /**
+     * Descent path of the current operation, as page numbers and the index
+     * of the child taken in each of them. Level 0 is the root.
+     */
+    private final int[] pathPages = new int[MAX_HEIGHT];
+
+    private final int[] pathIndexes = new int[MAX_HEIGHT];
+
+    private int pathDepth;
+
+    /**
+     * Buffers holding the keys and children of an overflowing inner node
+     * while it is split.
+     */
+    private final int[] splitKeys;
+
+    private final int[] splitChildren;
+
+    /**
+     * Create an empty tree in the given store.
+     *
+     * @param capacity Number of keys per node, at most
+     *                 {maxCapacity(store.pageSize())}.
+     */
+    public PagedBPlusTree(PageStore store, int capacity) {
+        if (capacity % 2 != 0 || capacity < 2 || capacity > maxCapacity(store.pageSize())) {
+            throw new IllegalArgumentException(
+                    "Invalid capacity " + capacity + " for page size " + store.pageSize());
+        }
+        this.store = store;
+        this.values = new ValueHeap(store);
+        this.capacity = capacity;
+        this.payload = KEYS + 4L * capacity;
+        this.splitKeys = new int[capacity + 1];
+        this.splitChildren = new int[capacity + 2];
+        this.rootPage = newNode(LEAF);
+    }
+
+    /**
+     * Largest even capacity whose nodes fit into a page of the given size.
+     */
+    public static int maxCapacity(int pageSize) {
+        // A leaf needs 12 bytes per entry, an inner node only 8
+        return (pageSize - KEYS) / 12 / 2 * 2;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    ///// Public API
+
+    /**
+     * Lookup the value stored under the given key.
+     *
+     * @return The stored value, or {null} if the key does not exist.
+     */
+    public String lookup(Integer key) {
+        int page = rootPage;
+        long node = store.pin(page);
+        while (store.getInt(node + TYPE) == INNER) {
+            int child = child(node, childIndex(node, key));
+            store.unpin(page, false);
+            page = child;
+            node = store.pin(page);
+        }
+        int index = search(node, key);
+        String value = index >= 0 ? values.load(value(node, index)) : null;
+        store.unpin(page, false);
+        return value;
+    }
+
+    /**
+     * Insert the key/value pair into the B+ tree.
+     */
+    public void insert(int key, String value) {
+        int page = findLeafPage(key);
+        long handle = values.store(value);
+        long node = store.pin(page);
+        int index = search(node, key);
+
+        // Replace the value of an existing key
+        if (index >= 0) {
+            long oldHandle = value(node, index);
+            setValue(node, index, handle);
+            store.unpin(page, true);
+            values.free(oldHandle);
+            return;
+        }
+        index = -index - 1;
+
+        if (size(node) < capacity) {
+            insertLeafEntry(node, index, key, handle);
+            store.unpin(page, true);
+        } else {
+            store.unpin(page, false);
+            splitLeaf(page, index, key, handle);
+        }
+    }
+
+    /**
+     * Delete the key/value pair from the B+ tree.
+     *
+     * @return The original value, or {null} if the key does not exist.
+     */
+    public String delete(Integer key) {
+        int page = findLeafPage(key);
+        long node = store.pin(page);
+        int index = search(node, key);
+        if (index < 0) {
+            store.unpin(page, false);
+            return null; // Key not found
+        }
+
+        long handle = value(node, index);
+        removeLeafEntry(node, index);
+        boolean underflow = pathDepth > 0 && size(node) < capacity / 2;
+        store.unpin(page, true);
+
+        String value = values.load(handle);
+        values.free(handle);
+        if (underflow) {
+            handleLeafUnderflow(page, pathDepth - 1);
+        }
+        return value;
+    }
+
+    /**
+     * Cursor over the entries with {from <= key < to} in ascending order.
+     * The cursor is not valid anymore once the tree is modified.
+     */
+    public Cursor scan(int from, int to) {
+        int page = findLeafPage(from);
+        long node = store.pin(page);
+        int index = search(node, from);
+        store.unpin(page, false);
+        return new Cursor(page, index >= 0 ? index : -index - 1, to);
+    }
+
+    /**
+     * Position in the leaves of a {scan}, used like a {RangeCursor} through
+     * {advance()}, {key()} and {value()}. Each step pins the current leaf
+     * only while reading from it.
+     */
+    public class Cursor {
+
+        private final int to;
+
+        private int page;
+
+        private int index;
+
+        private int key;
+
+        private long handle;
+
+        private Cursor(int page, int index, int to) {
+            this.page = page;
+            this.index = index;
+            this.to = to;
+        }
+
+        /**
+         * Move to the next entry.
+         *
+         * @return {false} if there are no more entries in the range.
+         */
+        public boolean advance() {
+            while (page != PageStore.NO_PAGE) {
+                long node = store.pin(page);
+                if (index < size(node)) {
+                    key = PagedBPlusTree.this.key(node, index);
+                    handle = PagedBPlusTree.this.value(node, index);
+                    store.unpin(page, false);
+                    if (key >= to) {
+                        page = PageStore.NO_PAGE;
+                        return false;
+                    }
+                    index++;
+                    return true;
+                }
+                int next = store.getInt(node + NEXT);
+                store.unpin(page, false);
+                page = next;
+                index = 0;
+            }
+            return false;
+        }
+
+        public int key() {
+            return key;
+        }
+
+        public String value() {
+            return values.load(handle);
+        }
+
+    }
+
+    ///// Descent
+
+    private int findLeafPage(int key) {
+        pathDepth = 0;
+        int page = rootPage;
+        long node = store.pin(page);
+        while (store.getInt(node + TYPE) == INNER) {
+            int index = childIndex(node, key);
+            int child = child(node, index);
+            store.unpin(page, false);
+            pathPages[pathDepth] = page;
+            pathIndexes[pathDepth] = index;
+            pathDepth++;
+            page = child;
+            node = store.pin(page);
+        }
+        store.unpin(page, false);
+        return page;
+    }
+
+    ///// Splits
+
+    private void splitLeaf(int page, int index, int key, long handle) {
+        int rightPage = newNode(LEAF);
+        long node = store.pin(page);
+        long right = store.pin(rightPage);
+
+        // Split it in half at the median, the left half keeps capacity/2 entries
+        int medianIndex = (capacity + 1) / 2;
+        if (index < medianIndex) {
+            moveLeafEntries(node, medianIndex - 1, right);
+            insertLeafEntry(node, index, key, handle);
+        } else {
+            moveLeafEntries(node, medianIndex, right);
+            insertLeafEntry(right, index - medianIndex, key, handle);
+        }
+
+        // Link the new leaf directly to the right of the split one
+        int nextPage = store.getInt(node + NEXT);
+        store.putInt(right + PREVIOUS, page);
+        store.putInt(right + NEXT, nextPage);
+        store.putInt(node + NEXT, rightPage);
+        if (nextPage != PageStore.NO_PAGE) {
+            long next = store.pin(nextPage);
+            store.putInt(next + PREVIOUS, rightPage);
+            store.unpin(nextPage, true);
+        }
+
+        int medianKey = key(right, 0);
+        store.unpin(rightPage, true);
+        store.unpin(page, true);
+        insertIntoParent(page, medianKey, rightPage, pathDepth - 1);
+    }
+
+    private void insertIntoParent(int leftPage, int medianKey, int rightPage, int level) {
+        while (level >= 0) {
+            int parentPage = pathPages[level];
+            int index = pathIndexes[level];
+            long parent = store.pin(parentPage);
+            int size = size(parent);
+            if (size < capacity) {
+                moveInts(parent + KEYS + 4L * index, parent + KEYS + 4L * (index + 1), size - index);
+                moveInts(parent + payload + 4L * (index + 1), parent + payload + 4L * (index + 2), size - index);
+                setKey(parent, index, medianKey);
+                setChild(parent, index + 1, rightPage);
+                setSize(parent, size + 1);
+                store.unpin(parentPage, true);
+                return;
+            }
+
+            // Collect all capacity + 1 keys and capacity + 2 children and
+            // split them at the median, the median key moves up
+            for (int i = 0, j = 0; i <= capacity; i++) {
+                splitKeys[i] = i == index ? medianKey : key(parent, j++);
+            }
+            for (int i = 0, j = 0; i <= capacity + 1; i++) {
+                splitChildren[i] = i == index + 1 ? rightPage : child(parent, j++);
+            }
+            int median = capacity / 2;
+            int newPage = newNode(INNER);
+            long right = store.pin(newPage);
+            for (int i = median + 1; i <= capacity; i++) {
+                setKey(right, i - median - 1, splitKeys[i]);
+            }
+            for (int i = median + 1; i <= capacity + 1; i++) {
+                setChild(right, i - median - 1, splitChildren[i]);
+            }
+            setSize(right, capacity - median);
+            for (int i = 0; i < median; i++) {
+                setKey(parent, i, splitKeys[i]);
+            }
+            for (int i = 0; i <= median; i++) {
+                setChild(parent, i, splitChildren[i]);
+            }
+            setSize(parent, median);
+            store.unpin(newPage, true);
+            store.unpin(parentPage, true);
+
+            leftPage = parentPage;
+            medianKey = splitKeys[median];
+            rightPage = newPage;
+            level--;
+        }
+
+        // The root was split, create a new root
+        int newRoot = newNode(INNER);
+        long root = store.pin(newRoot);
+        setKey(root, 0, medianKey);
+        setChild(root, 0, leftPage);
+        setChild(root, 1, rightPage);
+        setSize(root, 1);
+        store.unpin(newRoot, true);
+        rootPage = newRoot;
+    }
+
+    ///// Underflow
+
+    private void handleLeafUnderflow(int page, int level) {
+        int parentPage = pathPages[level];
+        int index = pathIndexes[level];
+        long parent = store.pin(parentPage);
+        long node = store.pin(page);
+        int leftPage = index > 0 ? child(parent, index - 1) : PageStore.NO_PAGE;
+        int rightPage = index < size(parent) ? child(parent, index + 1) : PageStore.NO_PAGE;
+
+        // Try borrowing from the left sibling
+        if (leftPage != PageStore.NO_PAGE) {
+            long left = store.pin(leftPage);
+            int leftSize = size(left);
+            if (leftSize > capacity / 2) {
+                insertLeafEntry(node, 0, key(left, leftSize - 1), value(left, leftSize - 1));
+                setSize(left, leftSize - 1);
+                setKey(parent, index - 1, key(node, 0));
+                store.unpin(leftPage, true);
+                store.unpin(page, true);
+                store.unpin(parentPage, true);
+                return;
+            }
+            store.unpin(leftPage, false);
+        }
+
+        // Try borrowing from the right sibling
+        if (rightPage != PageStore.NO_PAGE) {
+            long right = store.pin(rightPage);
+            if (size(right) > capacity / 2) {
+                insertLeafEntry(node, size(node), key(right, 0), value(right, 0));
+                removeLeafEntry(right, 0);
+                setKey(parent, index, key(right, 0));
+                store.unpin(rightPage, true);
+                store.unpin(page, true);
+                store.unpin(parentPage, true);
+                return;
+            }
+            store.unpin(rightPage, false);
+        }
+        store.unpin(page, true);
+
+        // Merge the right node into the left one otherwise
+        if (leftPage != PageStore.NO_PAGE) {
+            mergeLeaves(leftPage, page);
+            removeInnerEntry(parent, index - 1);
+        } else {
+            mergeLeaves(page, rightPage);
+            removeInnerEntry(parent, index);
+        }
+        store.unpin(parentPage, true);
+        handleInnerUnderflow(parentPage, level - 1);
+    }
+
+    private void mergeLeaves(int leftPage, int rightPage) {
+        long left = store.pin(leftPage);
+        long right = store.pin(rightPage);
+        moveLeafEntries(right, 0, left);
+        int nextPage = store.getInt(right + NEXT);
+        store.putInt(left + NEXT, nextPage);
+        if (nextPage != PageStore.NO_PAGE) {
+            long next = store.pin(nextPage);
+            store.putInt(next + PREVIOUS, leftPage);
+            store.unpin(nextPage, true);
+        }
+        store.unpin(rightPage, false);
+        store.unpin(leftPage, true);
+        store.freePage(rightPage);
+    }
+
+    private void handleInnerUnderflow(int page, int level) {
+        long node = store.pin(page);
+        int size = size(node);
+        if (level < 0) {
+            // An empty root is replaced by its only child
+            if (size == 0) {
+                rootPage = child(node, 0);
+                store.unpin(page, false);
+                store.freePage(page);
+            } else {
+                store.unpin(page, false);
+            }
+            return;
+        }
+        if (size >= capacity / 2) {
+            store.unpin(page, false);
+            return;
+        }
+
+        int parentPage = pathPages[level];
+        int index = pathIndexes[level];
+        long parent = store.pin(parentPage);
+        int leftPage = index > 0 ? child(parent, index - 1) : PageStore.NO_PAGE;
+        int rightPage = index < size(parent) ? child(parent, index + 1) : PageStore.NO_PAGE;
+
+        if (leftPage != PageStore.NO_PAGE) {
+            long left = store.pin(leftPage);
+            int leftSize = size(left);
+            if (leftSize > capacity / 2) {
+                // Rotate the last child of the left sibling through the parent
+                moveInts(node + KEYS, node + KEYS + 4, size);
+                moveInts(node + payload, node + payload + 4, size + 1);
+                setKey(node, 0, key(parent, index - 1));
+                setChild(node, 0, child(left, leftSize));
+                setSize(node, size + 1);
+                setKey(parent, index - 1, key(left, leftSize - 1));
+                setSize(left, leftSize - 1);
+                store.unpin(leftPage, true);
+                store.unpin(page, true);
+                store.unpin(parentPage, true);
+                return;
+            }
+            store.unpin(leftPage, false);
+        }
+        if (rightPage != PageStore.NO_PAGE) {
+            long right = store.pin(rightPage);
+            int rightSize = size(right);
+            if (rightSize > capacity / 2) {
+                // Rotate the first child of the right sibling through the parent
+                setKey(node, size, key(parent, index));
+                setChild(node, size + 1, child(right, 0));
+                setSize(node, size + 1);
+                setKey(parent, index, key(right, 0));
+                moveInts(right + KEYS + 4, right + KEYS, rightSize - 1);
+                moveInts(right + payload + 4, right + payload, rightSize);
+                setSize(right, rightSize - 1);
+                store.unpin(rightPage, true);
+                store.unpin(page, true);
+                store.unpin(parentPage, true);
+                return;
+            }
+            store.unpin(rightPage, false);
+        }
+        store.unpin(page, false);
+
+        // Merge the right node and the separating key into the left one
+        if (leftPage != PageStore.NO_PAGE) {
+            mergeInnerNodes(leftPage, parent, index - 1, page);
+        } else {
+            mergeInnerNodes(page, parent, index, rightPage);
+        }
+        store.unpin(parentPage, true);
+        handleInnerUnderflow(parentPage, level - 1);
+    }
+
+    private void mergeInnerNodes(int leftPage, long parent, int separatorIndex, int rightPage) {
+        long left = store.pin(leftPage);
+        long right = store.pin(rightPage);
+        int leftSize = size(left);
+        int rightSize = size(right);
+        setKey(left, leftSize, key(parent, separatorIndex));
+        moveInts(right + KEYS, left + KEYS + 4L * (leftSize + 1), rightSize);
+        moveInts(right + payload, left + payload + 4L * (leftSize + 1), rightSize + 1);
+        setSize(left, leftSize + 1 + rightSize);
+        removeInnerEntry(parent, separatorIndex);
+        store.unpin(rightPage, false);
+        store.unpin(leftPage, true);
+        store.freePage(rightPage);
+    }
+
+    ///// Node accessors, all addresses refer to pinned pages
+
+    private int newNode(int type) {
+        int page = store.allocatePage();
+        long node = store.pin(page);
+        store.putInt(node + TYPE, type);
+        store.putInt(node + SIZE, 0);
+        store.putInt(node + PREVIOUS, PageStore.NO_PAGE);
+        store.putInt(node + NEXT, PageStore.NO_PAGE);
+        store.unpin(page, true);
+        return page;
+    }
+
+    private int size(long node) {
+        return store.getInt(node + SIZE);
+    }
+
+    private void setSize(long node, int size) {
+        store.putInt(node + SIZE, size);
+    }
+
+    private int key(long node, int index) {
+        return store.getInt(node + KEYS + 4L * index);
+    }
+
+    private void setKey(long node, int index, int key) {
+        store.putInt(node + KEYS + 4L * index, key);
+    }
+
+    private long value(long node, int index) {
+        return store.getLong(node + payload + 8L * index);
+    }
+
+    private void setValue(long node, int index, long handle) {
+        store.putLong(node + payload + 8L * index, handle);
+    }
+
+    private int child(long node, int index) {
+        return store.getInt(node + payload + 4L * index);
+    }
+
+    private void setChild(long node, int index, int page) {
+        store.putInt(node + payload + 4L * index, page);
+    }
+
+    /**
+     * Binary search over the keys of the node.
+     *
+     * @return The index of the key, or {-(insertion point) - 1}.
+     */
+    private int search(long node, int key) {
+        int low = 0;
+        int high = size(node) - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int middleKey = key(node, middle);
+            if (middleKey < key) {
+                low = middle + 1;
+            } else if (middleKey > key) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private int childIndex(long node, int key) {
+        int index = search(node, key);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    private void insertLeafEntry(long node, int index, int key, long handle) {
+        int size = size(node);
+        moveInts(node + KEYS + 4L * index, node + KEYS + 4L * (index + 1), size - index);
+        moveLongs(node + payload + 8L * index, node + payload + 8L * (index + 1), size - index);
+        setKey(node, index, key);
+        setValue(node, index, handle);
+        setSize(node, size + 1);
+    }
+
+    private void removeLeafEntry(long node, int index) {
+        int size = size(node);
+        moveInts(node + KEYS + 4L * (index + 1), node + KEYS + 4L * index, size - index - 1);
+        moveLongs(node + payload + 8L * (index + 1), node + payload + 8L * index, size - index - 1);
+        setSize(node, size - 1);
+    }
+
+    /**
+     * Append the entries from position {from} onwards to the end of the
+     * target leaf and drop them from the source leaf.
+     */
+    private void moveLeafEntries(long source, int from, long target) {
+        int count = size(source) - from;
+        int targetSize = size(target);
+        moveInts(source + KEYS + 4L * from, target + KEYS + 4L * targetSize, count);
+        moveLongs(source + payload + 8L * from, target + payload + 8L * targetSize, count);
+        setSize(target, targetSize + count);
+        setSize(source, from);
+    }
+
+    /**
+     * Remove the key at the given position together with the child to the
+     * right of it.
+     */
+    private void removeInnerEntry(long node, int index) {
+        int size = size(node);
+        moveInts(node + KEYS + 4L * (index + 1), node + KEYS + 4L * index, size - index - 1);
+        moveInts(node + payload + 4L * (index + 2), node + payload + 4L * (index + 1), size - index - 1);
+        setSize(node, size - 1);
+    }
+
+    private void moveInts(long from, long to, int count) {
+        if (to > from) {
+            for (int i = count - 1; i >= 0; i--) {
+                store.putInt(to + 4L * i, store.getInt(from + 4L * i));
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                store.putInt(to + 4L * i, store.getInt(from + 4L * i));
+            }
+        }
+    }
+
+    private void moveLongs(long from, long to, int count) {
+        if (to > from) {
+            for (int i = count - 1; i >= 0; i--) {
+                store.putLong(to + 8L * i, store.getLong(from + 8L * i));
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                store.putLong(to + 8L * i, store.getLong(from + 8L * i));
+            }
+        }
+    }
+
+}
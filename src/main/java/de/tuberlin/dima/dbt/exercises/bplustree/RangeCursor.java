@@ -0,0 +1,209 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Cursor over the entries of a key range, created by {BPlusTree.scan} and
+ * {BPlusTree.scanDescending}.
+ * <p>
+ * The cursor starts at a leaf found by a single descent from the root and
+ * then follows the sibling links between the leaves. It can either be used
+ * as an {Iterator} or, without allocating an entry per key, through
+ * {advance()}, {key()} and {value()}:
+ * <p>
+ * {pre}
+ * RangeCursor cursor = tree.scan(10, 20);
+ * while (cursor.advance()) {
+ *     process(cursor.key(), cursor.value());
+ * }
+ * {pre}
+ * <p>
+ * The cursor is not valid anymore once the tree is modified. Cursors over
+ * a {Snapshot} do not follow the sibling links, which always belong to the
+ * current version of the tree, but keep the path from the root to the
+ * current leaf and step to the neighbouring leaf through it.
+ */
+public class RangeCursor implements Iterator<Map.Entry<Integer, String>> {
+
+    private final int from;
+
+    private final int to;
+
+    private final boolean descending;
+
+    private LeafNode leaf;
+
+    private int index;
+
+    private LeafNode currentLeaf;
+
+    private int currentIndex;
+
+    /**
+     * Path from the root to the current leaf, or {null} if the cursor follows
+     * the sibling links.
+     */
+    private final InnerNode[] pathNodes;
+
+    private final int[] pathIndexes;
+
+    /**
+     * Create a cursor that starts at the given position.
+     *
+     * @param leaf  The leaf of the first entry.
+     * @param index The position of the first entry in the leaf. May be
+     *              outside of the occupied part of the leaf, in which case
+     *              the cursor continues with the next sibling.
+     */
+    RangeCursor(LeafNode leaf, int index, int from, int to, boolean descending) {
+        this.leaf = leaf;
+        this.index = index;
+        this.from = from;
+        this.to = to;
+        this.descending = descending;
+        this.pathNodes = null;
+        this.pathIndexes = null;
+        skipExhaustedLeaves();
+    }
+
+    /**
+     * Create a cursor that descends from the given root to the first entry
+     * and moves between leaves without using the sibling links.
+     */
+    RangeCursor(Node root, int from, int to, boolean descending) {
+        this.from = from;
+        this.to = to;
+        this.descending = descending;
+        int height = 0;
+        for (Node node = root; node instanceof InnerNode; node = ((InnerNode) node).getChildren()[0]) {
+            height++;
+        }
+        this.pathNodes = new InnerNode[height];
+        this.pathIndexes = new int[height];
+        int key = descending ? to : from;
+        Node node = root;
+        for (int level = 0; level < height; level++) {
+            InnerNode innerNode = (InnerNode) node;
+            pathNodes[level] = innerNode;
+            pathIndexes[level] = innerNode.childIndex(key);
+            node = innerNode.getChildren()[pathIndexes[level]];
+        }
+        this.leaf = (LeafNode) node;
+        int index = leaf.search(key);
+        index = index >= 0 ? index : -index - 1;
+        this.index = descending ? index - 1 : index;
+        skipExhaustedLeaves();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (leaf == null) {
+            return false;
+        }
+        int key = leaf.key(index);
+        return descending ? key >= from : key < to;
+    }
+
+    /**
+     * Move the cursor to the next entry in the range.
+     *
+     * @return {false} if the range is exhausted.
+     */
+    public boolean advance() {
+        if (!hasNext()) {
+            currentLeaf = null;
+            return false;
+        }
+        currentLeaf = leaf;
+        currentIndex = index;
+        index += descending ? -1 : 1;
+        skipExhaustedLeaves();
+        return true;
+    }
+
+    /**
+     * The key of the current entry.
+     */
+    public int key() {
+        checkCurrent();
+        return currentLeaf.key(currentIndex);
+    }
+
+    /**
+     * The value of the current entry.
+     */
+    public String value() {
+        checkCurrent();
+        return currentLeaf.value(currentIndex);
+    }
+
+    /**
+     * The code of the value of the current entry, without decoding it, if
+     * the tree stores its values in a {ValueDictionary}.
+     *
+     * @throws IllegalStateException If the values are not encoded.
+     */
+    public int code() {
+        checkCurrent();
+        return currentLeaf.code(currentIndex);
+    }
+
+    @Override
+    public Map.Entry<Integer, String> next() {
+        if (!advance()) {
+            throw new NoSuchElementException();
+        }
+        return new AbstractMap.SimpleImmutableEntry<>(key(), value());
+    }
+
+    private void checkCurrent() {
+        if (currentLeaf == null) {
+            throw new NoSuchElementException();
+        }
+    }
+
+    private void skipExhaustedLeaves() {
+        if (descending) {
+            while (leaf != null && index < 0) {
+                leaf = pathNodes == null ? leaf.getPrevious() : siblingFromPath();
+                index = leaf == null ? 0 : leaf.getSize() - 1;
+            }
+        } else {
+            while (leaf != null && index >= leaf.getSize()) {
+                leaf = pathNodes == null ? leaf.getNext() : siblingFromPath();
+                index = 0;
+            }
+        }
+    }
+
+    /**
+     * Move the path to the neighbouring leaf in scan direction.
+     *
+     * @return The leaf, or {null} if the current leaf is the last one.
+     */
+    private LeafNode siblingFromPath() {
+        // Go up to the first node that has another child in scan direction
+        int level = pathNodes.length - 1;
+        while (level >= 0 && pathIndexes[level] == (descending ? 0 : pathNodes[level].getSize())) {
+            level--;
+        }
+        if (level < 0) {
+            return null;
+        }
+        pathIndexes[level] += descending ? -1 : 1;
+        Node node = pathNodes[level].getChildren()[pathIndexes[level]];
+
+        // Then down along the nearest edge of that subtree
+        for (level++; level < pathNodes.length; level++) {
+            InnerNode innerNode = (InnerNode) node;
+            pathNodes[level] = innerNode;
+            pathIndexes[level] = descending ? innerNode.getSize() : 0;
+            node = innerNode.getChildren()[pathIndexes[level]];
+        }
+        return (LeafNode) node;
+    }
+
+}
@@ -0,0 +1,172 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/**
+ * {Spliterator} over the entries of a key range, created by
+ * {BPlusTree.spliterator} and {Snapshot.spliterator}.
+ * <p>
+ * It splits along the tree: the children of the lowest inner node that
+ * covers the range are divided into two halves at the separator key between
+ * them. Once the range lies within a single child, the next split descends
+ * into it, so each part stays a whole number of subtrees until it shrinks
+ * to a single leaf. Like a {RangeCursor} that walks the path from its node,
+ * it never follows the sibling links and thus also works on snapshots.
+ * <p>
+ * The size is estimated from the entry counts of the children. It is not
+ * valid anymore once the tree is modified.
+ */
+class RangeSpliterator implements Spliterator<Map.Entry<Integer, String>> {
+
+    /**
+     * Number of entries below which {parallelForEach} stops splitting.
+     */
+    static final int SEQUENTIAL_THRESHOLD = 1 << 10;
+
+    /**
+     * Lowest node known to contain the whole range.
+     */
+    private Node node;
+
+    private int from;
+
+    private final int to;
+
+    /**
+     * Cursor over the remaining entries, once the traversal has started.
+     */
+    private RangeCursor cursor;
+
+    RangeSpliterator(Node node, int from, int to) {
+        this.node = node;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Map.Entry<Integer, String>> action) {
+        if (cursor == null) {
+            cursor = new RangeCursor(node, from, to, false);
+        }
+        if (!cursor.hasNext()) {
+            return false;
+        }
+        action.accept(cursor.next());
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super Map.Entry<Integer, String>> action) {
+        if (cursor == null) {
+            cursor = new RangeCursor(node, from, to, false);
+        }
+        cursor.forEachRemaining(action);
+    }
+
+    /**
+     * Split off the lower half of the children that cover the range.
+     *
+     * @return The lower part, or {null} if the range lies within a single
+     * leaf or the traversal has started.
+     */
+    @Override
+    public Spliterator<Map.Entry<Integer, String>> trySplit() {
+        if (cursor != null || from >= to) {
+            return null;
+        }
+        while (node instanceof InnerNode) {
+            InnerNode innerNode = (InnerNode) node;
+            int first = innerNode.childIndex(from);
+            int last = innerNode.childIndex(to - 1);
+            if (first < last) {
+                int separator = innerNode.getKeys()[(first + last) / 2];
+                RangeSpliterator prefix = new RangeSpliterator(node, from, separator);
+                from = separator;
+                return prefix;
+            }
+            node = innerNode.getChildren()[first];
+        }
+        return null;
+    }
+
+    /**
+     * The number of entries in the children that cover the range, which
+     * may include some outside of it.
+     */
+    @Override
+    public long estimateSize() {
+        if (from >= to) {
+            return 0;
+        }
+        if (!(node instanceof InnerNode)) {
+            return node.getSize();
+        }
+        InnerNode innerNode = (InnerNode) node;
+        long size = 0;
+        for (int i = innerNode.childIndex(from); i <= innerNode.childIndex(to - 1); i++) {
+            size += innerNode.getCounts()[i];
+        }
+        return size;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | SORTED | DISTINCT | NONNULL;
+    }
+
+    @Override
+    public Comparator<? super Map.Entry<Integer, String>> getComparator() {
+        return Map.Entry.comparingByKey();
+    }
+
+    /**
+     * Apply the action to all entries of the spliterator in the common
+     * fork/join pool, splitting until the parts have less than
+     * {SEQUENTIAL_THRESHOLD} entries.
+     */
+    static void parallelForEach(Spliterator<Map.Entry<Integer, String>> spliterator,
+                                Consumer<? super Map.Entry<Integer, String>> action) {
+        ForkJoinPool.commonPool().invoke(new ForEachTask(spliterator, action));
+    }
+
+    private static class ForEachTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Spliterator<Map.Entry<Integer, String>> spliterator;
+
+        private final Consumer<? super Map.Entry<Integer, String>> action;
+
+        ForEachTask(Spliterator<Map.Entry<Integer, String>> spliterator,
+                    Consumer<? super Map.Entry<Integer, String>> action) {
+            this.spliterator = spliterator;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            Deque<ForEachTask> forked = new ArrayDeque<>();
+            Spliterator<Map.Entry<Integer, String>> prefix;
+            while (spliterator.estimateSize() > SEQUENTIAL_THRESHOLD
+                    && (prefix = spliterator.trySplit()) != null) {
+                ForEachTask task = new ForEachTask(prefix, action);
+                task.fork();
+                forked.push(task);
+            }
+            spliterator.forEachRemaining(action);
+            for (ForkJoinTask<?> task : forked) {
+                task.join();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,385 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-safe forest of {BPlusTree}s, each responsible for a range of keys.
+ * <p>
+ * The key space is split into a fixed number of shards with a lock each,
+ * so operations on different shards run in parallel while every single
+ * tree is only used by one thread at a time. Point operations lock the
+ * shard of their key, range scans lock and read one shard after the other.
+ * <p>
+ * The boundaries between shards move while the tree is in use. Every
+ * {REBALANCE_INTERVAL} operations on a shard it is compared with its
+ * neighbours: if it got much more operations than one of them, the keys
+ * of about half of its recent operations move over; otherwise if it holds
+ * much more entries, half of the difference moves over. The entries are
+ * located with {BPlusTree.select} and moved with {BPlusTree.insertAll} and
+ * {BPlusTree.deleteRange}, while both shards are locked. Locks are always
+ * taken in shard order, so threads never deadlock.
+ */
+public class ShardedBPlusTree {
+
+    /**
+     * Number of operations on a shard between two rebalancing checks.
+     */
+    static final int REBALANCE_INTERVAL = 1 << 12;
+
+    /**
+     * Number of recent keys that each shard remembers to tell where its
+     * operations go.
+     */
+    private static final int SAMPLES = 64;
+
+    private final Shard[] shards;
+
+    /**
+     * Lower bound of each shard. Only a hint to find the shard of a key,
+     * the bounds of the shard itself are authoritative.
+     */
+    private final AtomicIntegerArray bounds;
+
+    /**
+     * Create a tree with the given number of shards, which initially split
+     * the key space into ranges of equal width.
+     */
+    public ShardedBPlusTree(int shardCount, int capacity) {
+        shards = new Shard[shardCount];
+        bounds = new AtomicIntegerArray(shardCount);
+        long width = (1L << 32) / shardCount;
+        for (int i = 0; i < shardCount; i++) {
+            long low = Integer.MIN_VALUE + i * width;
+            long high = i == shardCount - 1 ? Integer.MAX_VALUE + 1L : low + width;
+            shards[i] = new Shard(i, low, high, capacity);
+            bounds.set(i, (int) low);
+        }
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Lookup the value stored under the given key.
+     *
+     * @return The stored value, or {null} if the key does not exist.
+     */
+    public String lookup(Integer key) {
+        Shard shard = lockShard(key);
+        String value;
+        boolean rebalance;
+        try {
+            value = shard.tree.lookup(key);
+            rebalance = shard.record(key);
+        } finally {
+            shard.lock.unlock();
+        }
+        if (rebalance) {
+            rebalance(shard.index);
+        }
+        return value;
+    }
+
+    /**
+     * Insert the key/value pair into the tree.
+     */
+    public void insert(int key, String value) {
+        Shard shard = lockShard(key);
+        boolean rebalance;
+        try {
+            shard.tree.insert(key, value);
+            rebalance = shard.record(key);
+        } finally {
+            shard.lock.unlock();
+        }
+        if (rebalance) {
+            rebalance(shard.index);
+        }
+    }
+
+    /**
+     * Delete the key/value pair from the tree.
+     *
+     * @return The original value, or {null} if the key does not exist.
+     */
+    public String delete(Integer key) {
+        Shard shard = lockShard(key);
+        String value;
+        boolean rebalance;
+        try {
+            value = shard.tree.delete(key);
+            rebalance = shard.record(key);
+        } finally {
+            shard.lock.unlock();
+        }
+        if (rebalance) {
+            rebalance(shard.index);
+        }
+        return value;
+    }
+
+    /**
+     * All entries with {from <= key < to} in ascending key order.
+     * <p>
+     * The shards are read one after the other, each under its own lock, so
+     * writers are only held up on the shard being read. The scan continues
+     * from the upper bound of the shard it read last rather than with the
+     * next shard, so entries that move between shards meanwhile are
+     * neither skipped nor returned twice. Each shard's part reflects one
+     * point in time, but modifications of shards that were already read or
+     * are still to be read may happen in between.
+     */
+    public List<Map.Entry<Integer, String>> scan(int from, int to) {
+        List<Map.Entry<Integer, String>> entries = new ArrayList<>();
+        long key = from;
+        while (key < to) {
+            Shard shard = lockShard((int) key);
+            try {
+                RangeCursor cursor = shard.tree.scan((int) key, (int) Math.min(to, shard.high));
+                while (cursor.hasNext()) {
+                    entries.add(cursor.next());
+                }
+                key = shard.high;
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Number of entries in all shards.
+     */
+    public long size() {
+        long size = 0;
+        for (Shard shard : shards) {
+            shard.lock.lock();
+        }
+        try {
+            for (Shard shard : shards) {
+                size += shard.tree.size();
+            }
+        } finally {
+            for (Shard shard : shards) {
+                shard.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Number of entries in the given shard.
+     */
+    long shardSize(int index) {
+        Shard shard = shards[index];
+        shard.lock.lock();
+        try {
+            return shard.tree.size();
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Lock and return the shard responsible for the key.
+     */
+    private Shard lockShard(int key) {
+        int index = hint(key);
+        while (true) {
+            Shard shard = shards[index];
+            shard.lock.lock();
+            if (key < shard.low) {
+                index--;
+            } else if (key >= shard.high) {
+                index++;
+            } else {
+                return shard;
+            }
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * The index of the shard that is probably responsible for the key.
+     */
+    private int hint(int key) {
+        int low = 0;
+        int high = bounds.length() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (bounds.get(middle) <= key) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    ///// Rebalancing
+
+    private void rebalance(int index) {
+        if (index > 0 && rebalance(shards[index - 1], shards[index])) {
+            return;
+        }
+        if (index < shards.length - 1) {
+            rebalance(shards[index], shards[index + 1]);
+        }
+    }
+
+    /**
+     * Move the boundary between two neighbouring shards if one of them is
+     * much hotter or larger than the other.
+     *
+     * @return Whether entries were moved.
+     */
+    private boolean rebalance(Shard left, Shard right) {
+        left.lock.lock();
+        right.lock.lock();
+        try {
+            if (moveHot(left, right) || moveHot(right, left)
+                    || moveLarge(left, right) || moveLarge(right, left)) {
+                left.resetHeat();
+                right.resetHeat();
+                return true;
+            }
+            // Older operations count less and less
+            left.heat /= 2;
+            right.heat /= 2;
+            return false;
+        } finally {
+            right.lock.unlock();
+            left.lock.unlock();
+        }
+    }
+
+    /**
+     * Move the keys of about half of the recent operations of a hot shard
+     * to its neighbour, but at most half of its entries.
+     */
+    private boolean moveHot(Shard from, Shard to) {
+        if (from.heat < REBALANCE_INTERVAL || from.heat <= 2 * to.heat) {
+            return false;
+        }
+        int[] samples = Arrays.copyOf(from.samples, (int) Math.min(from.heat, SAMPLES));
+        Arrays.sort(samples);
+        int median = samples[samples.length / 2];
+        long size = from.tree.size();
+        long count = to.index > from.index ? from.tree.countRange(median, (int) from.high)
+                                           : from.tree.countRange((int) from.low, median);
+        return move(from, to, Math.min(count, size / 2));
+    }
+
+    /**
+     * Move half of the difference in size to the neighbour of a large
+     * shard.
+     */
+    private boolean moveLarge(Shard from, Shard to) {
+        long fromSize = from.tree.size();
+        long toSize = to.tree.size();
+        if (fromSize <= 2 * toSize + REBALANCE_INTERVAL) {
+            return false;
+        }
+        return move(from, to, (fromSize - toSize) / 2);
+    }
+
+    /**
+     * Move the given number of entries next to the boundary from one shard
+     * to its neighbour. Both shards are locked by the caller.
+     */
+    private boolean move(Shard from, Shard to, long count) {
+        long size = from.tree.size();
+        if (count <= 0 || count >= size) {
+            return false;
+        }
+        int start;
+        int end;
+        if (to.index > from.index) {
+            start = from.tree.select(size - count);
+            end = (int) from.high;
+        } else {
+            start = (int) from.low;
+            end = from.tree.select(count);
+        }
+
+        int[] keys = new int[(int) count];
+        String[] values = new String[(int) count];
+        RangeCursor cursor = from.tree.scan(start, end);
+        for (int i = 0; cursor.advance(); i++) {
+            keys[i] = cursor.key();
+            values[i] = cursor.value();
+        }
+        to.tree.insertAll(keys, values);
+        from.tree.deleteRange(start, end);
+
+        if (to.index > from.index) {
+            from.high = to.low = start;
+            bounds.set(to.index, start);
+        } else {
+            from.low = to.high = end;
+            bounds.set(from.index, end);
+        }
+        return true;
+    }
+
+    /**
+     * One tree with its lock and key range {low <= key < high}. All fields
+     * but the index are guarded by the lock.
+     */
+    private static class Shard {
+
+        final int index;
+
+        final ReentrantLock lock = new ReentrantLock();
+
+        final BPlusTree tree;
+
+        long low;
+
+        long high;
+
+        /**
+         * Operations since the last move, halved at each check that did not
+         * move anything.
+         */
+        long heat;
+
+        /**
+         * Keys of the most recent operations.
+         */
+        final int[] samples = new int[SAMPLES];
+
+        private long operations;
+
+        Shard(int index, long low, long high, int capacity) {
+            this.index = index;
+            this.low = low;
+            this.high = high;
+            this.tree = new BPlusTree(capacity);
+        }
+
+        /**
+         * Count an operation on the given key.
+         *
+         * @return Whether it is time to check the balance with the
+         * neighbours.
+         */
+        boolean record(int key) {
+            samples[(int) (heat % SAMPLES)] = key;
+            heat++;
+            return ++operations % REBALANCE_INTERVAL == 0;
+        }
+
+        void resetHeat() {
+            heat = 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,131 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Read-only view of a {BPlusTree} at the time {BPlusTree.snapshot()} was
+ * called.
+ * <p>
+ * The snapshot shares all nodes with the tree. The tree copies a shared node
+ * before modifying it, so the snapshot keeps seeing the old version without
+ * any locking. A snapshot may be read by another thread than the one
+ * modifying the tree, as long as it was handed over safely, e.g. through an
+ * executor. Close it once done, so the tree can stop copying nodes; the
+ * old versions are reclaimed by the garbage collector as soon as the
+ * snapshot is unreachable.
+ */
+public class Snapshot implements AutoCloseable {
+
+    private final BPlusTree tree;
+
+    private final Node root;
+
+    private final long generation;
+
+    private boolean closed;
+
+    Snapshot(BPlusTree tree, Node root, long generation) {
+        this.tree = tree;
+        this.root = root;
+        this.generation = generation;
+    }
+
+    /**
+     * The generation of the tree this snapshot shows. Each snapshot starts a
+     * new generation.
+     */
+    public long generation() {
+        return generation;
+    }
+
+    /**
+     * Lookup the value stored under the given key.
+     *
+     * @return The stored value, or {null} if the key does not exist.
+     */
+    public String lookup(int key) {
+        checkOpen();
+        Node node = root;
+        while (node instanceof InnerNode) {
+            InnerNode innerNode = (InnerNode) node;
+            node = innerNode.getChildren()[innerNode.childIndex(key)];
+        }
+        int index = node.search(key);
+        return index >= 0 ? ((LeafNode) node).value(index) : null;
+    }
+
+    /**
+     * Iterate in ascending key order over all entries with
+     * {from <= key < to}.
+     */
+    public RangeCursor scan(int from, int to) {
+        checkOpen();
+        return new RangeCursor(root, from, to, false);
+    }
+
+    /**
+     * Iterate in descending key order over all entries with
+     * {from <= key < to}.
+     */
+    public RangeCursor scanDescending(int from, int to) {
+        checkOpen();
+        return new RangeCursor(root, from, to, true);
+    }
+
+    /**
+     * Spliterator over all entries with {from <= key < to} in ascending key
+     * order, which splits at the child boundaries of the inner nodes.
+     */
+    public Spliterator<Map.Entry<Integer, String>> spliterator(int from, int to) {
+        checkOpen();
+        return new RangeSpliterator(root, from, to);
+    }
+
+    /**
+     * Stream over all entries with {from <= key < to} in ascending key
+     * order. A parallel stream divides the range by subtrees.
+     */
+    public Stream<Map.Entry<Integer, String>> stream(int from, int to) {
+        return StreamSupport.stream(spliterator(from, to), false);
+    }
+
+    /**
+     * Apply the action to all entries with {from <= key < to} in the common
+     * fork/join pool, with one task per group of subtrees. Unlike on the
+     * tree itself, the tree may be modified meanwhile.
+     */
+    public void parallelForEach(int from, int to,
+                                Consumer<? super Map.Entry<Integer, String>> action) {
+        RangeSpliterator.parallelForEach(spliterator(from, to), action);
+    }
+
+    public Node rootNode() {
+        return root;
+    }
+
+    int capacity() {
+        return tree.capacity();
+    }
+
+    /**
+     * Release the snapshot. It must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            tree.releaseSnapshot();
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Snapshot is closed");
+        }
+    }
+
+}
@@ -0,0 +1,264 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Operation counters and latencies of a {BPlusTree}, collected once they
+ * are enabled with {BPlusTree.enableMetrics()}. While they are disabled, the
+ * tree only pays for a {null} check per operation.
+ * <p>
+ * Besides counting, splits, merges and borrows are emitted as JFR events in
+ * the category "B+ Tree", so they show up in a flight recording next to GC
+ * and allocation events. With {setTrace}, the contents of the nodes
+ * involved in splits and deletes are printed as well.
+ * <p>
+ * Like the tree itself, the metrics are not thread-safe.
+ */
+public class TreeMetrics {
+
+    private long lookups;
+
+    private long inserts;
+
+    private long deletes;
+
+    private long leafSplits;
+
+    private long innerSplits;
+
+    private long leafMerges;
+
+    private long innerMerges;
+
+    private long leafBorrows;
+
+    private long innerBorrows;
+
+    private long descents;
+
+    private long nodesVisited;
+
+    private final LatencyHistogram lookupLatency = new LatencyHistogram();
+
+    private final LatencyHistogram insertLatency = new LatencyHistogram();
+
+    private final LatencyHistogram deleteLatency = new LatencyHistogram();
+
+    private PrintStream trace;
+
+    /**
+     * Print the nodes changed by splits and deletes to the given stream, or
+     * stop printing them if it is {null}.
+     */
+    public void setTrace(PrintStream trace) {
+        this.trace = trace;
+    }
+
+    public long lookups() {
+        return lookups;
+    }
+
+    public long inserts() {
+        return inserts;
+    }
+
+    public long deletes() {
+        return deletes;
+    }
+
+    public long leafSplits() {
+        return leafSplits;
+    }
+
+    public long innerSplits() {
+        return innerSplits;
+    }
+
+    public long leafMerges() {
+        return leafMerges;
+    }
+
+    public long innerMerges() {
+        return innerMerges;
+    }
+
+    public long leafBorrows() {
+        return leafBorrows;
+    }
+
+    public long innerBorrows() {
+        return innerBorrows;
+    }
+
+    /**
+     * Number of descents from the root to a leaf.
+     */
+    public long descents() {
+        return descents;
+    }
+
+    /**
+     * Number of nodes visited by all descents, including the leaves.
+     */
+    public long nodesVisited() {
+        return nodesVisited;
+    }
+
+    public double averageNodesVisited() {
+        return descents == 0 ? 0 : (double) nodesVisited / descents;
+    }
+
+    /**
+     * Latencies of single-key lookups. Batches are only counted.
+     */
+    public LatencyHistogram lookupLatency() {
+        return lookupLatency;
+    }
+
+    public LatencyHistogram insertLatency() {
+        return insertLatency;
+    }
+
+    public LatencyHistogram deleteLatency() {
+        return deleteLatency;
+    }
+
+    /**
+     * Set all counters and histograms back to zero.
+     */
+    public void reset() {
+        lookups = inserts = deletes = 0;
+        leafSplits = innerSplits = leafMerges = innerMerges = 0;
+        leafBorrows = innerBorrows = 0;
+        descents = nodesVisited = 0;
+        lookupLatency.reset();
+        insertLatency.reset();
+        deleteLatency.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "lookups=" + lookups + " inserts=" + inserts + " deletes=" + deletes
+                + "\nsplits: leaf=" + leafSplits + " inner=" + innerSplits
+                + "\nmerges: leaf=" + leafMerges + " inner=" + innerMerges
+                + "\nborrows: leaf=" + leafBorrows + " inner=" + innerBorrows
+                + String.format("\nnodes per descent=%.2f", averageNodesVisited())
+                + "\nlookup latency: " + lookupLatency
+                + "\ninsert latency: " + insertLatency
+                + "\ndelete latency: " + deleteLatency;
+    }
+
+    ///// Hooks called by the tree
+
+    void lookup(long nanos) {
+        lookups++;
+        lookupLatency.record(nanos);
+    }
+
+    void insert(long nanos) {
+        inserts++;
+        insertLatency.record(nanos);
+    }
+
+    void delete(long nanos) {
+        deletes++;
+        deleteLatency.record(nanos);
+    }
+
+    void deleteRange(long count) {
+        deletes += count;
+    }
+
+    void lookupBatch(int count) {
+        lookups += count;
+    }
+
+    void insertBatch(int count) {
+        inserts += count;
+    }
+
+    void descent(int nodes) {
+        descents++;
+        nodesVisited += nodes;
+    }
+
+    void leafSplit(LeafNode left, LeafNode right) {
+        leafSplits++;
+        if (trace != null) {
+            trace.println(Arrays.toString(Arrays.copyOf(right.getKeys(), right.getSize())));
+            trace.println(Arrays.toString(Arrays.copyOf(left.getKeys(), left.getSize())));
+        }
+        structureEvent("split", true, right.getKeys()[0]);
+    }
+
+    void innerSplit(int separator) {
+        innerSplits++;
+        structureEvent("split", false, separator);
+    }
+
+    void leafMerge(int separator) {
+        leafMerges++;
+        structureEvent("merge", true, separator);
+    }
+
+    void innerMerge(int separator) {
+        innerMerges++;
+        structureEvent("merge", false, separator);
+    }
+
+    void leafBorrow(int separator) {
+        leafBorrows++;
+        structureEvent("borrow", true, separator);
+    }
+
+    void innerBorrow(int separator) {
+        innerBorrows++;
+        structureEvent("borrow", false, separator);
+    }
+
+    void deleted(LeafNode node) {
+        if (trace != null) {
+            trace.println("----- Keys ------");
+            trace.println(Arrays.toString(Arrays.copyOf(node.getKeys(), node.getSize())));
+            trace.println("----- Values ------");
+            trace.println(Arrays.toString(Arrays.copyOf(node.getValues(), node.getSize())));
+            trace.println("-------------");
+        }
+    }
+
+    private static void structureEvent(String operation, boolean leaf, int separator) {
+        StructureEvent event = new StructureEvent();
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.leaf = leaf;
+            event.separator = separator;
+            event.commit();
+        }
+    }
+
+    @Name("de.tuberlin.dima.dbt.bplustree.Structure")
+    @Label("B+ Tree Structure Change")
+    @Category("B+ Tree")
+    @Description("A node was split, merged with a sibling or borrowed from one")
+    static class StructureEvent extends Event {
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Leaf")
+        boolean leaf;
+
+        @Label("Separator")
+        @Description("The separator key in the parent that was added, removed or changed")
+        int separator;
+
+    }
+
+}
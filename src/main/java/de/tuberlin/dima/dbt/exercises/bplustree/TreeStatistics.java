@@ -0,0 +1,152 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.Arrays;
+
+/**
+ * Shape of a {BPlusTree} at one point in time, see
+ * {BPlusTree.statistics()}.
+ * <p>
+ * The fill of a node is its number of keys divided by the capacity. Fills
+ * are counted in ten buckets of 10% each, a full node falls into the last
+ * one.
+ * <p>
+ * If the tree has a lookup cache, its hits and misses so far are included.
+ */
+public class TreeStatistics {
+
+    static final int FILL_BUCKETS = 10;
+
+    private final int capacity;
+
+    private final int[] nodesPerLevel;
+
+    private final long[] keysPerLevel;
+
+    private final int[] leafFill = new int[FILL_BUCKETS];
+
+    private final int[] innerFill = new int[FILL_BUCKETS];
+
+    private long cacheHits;
+
+    private long cacheMisses;
+
+    TreeStatistics(Node root, int capacity) {
+        this.capacity = capacity;
+        int height = 1;
+        for (Node node = root; node instanceof InnerNode; node = ((InnerNode) node).getChildren()[0]) {
+            height++;
+        }
+        this.nodesPerLevel = new int[height];
+        this.keysPerLevel = new long[height];
+        collect(root, 0);
+    }
+
+    /**
+     * Number of levels, 1 for a tree that only consists of its root leaf.
+     */
+    public int height() {
+        return nodesPerLevel.length;
+    }
+
+    /**
+     * Number of nodes on each level, starting with the root.
+     */
+    public int[] nodesPerLevel() {
+        return nodesPerLevel.clone();
+    }
+
+    public long leafCount() {
+        return nodesPerLevel[nodesPerLevel.length - 1];
+    }
+
+    public long innerNodeCount() {
+        long count = 0;
+        for (int level = 0; level < nodesPerLevel.length - 1; level++) {
+            count += nodesPerLevel[level];
+        }
+        return count;
+    }
+
+    /**
+     * Number of key/value pairs stored in the leaves.
+     */
+    public long entryCount() {
+        return keysPerLevel[keysPerLevel.length - 1];
+    }
+
+    /**
+     * Average fill of the leaves.
+     */
+    public double averageLeafFill() {
+        return (double) entryCount() / (leafCount() * capacity);
+    }
+
+    /**
+     * Number of leaves per fill bucket, from 0-10% to 90-100%.
+     */
+    public int[] leafFillDistribution() {
+        return leafFill.clone();
+    }
+
+    /**
+     * Number of inner nodes per fill bucket, from 0-10% to 90-100%.
+     */
+    public int[] innerFillDistribution() {
+        return innerFill.clone();
+    }
+
+    /**
+     * Number of lookups answered by the lookup cache.
+     */
+    public long cacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * Number of lookups that missed the lookup cache.
+     */
+    public long cacheMisses() {
+        return cacheMisses;
+    }
+
+    /**
+     * Fraction of the lookups answered by the lookup cache, 0 if there were
+     * none.
+     */
+    public double cacheHitRate() {
+        long lookups = cacheHits + cacheMisses;
+        return lookups == 0 ? 0 : (double) cacheHits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return "height=" + height() + " entries=" + entryCount()
+                + "\nnodes per level=" + Arrays.toString(nodesPerLevel)
+                + String.format("\naverage leaf fill=%.2f", averageLeafFill())
+                + "\nleaf fill=" + Arrays.toString(leafFill)
+                + "\ninner fill=" + Arrays.toString(innerFill)
+                + (cacheHits + cacheMisses > 0
+                   ? String.format("\ncache hit rate=%.2f", cacheHitRate()) : "");
+    }
+
+    void setLookupCache(long hits, long misses) {
+        this.cacheHits = hits;
+        this.cacheMisses = misses;
+    }
+
+    private void collect(Node node, int level) {
+        nodesPerLevel[level]++;
+        keysPerLevel[level] += node.getSize();
+        int bucket = Math.min(FILL_BUCKETS - 1, node.getSize() * FILL_BUCKETS / capacity);
+        if (node instanceof InnerNode) {
+            innerFill[bucket]++;
+            InnerNode innerNode = (InnerNode) node;
+            for (int i = 0; i <= innerNode.getSize(); i++) {
+                collect(innerNode.getChildren()[i], level + 1);
+            }
+        } else {
+            leafFill[bucket]++;
+        }
+    }
+
+}
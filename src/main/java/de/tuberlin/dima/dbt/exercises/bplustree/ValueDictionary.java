@@ -0,0 +1,71 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary that maps each distinct value to a dense {int} code, for trees
+ * that store codes in their leaves, see {BPlusTree.enableValueDictionary}.
+ * <p>
+ * Codes are assigned in the order values are first seen and never change,
+ * so one dictionary can be shared by any number of trees and threads.
+ * Encoding a known value is a lookup in a concurrent hash map, decoding is
+ * an array access. Values are never removed, so the dictionary is meant for
+ * a limited vocabulary.
+ */
+public class ValueDictionary {
+
+    /**
+     * Code of the {null} value.
+     */
+    public static final int NULL = -1;
+
+    private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<>();
+
+    /**
+     * Values by code. Replaced by a larger copy when full; a value is stored
+     * before its code is published through {codes}.
+     */
+    private volatile String[] values = new String[64];
+
+    private int size;
+
+    /**
+     * The code of the value, which is assigned if the value is new.
+     */
+    public int encode(String value) {
+        if (value == null) {
+            return NULL;
+        }
+        Integer code = codes.get(value);
+        return code != null ? code : add(value);
+    }
+
+    /**
+     * The value of a code returned by {encode}.
+     */
+    public String decode(int code) {
+        return code == NULL ? null : values[code];
+    }
+
+    /**
+     * Number of distinct values.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    private synchronized int add(String value) {
+        Integer code = codes.get(value);
+        if (code != null) {
+            return code;
+        }
+        if (size == values.length) {
+            values = Arrays.copyOf(values, 2 * size);
+        }
+        values[size] = value;
+        codes.put(value, size);
+        return size++;
+    }
+
+}
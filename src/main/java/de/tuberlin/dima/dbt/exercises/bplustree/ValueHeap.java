@@ -0,0 +1,192 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Stores the string values of a {PagedBPlusTree} in pages of a {PageStore}.
+ * <p>
+ * Each value is UTF-8 encoded and prefixed with its length. It is placed in
+ * a slot whose size is the next power of two of at least 16 bytes, and each
+ * page only holds slots of a single size. Freed slots are chained through
+ * the page and reused, and a page whose last value is freed is returned to
+ * the store, so that it can be used for nodes or other size classes. A
+ * value is referenced by a handle that combines its page and its offset in
+ * the page.
+ * <p>
+ * Page layout: size class, used slots, first free slot, first never used
+ * slot, position in {pagesWithSpace}, followed by the slots.
+ */
+class ValueHeap {
+
+    /**
+     * Handle of the {null} value.
+     */
+    static final long NULL = -1;
+
+    private static final int SIZE_CLASS = 0;
+
+    private static final int USED = 4;
+
+    private static final int FIRST_FREE = 8;
+
+    private static final int UNUSED = 12;
+
+    private static final int POSITION = 16;
+
+    private static final int HEADER_SIZE = 24;
+
+    private static final int MIN_SLOT_SHIFT = 4;
+
+    private final PageStore store;
+
+    private final int pageSize;
+
+    /**
+     * Per size class, a stack of the pages that have a free slot. Each of
+     * these pages stores its position in the stack, so it can be removed
+     * once it is empty.
+     */
+    private final int[][] pagesWithSpace;
+
+    private final int[] pagesWithSpaceCount;
+
+    ValueHeap(PageStore store) {
+        this.store = store;
+        this.pageSize = store.pageSize();
+        int sizeClasses = Integer.numberOfTrailingZeros(pageSize) - MIN_SLOT_SHIFT;
+        this.pagesWithSpace = new int[sizeClasses][8];
+        this.pagesWithSpaceCount = new int[sizeClasses];
+    }
+
+    /**
+     * Size in bytes of the largest value that can be stored.
+     */
+    int maxValueSize() {
+        return slotSize(pagesWithSpace.length - 1) - 4;
+    }
+
+    long store(String value) {
+        if (value == null) {
+            return NULL;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > maxValueSize()) {
+            throw new IllegalArgumentException(
+                    "Value of " + bytes.length + " bytes exceeds maximum of " + maxValueSize());
+        }
+        int sizeClass = Math.max(0, 32 - Integer.numberOfLeadingZeros(bytes.length + 3) - MIN_SLOT_SHIFT);
+        int slotSize = slotSize(sizeClass);
+
+        // Take a page with a free slot or start a new one
+        int page;
+        if (pagesWithSpaceCount[sizeClass] > 0) {
+            page = pagesWithSpace[sizeClass][pagesWithSpaceCount[sizeClass] - 1];
+        } else {
+            page = store.allocatePage();
+            long address = store.pin(page);
+            store.putInt(address + SIZE_CLASS, sizeClass);
+            store.putInt(address + USED, 0);
+            store.putInt(address + FIRST_FREE, 0);
+            store.putInt(address + UNUSED, HEADER_SIZE);
+            pushPageWithSpace(sizeClass, page, address);
+            store.unpin(page, true);
+        }
+
+        long address = store.pin(page);
+        int slot = store.getInt(address + FIRST_FREE);
+        if (slot != 0) {
+            store.putInt(address + FIRST_FREE, store.getInt(address + slot));
+        } else {
+            slot = store.getInt(address + UNUSED);
+            store.putInt(address + UNUSED, slot + slotSize);
+        }
+        store.putInt(address + USED, store.getInt(address + USED) + 1);
+        store.putInt(address + slot, bytes.length);
+        store.putBytes(address + slot + 4, bytes, 0, bytes.length);
+        if (isFull(address, slotSize)) {
+            pagesWithSpaceCount[sizeClass]--;
+        }
+        store.unpin(page, true);
+        return (long) page << 32 | slot;
+    }
+
+    String load(long handle) {
+        if (handle == NULL) {
+            return null;
+        }
+        int page = (int) (handle >>> 32);
+        long address = store.pin(page) + (int) handle;
+        byte[] bytes = new byte[store.getInt(address)];
+        store.getBytes(address + 4, bytes, 0, bytes.length);
+        store.unpin(page, false);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    void free(long handle) {
+        if (handle == NULL) {
+            return;
+        }
+        int page = (int) (handle >>> 32);
+        int slot = (int) handle;
+        long address = store.pin(page);
+        int sizeClass = store.getInt(address + SIZE_CLASS);
+        boolean wasFull = isFull(address, slotSize(sizeClass));
+        store.putInt(address + slot, store.getInt(address + FIRST_FREE));
+        store.putInt(address + FIRST_FREE, slot);
+        int used = store.getInt(address + USED) - 1;
+        store.putInt(address + USED, used);
+        if (used == 0) {
+            if (!wasFull) {
+                removePageWithSpace(sizeClass, store.getInt(address + POSITION));
+            }
+            store.unpin(page, false);
+            store.freePage(page);
+            return;
+        }
+        if (wasFull) {
+            pushPageWithSpace(sizeClass, page, address);
+        }
+        store.unpin(page, true);
+    }
+
+    private int slotSize(int sizeClass) {
+        return 1 << (sizeClass + MIN_SLOT_SHIFT);
+    }
+
+    private boolean isFull(long address, int slotSize) {
+        return store.getInt(address + FIRST_FREE) == 0
+                && store.getInt(address + UNUSED) + slotSize > pageSize;
+    }
+
+    /**
+     * Push the pinned page at the given address onto the stack of its size
+     * class.
+     */
+    private void pushPageWithSpace(int sizeClass, int page, long address) {
+        int[] pages = pagesWithSpace[sizeClass];
+        if (pagesWithSpaceCount[sizeClass] == pages.length) {
+            pages = Arrays.copyOf(pages, 2 * pages.length);
+            pagesWithSpace[sizeClass] = pages;
+        }
+        store.putInt(address + POSITION, pagesWithSpaceCount[sizeClass]);
+        pages[pagesWithSpaceCount[sizeClass]++] = page;
+    }
+
+    /**
+     * Remove the page at the given position of the stack of a size class,
+     * moving the top page into its place.
+     */
+    private void removePageWithSpace(int sizeClass, int position) {
+        int[] pages = pagesWithSpace[sizeClass];
+        int last = --pagesWithSpaceCount[sizeClass];
+        if (position != last) {
+            int moved = pages[last];
+            pages[position] = moved;
+            long address = store.pin(moved);
+            store.putInt(address + POSITION, position);
+            store.unpin(moved, true);
+        }
+    }
+
+}
@@ -0,0 +1,281 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the modifications of a B+ tree, used by
+ * {DurableBPlusTree}.
+ * <p>
+ * Records are first collected in memory and only written and forced to disk
+ * by {sync(lsn)}. When several threads sync at the same time, the first one
+ * becomes the leader and writes everything appended so far with a single
+ * {force}, while the others wait for it. Each waiting thread whose record
+ * was part of that batch returns without another {force}, so the number of
+ * syncs grows with the number of batches rather than with the number of
+ * operations.
+ * <p>
+ * Record layout: type, key, then for inserts the value length ({-1} for
+ * {null}) and the UTF-8 encoded value, followed by a CRC32 of the record.
+ * A record that is incomplete or fails its checksum marks the end of the
+ * log, so a write that was torn by a crash is simply dropped.
+ */
+public class WriteAheadLog implements Closeable {
+
+    /**
+     * Receives the records found in the log when it is opened.
+     */
+    public interface Replay {
+
+        void insert(int key, String value);
+
+        void delete(int key);
+
+    }
+
+    private static final byte INSERT = 1;
+
+    private static final byte DELETE = 2;
+
+    private static final int INITIAL_BUFFER_SIZE = 1 << 16;
+
+    private final FileChannel channel;
+
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Records appended but not yet written, and the buffer the current
+     * leader writes from. They are swapped at the start of each sync.
+     */
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+    private ByteBuffer writing = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+    /**
+     * Log sequence numbers count the bytes appended since the log was
+     * opened. A record is durable once {durableLsn} reached its end.
+     */
+    private long appendedLsn;
+
+    private long durableLsn;
+
+    private boolean syncing;
+
+    private IOException failure;
+
+    private long syncCount;
+
+    /**
+     * Open the log, passing all complete records it contains to the replay
+     * target. A torn record at the end is cut off.
+     */
+    public WriteAheadLog(Path file, Replay replay) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long end = replay(replay);
+        channel.truncate(end);
+        channel.position(end);
+    }
+
+    /**
+     * Append the insertion of a key.
+     *
+     * @return The log sequence number to sync on.
+     */
+    public synchronized long appendInsert(int key, String value) {
+        byte[] bytes = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 4 + 4 + (bytes == null ? 0 : bytes.length) + 4;
+        ByteBuffer buffer = reserve(length);
+        int start = buffer.position();
+        buffer.put(INSERT).putInt(key);
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length).put(bytes);
+        }
+        return finishRecord(buffer, start);
+    }
+
+    /**
+     * Append the deletion of a key.
+     *
+     * @return The log sequence number to sync on.
+     */
+    public synchronized long appendDelete(int key) {
+        ByteBuffer buffer = reserve(1 + 4 + 4);
+        int start = buffer.position();
+        buffer.put(DELETE).putInt(key);
+        return finishRecord(buffer, start);
+    }
+
+    /**
+     * Block until all records up to the given log sequence number are on
+     * disk.
+     */
+    public void sync(long lsn) throws IOException {
+        ByteBuffer batch;
+        long batchLsn;
+        synchronized (this) {
+            while (durableLsn < lsn && syncing && failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the log");
+                }
+            }
+            if (failure != null) {
+                throw new IOException("Log is unusable after a failed write", failure);
+            }
+            if (durableLsn >= lsn) {
+                return;
+            }
+            // Become the leader for everything appended so far
+            syncing = true;
+            batch = pending;
+            pending = writing;
+            batchLsn = appendedLsn;
+        }
+        IOException error = null;
+        try {
+            batch.flip();
+            while (batch.hasRemaining()) {
+                channel.write(batch);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            error = e;
+        }
+        synchronized (this) {
+            batch.clear();
+            writing = batch;
+            syncing = false;
+            if (error == null) {
+                durableLsn = batchLsn;
+                syncCount++;
+            } else {
+                failure = error;
+            }
+            notifyAll();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Drop all records, once their effects are covered by a checkpoint.
+     * The caller has to make sure no records are appended concurrently.
+     */
+    public void truncate() throws IOException {
+        long lsn;
+        synchronized (this) {
+            lsn = appendedLsn;
+        }
+        sync(lsn);
+        synchronized (this) {
+            channel.truncate(0);
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Number of times the log was forced to disk.
+     */
+    public synchronized long syncCount() {
+        return syncCount;
+    }
+
+    /**
+     * Sync all records and close the file.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            long lsn;
+            synchronized (this) {
+                lsn = appendedLsn;
+            }
+            if (failure == null) {
+                sync(lsn);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private ByteBuffer reserve(int length) {
+        if (pending.remaining() < length) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * pending.capacity(),
+                                                             pending.position() + length));
+            pending.flip();
+            larger.put(pending);
+            pending = larger;
+        }
+        return pending;
+    }
+
+    private long finishRecord(ByteBuffer buffer, int start) {
+        crc.reset();
+        crc.update(buffer.array(), start, buffer.position() - start);
+        buffer.putInt((int) crc.getValue());
+        appendedLsn += buffer.position() - start;
+        return appendedLsn;
+    }
+
+    /**
+     * @return The end of the last complete record.
+     */
+    private long replay(Replay replay) throws IOException {
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Log of " + size + " bytes is too large to replay");
+        }
+        ByteBuffer log = ByteBuffer.allocate((int) size);
+        while (log.hasRemaining() && channel.read(log, log.position()) >= 0) {
+            // read until the buffer is full
+        }
+        log.flip();
+        int end = 0;
+        while (true) {
+            int start = log.position();
+            if (log.remaining() < 1 + 4 + 4) {
+                return end;
+            }
+            byte type = log.get();
+            int key = log.getInt();
+            String value = null;
+            if (type == INSERT) {
+                int length = log.getInt();
+                if (length < -1 || log.remaining() < Math.max(length, 0) + 4) {
+                    return end;
+                }
+                if (length >= 0) {
+                    value = new String(log.array(), log.position(), length, StandardCharsets.UTF_8);
+                    log.position(log.position() + length);
+                }
+            } else if (type != DELETE) {
+                return end;
+            }
+            crc.reset();
+            crc.update(log.array(), start, log.position() - start);
+            if (log.getInt() != (int) crc.getValue()) {
+                return end;
+            }
+            if (type == INSERT) {
+                replay.insert(key, value);
+            } else {
+                replay.delete(key);
+            }
+            end = log.position();
+        }
+    }
+
+}
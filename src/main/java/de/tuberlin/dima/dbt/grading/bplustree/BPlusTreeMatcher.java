@@ -37,18 +37,24 @@ public class BPlusTreeMatcher extends TypeSafeMatcher<BPlusTree> {
         }
     }
 
+    private boolean isEqualKeys(Node expected, Node actual) {
+        return expected.getSize() == actual.getSize() &&
+                Arrays.equals(expected.getKeys(), 0, expected.getSize(),
+                              actual.getKeys(), 0, actual.getSize());
+    }
+
     private boolean isEqualNode(LeafNode expected, LeafNode actual) {
-        return Arrays.equals(expected.getKeys(), actual.getKeys()) &&
+        return isEqualKeys(expected, actual) &&
                 Arrays.equals(expected.getValues(), actual.getValues());
     }
 
     private boolean isEqualNode(InnerNode expected, InnerNode actual) {
-        if ( ! Arrays.equals(expected.getKeys(), actual.getKeys()) ) {
+        if ( ! isEqualKeys(expected, actual) ) {
             return false;
         }
         Node[] expectedChildren = expected.getChildren();
         Node[] actualChildren = actual.getChildren();
-        for (int i = 0; i < expectedChildren.length; ++i) {
+        for (int i = 0; i <= expected.getSize(); ++i) {
             if ( ! isEqualNode(expectedChildren[i], actualChildren[i]) ) {
                 return false;
             }
@@ -0,0 +1,131 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static de.tuberlin.dima.dbt.grading.bplustree.BPlusTreeMatcher.isTree;
+import static de.tuberlin.dima.dbt.exercises.bplustree.BPlusTreeUtilities.*;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class BPlusTreeSerializerTest {
+
+    // fail each test after 1 second
+    @Rule
+    public Timeout globalTimeout = new Timeout(1000);
+
+    @Test
+    public void roundTripKeepsEntries() throws IOException {
+        // given
+        BPlusTree tree = new BPlusTree(16);
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            int key = random.nextInt();
+            String value = i % 100 == 0 ? null : "value " + i + " \u00c4\u00d6\u00dc";
+            tree.insert(key, value);
+            expected.put(key, value);
+        }
+        tree.insert(Integer.MIN_VALUE, "min");
+        expected.put(Integer.MIN_VALUE, "min");
+        tree.insert(Integer.MAX_VALUE, "x".repeat(100000));
+        expected.put(Integer.MAX_VALUE, "x".repeat(100000));
+        // when
+        BPlusTree loaded = read(write(tree), 1.0);
+        // then
+        assertThat(loaded.capacity(), is(16));
+        for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+            assertThat(loaded.lookup(entry.getKey()), is(entry.getValue()));
+        }
+        assertThat(loaded.statistics().entryCount(), is((long) expected.size()));
+    }
+
+    @Test
+    public void loadRebuildsBottomUp() throws IOException {
+        // given
+        BPlusTree tree = newTree(newNode(keys(3, 5),
+                                         nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                               newLeaf(keys(3, 4), values("c", "d")),
+                                               newLeaf(keys(5, 6), values("e", "f")))));
+        // when
+        BPlusTree loaded = read(write(tree), 1.0);
+        // then
+        assertThat(loaded, isTree(newTree(newNode(
+                keys(4),
+                nodes(newLeaf(keys(1, 2, 3), values("a", "b", "c")),
+                      newLeaf(keys(4, 5, 6), values("d", "e", "f")))))));
+    }
+
+    @Test
+    public void roundTripEmptyTree() throws IOException {
+        // when
+        BPlusTree loaded = read(write(newEmptyTree()), 1.0);
+        // then
+        assertThat(loaded, isTree(newEmptyTree()));
+    }
+
+    @Test
+    public void roundTripKeepsBloomFilter() throws IOException {
+        // given
+        BPlusTree tree = newEmptyTree();
+        for (int key = 0; key < 1000; key++) {
+            tree.insert(key, "v" + key);
+        }
+        tree.enableBloomFilter(5000, 0.01);
+        // when
+        BPlusTree loaded = read(write(tree), 1.0);
+        // then
+        assertThat(loaded.bloomFilter().expectedKeys(), is(5000L));
+        for (int key = 0; key < 1000; key++) {
+            assertThat(loaded.bloomFilter().mightContain(key), is(true));
+            assertThat(loaded.lookup(key), is("v" + key));
+        }
+    }
+
+    @Test
+    public void writeSnapshotWhileModifying() throws IOException {
+        // given
+        BPlusTree tree = newTree(newLeaf(keys(1, 2, 3), values("a", "b", "c")));
+        Snapshot snapshot = tree.snapshot();
+        tree.delete(2);
+        tree.insert(4, "d");
+        // when
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BPlusTreeSerializer.write(snapshot, Channels.newChannel(bytes));
+        BPlusTree loaded = read(bytes.toByteArray(), 1.0);
+        // then
+        assertThat(loaded.lookup(2), is("b"));
+        assertThat(loaded.lookup(4), is(nullValue()));
+    }
+
+    @Test(expected = IOException.class)
+    public void detectCorruption() throws IOException {
+        // given
+        byte[] bytes = write(newTree(newLeaf(keys(1, 2, 3), values("a", "b", "c"))));
+        // when
+        bytes[bytes.length / 2] ^= 1;
+        // then
+        read(bytes, 1.0);
+    }
+
+    private byte[] write(BPlusTree tree) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BPlusTreeSerializer.write(tree, Channels.newChannel(bytes));
+        return bytes.toByteArray();
+    }
+
+    private BPlusTree read(byte[] bytes, double fillFactor) throws IOException {
+        return BPlusTreeSerializer.read(Channels.newChannel(new ByteArrayInputStream(bytes)), fillFactor);
+    }
+
+}
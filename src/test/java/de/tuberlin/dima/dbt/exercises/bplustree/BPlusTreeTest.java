@@ -5,6 +5,16 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.Timeout;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
 import static de.tuberlin.dima.dbt.grading.bplustree.BPlusTreeMatcher.isTree;
 import static de.tuberlin.dima.dbt.exercises.bplustree.BPlusTreeUtilities.*;
 import static org.hamcrest.CoreMatchers.is;
@@ -95,6 +105,44 @@ public class BPlusTreeTest {
                       newLeaf(keys(5, 6, 7), values("e", "f", "g")))))));
     }
 
+    @Test
+    public void insertExistingKeyReplacesValue() {
+        // given
+        tree = newTree(newLeaf(keys(1, 2), values("a", "b")));
+        // when
+        tree.insert(2, "c");
+        // then
+        assertThat(tree, isTree(
+                newTree(newLeaf(keys(1, 2), values("a", "c")))));
+    }
+
+    @Test
+    public void splitInnerNode() {
+        // given
+        tree = newTree(newNode(
+                keys(3, 5, 7, 9),
+                nodes(newLeaf(keys(1, 2), values("a", "b")),
+                      newLeaf(keys(3, 4), values("c", "d")),
+                      newLeaf(keys(5, 6), values("e", "f")),
+                      newLeaf(keys(7, 8), values("g", "h")),
+                      newLeaf(keys(9, 10, 11, 12),
+                              values("i", "j", "k", "l")))));
+        // when
+        tree.insert(13, "m");
+        // then
+        assertThat(tree, isTree(newTree(newNode(
+                keys(7),
+                nodes(newNode(keys(3, 5),
+                              nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                    newLeaf(keys(3, 4), values("c", "d")),
+                                    newLeaf(keys(5, 6), values("e", "f")))),
+                      newNode(keys(9, 11),
+                              nodes(newLeaf(keys(7, 8), values("g", "h")),
+                                    newLeaf(keys(9, 10), values("i", "j")),
+                                    newLeaf(keys(11, 12, 13),
+                                            values("k", "l", "m")))))))));
+    }
+
     ///// Deletion tests
 
     @Test
@@ -167,4 +215,813 @@ public class BPlusTreeTest {
                                newLeaf(keys(5, 6), values("e", "f")))))));
     }
 
+    @Test
+    public void deleteFromChildMergeInnerNodes() {
+        // given
+        tree = newTree(newNode(
+                keys(7),
+                nodes(newNode(keys(3, 5),
+                              nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                    newLeaf(keys(3, 4), values("c", "d")),
+                                    newLeaf(keys(5, 6), values("e", "f")))),
+                      newNode(keys(9, 11),
+                              nodes(newLeaf(keys(7, 8), values("g", "h")),
+                                    newLeaf(keys(9, 10), values("i", "j")),
+                                    newLeaf(keys(11, 12), values("k", "l")))))));
+        // when
+        String value = tree.delete(1);
+        // then
+        assertThat(value, is("a"));
+        assertThat(tree, isTree(newTree(newNode(
+                keys(5, 7, 9, 11),
+                nodes(newLeaf(keys(2, 3, 4), values("b", "c", "d")),
+                      newLeaf(keys(5, 6), values("e", "f")),
+                      newLeaf(keys(7, 8), values("g", "h")),
+                      newLeaf(keys(9, 10), values("i", "j")),
+                      newLeaf(keys(11, 12), values("k", "l")))))));
+    }
+
+    @Test
+    public void deleteRangeDropsCoveredLeaves() {
+        // given
+        tree = newTree(newNode(keys(3, 5, 7),
+                               nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                     newLeaf(keys(3, 4), values("c", "d")),
+                                     newLeaf(keys(5, 6), values("e", "f")),
+                                     newLeaf(keys(7, 8), values("g", "h")))));
+        // when
+        long deleted = tree.deleteRange(3, 7);
+        // then
+        assertThat(deleted, is(4L));
+        assertThat(tree, isTree(newTree(newNode(
+                keys(7),
+                nodes(newLeaf(keys(1, 2), values("a", "b")),
+                      newLeaf(keys(7, 8), values("g", "h")))))));
+    }
+
+    @Test
+    public void deleteRangeMergesBoundaryLeaves() {
+        // given
+        tree = newTree(newNode(keys(3, 5, 7),
+                               nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                     newLeaf(keys(3, 4), values("c", "d")),
+                                     newLeaf(keys(5, 6), values("e", "f")),
+                                     newLeaf(keys(7, 8), values("g", "h")))));
+        // when
+        long deleted = tree.deleteRange(2, 8);
+        // then
+        assertThat(deleted, is(6L));
+        assertThat(tree, isTree(newTree(newLeaf(keys(1, 8), values("a", "h")))));
+    }
+
+    @Test
+    public void deleteRangeRandomRanges() {
+        // given
+        tree = newEmptyTree();
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        Random random = new Random(42);
+        // when
+        for (int i = 0; i < 5000; i++) {
+            int key = random.nextInt(5000);
+            if (random.nextInt(4) == 0) {
+                int to = key + random.nextInt(500);
+                assertThat(tree.deleteRange(key, to), is((long) expected.subMap(key, to).size()));
+                expected.subMap(key, to).clear();
+            } else {
+                tree.insert(key, "v" + i);
+                expected.put(key, "v" + i);
+            }
+        }
+        // then
+        for (int key = 0; key < 5000; key++) {
+            assertThat(tree.lookup(key), is(expected.get(key)));
+        }
+        assertThat(tree.statistics().entryCount(), is((long) expected.size()));
+        assertThat(scanValues(tree.scan(0, 5000)), is(new ArrayList<>(expected.values())));
+    }
+
+    ///// Bulk loading tests
+
+    @Test
+    public void bulkLoadFullLeaves() {
+        // when
+        tree = BPlusTree.bulkLoad(keys(1, 2, 3, 4, 5, 6, 7, 8, 9),
+                                  values("a", "b", "c", "d", "e", "f", "g",
+                                         "h", "i"),
+                                  1.0, CAPACITY);
+        // then
+        assertThat(tree, isTree(newTree(newNode(
+                keys(4, 7),
+                nodes(newLeaf(keys(1, 2, 3), values("a", "b", "c")),
+                      newLeaf(keys(4, 5, 6), values("d", "e", "f")),
+                      newLeaf(keys(7, 8, 9), values("g", "h", "i")))))));
+    }
+
+    @Test
+    public void bulkLoadHalfFullLeaves() {
+        // when
+        tree = BPlusTree.bulkLoad(keys(1, 2, 3, 4, 5),
+                                  values("a", "b", "c", "d", "e"),
+                                  0.5, CAPACITY);
+        // then
+        assertThat(tree, isTree(newTree(newNode(
+                keys(4),
+                nodes(newLeaf(keys(1, 2, 3), values("a", "b", "c")),
+                      newLeaf(keys(4, 5), values("d", "e")))))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void bulkLoadUnsortedKeys() {
+        BPlusTree.bulkLoad(keys(1, 3, 2), values("a", "c", "b"), 1.0, CAPACITY);
+    }
+
+    @Test
+    public void bulkLoadThenModify() {
+        // given
+        int[] keys = new int[1000];
+        String[] values = new String[keys.length];
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = 2 * i;
+            values[i] = "v" + i;
+            expected.put(keys[i], values[i]);
+        }
+        tree = BPlusTree.bulkLoad(keys, values, 0.75, CAPACITY);
+        // when
+        Random random = new Random(7);
+        for (int i = 0; i < 1000; i++) {
+            int key = random.nextInt(2000);
+            if (random.nextBoolean()) {
+                assertThat(tree.delete(key), is(expected.remove(key)));
+            } else {
+                tree.insert(key, "w" + i);
+                expected.put(key, "w" + i);
+            }
+        }
+        // then
+        assertThat(scanValues(tree.scan(0, 2000)),
+                   is(new ArrayList<>(expected.values())));
+    }
+
+    ///// Batch tests
+
+    @Test
+    public void insertAllSplitsLeafOnce() {
+        // given
+        tree = newTree(newLeaf(keys(1, 5), values("a", "e")));
+        // when
+        tree.insertAll(keys(4, 2, 3, 6, 7, 8),
+                       values("d", "b", "c", "f", "g", "h"));
+        // then
+        assertThat(tree, isTree(newTree(newNode(
+                keys(5),
+                nodes(newLeaf(keys(1, 2, 3, 4), values("a", "b", "c", "d")),
+                      newLeaf(keys(5, 6, 7, 8),
+                              values("e", "f", "g", "h")))))));
+    }
+
+    @Test
+    public void insertAllLastDuplicateWins() {
+        // given
+        tree = newTree(newLeaf(keys(1, 2), values("a", "b")));
+        // when
+        tree.insertAll(keys(2, 3, 2), values("x", "c", "y"));
+        // then
+        assertThat(tree, isTree(
+                newTree(newLeaf(keys(1, 2, 3), values("a", "y", "c")))));
+    }
+
+    @Test
+    public void lookupAllAcrossLeaves() {
+        // given
+        tree = newTree(newNode(keys(3, 5),
+                               nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                     newLeaf(keys(3, 4), values("c", "d")),
+                                     newLeaf(keys(5, 6), values("e", "f")))));
+        // when
+        String[] values = tree.lookupAll(keys(6, 1, 7, 3, 2));
+        // then
+        assertThat(values, is(values("f", "a", null, "c", "b")));
+    }
+
+    @Test
+    public void insertAllRandomBatches() {
+        // given
+        tree = newEmptyTree();
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        Random random = new Random(3);
+        // when
+        for (int batch = 0; batch < 20; batch++) {
+            int[] keys = new int[random.nextInt(200)];
+            String[] values = new String[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = random.nextInt(1000);
+                values[i] = batch + "/" + i;
+                expected.put(keys[i], values[i]);
+            }
+            tree.insertAll(keys, values);
+        }
+        // then
+        int[] keys = new int[1000];
+        String[] values = new String[keys.length];
+        for (int key = 0; key < keys.length; key++) {
+            keys[key] = key;
+            values[key] = expected.get(key);
+        }
+        assertThat(tree.lookupAll(keys), is(values));
+        assertThat(scanValues(tree.scan(0, 1000)),
+                   is(new ArrayList<>(expected.values())));
+    }
+
+    ///// Range scan tests
+
+    @Test
+    public void scanAcrossLeaves() {
+        // given
+        tree = newTree(newNode(keys(3, 5),
+                               nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                     newLeaf(keys(3, 4), values("c", "d")),
+                                     newLeaf(keys(5, 6), values("e", "f")))));
+        // when
+        List<String> values = scanValues(tree.scan(2, 6));
+        // then
+        assertThat(values, is(List.of("b", "c", "d", "e")));
+    }
+
+    @Test
+    public void scanDescendingAcrossLeaves() {
+        // given
+        tree = newTree(newNode(keys(3, 5),
+                               nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                     newLeaf(keys(3, 4), values("c", "d")),
+                                     newLeaf(keys(5, 6), values("e", "f")))));
+        // when
+        List<String> values = scanValues(tree.scanDescending(2, 6));
+        // then
+        assertThat(values, is(List.of("e", "d", "c", "b")));
+    }
+
+    @Test
+    public void scanEmptyRange() {
+        // given
+        tree = newTree(newLeaf(keys(1, 5), values("a", "e")));
+        // when
+        RangeCursor cursor = tree.scan(2, 5);
+        // then
+        assertThat(cursor.advance(), is(false));
+    }
+
+    ///// Metrics tests
+
+    @Test
+    public void metricsCountSplits() {
+        // given
+        tree = newTree(newNode(
+                keys(3, 5, 7, 9),
+                nodes(newLeaf(keys(1, 2), values("a", "b")),
+                      newLeaf(keys(3, 4), values("c", "d")),
+                      newLeaf(keys(5, 6), values("e", "f")),
+                      newLeaf(keys(7, 8), values("g", "h")),
+                      newLeaf(keys(9, 10, 11, 12),
+                              values("i", "j", "k", "l")))));
+        TreeMetrics metrics = tree.enableMetrics();
+        // when
+        tree.insert(13, "m");
+        tree.lookup(13);
+        // then
+        assertThat(metrics.inserts(), is(1L));
+        assertThat(metrics.lookups(), is(1L));
+        assertThat(metrics.leafSplits(), is(1L));
+        assertThat(metrics.innerSplits(), is(1L));
+        assertThat(metrics.descents(), is(2L));
+        assertThat(metrics.nodesVisited(), is(5L));
+        assertThat(metrics.insertLatency().count(), is(1L));
+    }
+
+    @Test
+    public void metricsCountBorrowsAndMerges() {
+        // given
+        tree = newTree(newNode(
+                keys(7),
+                nodes(newNode(keys(3, 5),
+                              nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                    newLeaf(keys(3, 4), values("c", "d")),
+                                    newLeaf(keys(5, 6), values("e", "f")))),
+                      newNode(keys(9, 11),
+                              nodes(newLeaf(keys(7, 8), values("g", "h")),
+                                    newLeaf(keys(9, 10), values("i", "j")),
+                                    newLeaf(keys(11, 12, 13), values("k", "l", "m")))))));
+        TreeMetrics metrics = tree.enableMetrics();
+        // when
+        tree.delete(1);
+        tree.delete(9);
+        // then
+        assertThat(metrics.deletes(), is(2L));
+        assertThat(metrics.leafMerges(), is(1L));
+        assertThat(metrics.innerMerges(), is(1L));
+        assertThat(metrics.leafBorrows(), is(1L));
+    }
+
+    @Test
+    public void statisticsDescribeShape() {
+        // given
+        tree = newTree(newNode(keys(3, 5),
+                               nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                     newLeaf(keys(3, 4), values("c", "d")),
+                                     newLeaf(keys(5, 6, 7, 8),
+                                             values("e", "f", "g", "h")))));
+        // when
+        TreeStatistics statistics = tree.statistics();
+        // then
+        assertThat(statistics.height(), is(2));
+        assertThat(statistics.nodesPerLevel(), is(new int[]{1, 3}));
+        assertThat(statistics.entryCount(), is(8L));
+        assertThat(statistics.leafFillDistribution(),
+                   is(new int[]{0, 0, 0, 0, 0, 2, 0, 0, 0, 1}));
+    }
+
+    ///// Snapshot tests
+
+    @Test
+    public void snapshotKeepsOldVersion() {
+        // given
+        tree = newTree(newNode(keys(3, 5),
+                               nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                     newLeaf(keys(3, 4), values("c", "d")),
+                                     newLeaf(keys(5, 6, 7, 8),
+                                             values("e", "f", "g", "h")))));
+        Snapshot snapshot = tree.snapshot();
+        // when
+        tree.insert(9, "i");
+        tree.insert(3, "x");
+        tree.delete(1);
+        // then
+        assertThat(snapshot.lookup(1), is("a"));
+        assertThat(snapshot.lookup(3), is("c"));
+        assertThat(snapshot.lookup(9), is(nullValue()));
+        assertThat(scanValues(snapshot.scan(0, 10)),
+                   is(List.of("a", "b", "c", "d", "e", "f", "g", "h")));
+        assertThat(scanValues(snapshot.scanDescending(0, 10)),
+                   is(List.of("h", "g", "f", "e", "d", "c", "b", "a")));
+        assertThat(scanValues(tree.scan(0, 10)),
+                   is(List.of("b", "x", "d", "e", "f", "g", "h", "i")));
+    }
+
+    @Test
+    public void snapshotCopiesOnlyModifiedPath() {
+        // given
+        tree = newTree(newNode(keys(3),
+                               nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                     newLeaf(keys(3, 4), values("c", "d")))));
+        Node[] children = ((InnerNode) tree.rootNode()).getChildren().clone();
+        Snapshot snapshot = tree.snapshot();
+        // when
+        tree.insert(5, "e");
+        // then
+        Node[] newChildren = ((InnerNode) tree.rootNode()).getChildren();
+        assertThat(tree.rootNode() == snapshot.rootNode(), is(false));
+        assertThat(newChildren[0] == children[0], is(true));
+        assertThat(newChildren[1] == children[1], is(false));
+    }
+
+    @Test
+    public void closedSnapshotStopsCopying() {
+        // given
+        tree = newTree(newLeaf(keys(1, 2), values("a", "b")));
+        Node root = tree.rootNode();
+        Snapshot snapshot = tree.snapshot();
+        // when
+        snapshot.close();
+        tree.insert(3, "c");
+        // then
+        assertThat(tree.liveSnapshots(), is(0));
+        assertThat(tree.rootNode() == root, is(true));
+        assertThat(tree, isTree(
+                newTree(newLeaf(keys(1, 2, 3), values("a", "b", "c")))));
+    }
+
+    ///// Order statistics
+
+    @Test
+    public void rankAndSelect() {
+        // given
+        tree = newTree(newNode(keys(3, 5),
+                               nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                     newLeaf(keys(3, 4), values("c", "d")),
+                                     newLeaf(keys(5, 6), values("e", "f")))));
+        // then
+        assertThat(tree.size(), is(6L));
+        assertThat(tree.rank(0), is(0L));
+        assertThat(tree.rank(4), is(3L));
+        assertThat(tree.rank(7), is(6L));
+        assertThat(tree.select(0), is(1));
+        assertThat(tree.select(4), is(5));
+        assertThat(tree.countRange(2, 6), is(4L));
+        assertThat(tree.countRange(6, 2), is(0L));
+    }
+
+    @Test
+    public void orderStatisticsFollowModifications() {
+        // given
+        tree = newEmptyTree();
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        Random random = new Random(42);
+        // when
+        for (int i = 0; i < 5000; i++) {
+            int key = random.nextInt(500);
+            if (random.nextInt(3) == 0) {
+                tree.delete(key);
+                expected.remove(key);
+            } else {
+                tree.insertAll(new int[]{key, key + 1}, new String[]{"v", "w"});
+                expected.put(key, "v");
+                expected.put(key + 1, "w");
+            }
+        }
+        // then
+        List<Integer> sortedKeys = new ArrayList<>(expected.keySet());
+        assertThat(tree.size(), is((long) sortedKeys.size()));
+        for (int rank = 0; rank < sortedKeys.size(); rank++) {
+            assertThat(tree.select(rank), is(sortedKeys.get(rank)));
+            assertThat(tree.rank(sortedKeys.get(rank)), is((long) rank));
+        }
+        assertThat(tree.countRange(100, 400), is((long) expected.subMap(100, 400).size()));
+    }
+
+    @Test
+    public void sampleReturnsExistingKeys() {
+        // given
+        tree = newTree(newNode(keys(3), nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                              newLeaf(keys(3, 4), values("c", "d")))));
+        Random random = new Random(42);
+        int[] hits = new int[5];
+        // when
+        for (int i = 0; i < 4000; i++) {
+            hits[tree.sample(random)]++;
+        }
+        // then
+        assertThat(hits[0], is(0));
+        for (int key = 1; key <= 4; key++) {
+            assertThat(hits[key] > 800 && hits[key] < 1200, is(true));
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void selectBeyondSize() {
+        // given
+        tree = newTree(newLeaf(keys(1, 2), values("a", "b")));
+        // when
+        tree.select(2);
+    }
+
+    ///// Append tests
+
+    @Test
+    public void appendedKeysFillLeaves() {
+        // given
+        tree = new BPlusTree(64);
+        // when
+        for (int key = 0; key < 10000; key++) {
+            tree.insert(key, "v" + key);
+        }
+        // then
+        assertThat(tree.statistics().averageLeafFill() > 0.9, is(true));
+        assertThat(tree.size(), is(10000L));
+        for (int key = 0; key < 10000; key += 7) {
+            assertThat(tree.lookup(key), is("v" + key));
+        }
+    }
+
+    @Test
+    public void appendSplitKeepsRightEdgeUsable() {
+        // given
+        tree = newEmptyTree();
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        for (int key = 0; key < 200; key++) {
+            tree.insert(key, "v" + key);
+            expected.put(key, "v" + key);
+        }
+        Random random = new Random(42);
+        // when
+        for (int i = 0; i < 2000; i++) {
+            int key = random.nextInt(300);
+            if (random.nextInt(3) == 0) {
+                assertThat(tree.delete(key), is(expected.remove(key)));
+            } else {
+                tree.insert(key, "w" + i);
+                expected.put(key, "w" + i);
+            }
+        }
+        // then
+        assertThat(scanValues(tree.scan(0, 300)), is(new ArrayList<>(expected.values())));
+        assertThat(tree.size(), is((long) expected.size()));
+    }
+
+    ///// Key compression tests
+
+    @Test
+    public void compressedKeysSurviveSplitsAndMerges() {
+        // given
+        tree = newEmptyTree();
+        tree.enableKeyCompression();
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        Random random = new Random(42);
+        // when
+        for (int i = 0; i < 5000; i++) {
+            int key = random.nextBoolean() ? random.nextInt(500) : random.nextInt(50) * 100000;
+            if (random.nextInt(3) == 0) {
+                assertThat(tree.delete(key), is(expected.remove(key)));
+            } else {
+                tree.insert(key, "v" + key);
+                expected.put(key, "v" + key);
+            }
+        }
+        // then
+        assertThat(scanValues(tree.scan(0, Integer.MAX_VALUE)), is(new ArrayList<>(expected.values())));
+        for (int key = 0; key < 500; key++) {
+            assertThat(tree.lookup(key), is(expected.get(key)));
+        }
+    }
+
+    @Test
+    public void leafUnpacksKeysThatSpanTooFar() {
+        // given
+        tree = newTree(newLeaf(keys(1, 2, 3), values("a", "b", "c")));
+        tree.enableKeyCompression();
+        LeafNode leaf = (LeafNode) tree.rootNode();
+        assertThat(leaf.isPacked(), is(true));
+        // when
+        tree.insert(100000, "d");
+        // then
+        assertThat(tree, isTree(newTree(newLeaf(keys(1, 2, 3, 100000), values("a", "b", "c", "d")))));
+        assertThat(leaf.isPacked(), is(false));
+        // when
+        tree.delete(1);
+        tree.delete(100000);
+        // then
+        assertThat(tree, isTree(newTree(newLeaf(keys(2, 3), values("b", "c")))));
+        assertThat(leaf.isPacked(), is(true));
+        assertThat(leaf.search(3), is(1));
+        assertThat(leaf.search(1), is(-1));
+        assertThat(leaf.search(70000), is(-3));
+    }
+
+    ///// Value dictionary tests
+
+    @Test
+    public void encodedValuesSurviveSplitsAndMerges() {
+        // given
+        tree = newEmptyTree();
+        tree.insert(1, "a");
+        tree.enableValueDictionary(new ValueDictionary());
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        expected.put(1, "a");
+        Random random = new Random(42);
+        // when
+        for (int i = 0; i < 5000; i++) {
+            int key = random.nextInt(500);
+            if (random.nextInt(3) == 0) {
+                assertThat(tree.delete(key), is(expected.remove(key)));
+            } else {
+                String value = random.nextInt(10) == 0 ? null : "status " + random.nextInt(5);
+                tree.insert(key, value);
+                expected.put(key, value);
+            }
+        }
+        // then
+        assertThat(scanValues(tree.scan(0, 500)), is(new ArrayList<>(expected.values())));
+        assertThat(tree.valueDictionary().size(), is(6));
+    }
+
+    @Test
+    public void scanByCodeWithSharedDictionary() {
+        // given
+        ValueDictionary dictionary = new ValueDictionary();
+        tree = newTree(newLeaf(keys(1, 2, 3), values("a", "b", "a")));
+        tree.enableValueDictionary(dictionary);
+        BPlusTree other = newEmptyTree();
+        other.enableValueDictionary(dictionary);
+        // when
+        other.insert(7, "b");
+        // then
+        assertThat(tree, isTree(newTree(newLeaf(keys(1, 2, 3), values("a", "b", "a")))));
+        List<Integer> codes = new ArrayList<>();
+        RangeCursor cursor = tree.scan(1, 4);
+        while (cursor.advance()) {
+            codes.add(cursor.code());
+        }
+        assertThat(codes, is(Arrays.asList(0, 1, 0)));
+        RangeCursor otherCursor = other.scan(0, 10);
+        otherCursor.advance();
+        assertThat(otherCursor.code(), is(1));
+        assertThat(dictionary.decode(otherCursor.code()), is("b"));
+    }
+
+    ///// Lookup cache tests
+
+    @Test
+    public void cachedLookupsSeeModifications() {
+        // given
+        tree = newTree(newNode(keys(3), nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                              newLeaf(keys(3, 4), values("c", "d")))));
+        tree.enableLookupCache(16);
+        tree.lookup(1);
+        tree.lookup(2);
+        tree.lookup(3);
+        // when
+        tree.insert(1, "e");
+        tree.delete(2);
+        tree.deleteRange(3, 4);
+        // then
+        assertThat(tree.lookup(1), is("e"));
+        assertThat(tree.lookup(2), is(nullValue()));
+        assertThat(tree.lookup(3), is(nullValue()));
+        assertThat(tree.lookup(4), is("d"));
+    }
+
+    @Test
+    public void statisticsReportCacheHitRate() {
+        // given
+        tree = newEmptyTree();
+        for (int key = 0; key < 1000; key++) {
+            tree.insert(key, "v" + key);
+        }
+        tree.enableLookupCache(64);
+        // when
+        for (int i = 0; i < 100; i++) {
+            for (int key = 0; key < 10; key++) {
+                assertThat(tree.lookup(key), is("v" + key));
+            }
+        }
+        // then
+        TreeStatistics statistics = tree.statistics();
+        assertThat(statistics.cacheMisses(), is(10L));
+        assertThat(statistics.cacheHits(), is(990L));
+        assertThat(statistics.cacheHitRate(), is(0.99));
+    }
+
+    @Test
+    public void bloomFilterAnswersMissingKeysWithoutDescent() {
+        // given
+        tree = newEmptyTree();
+        for (int key = 0; key < 1000; key++) {
+            tree.insert(2 * key, "v" + key);
+        }
+        tree.enableBloomFilter(1000, 0.01);
+        tree.delete(0);
+        tree.rebuildBloomFilter();
+        tree.insert(1, "w");
+        TreeMetrics metrics = tree.enableMetrics();
+        // when
+        for (int key = 3; key < 2000; key += 2) {
+            assertThat(tree.lookup(key), is(nullValue()));
+        }
+        // then
+        assertThat(metrics.descents() < 50, is(true));
+        assertThat(tree.lookup(0), is(nullValue()));
+        assertThat(tree.lookup(1), is("w"));
+        assertThat(tree.lookup(2), is("v1"));
+    }
+
+    ///// Parallel scan tests
+
+    @Test
+    public void spliteratorSplitsAtChildBoundaries() {
+        // given
+        tree = newTree(newNode(keys(3, 5), nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                                 newLeaf(keys(3, 4), values("c", "d")),
+                                                 newLeaf(keys(5, 6), values("e", "f")))));
+        Spliterator<Map.Entry<Integer, String>> suffix = tree.spliterator(2, 6);
+        // when
+        Spliterator<Map.Entry<Integer, String>> prefix = suffix.trySplit();
+        // then
+        List<Integer> prefixKeys = new ArrayList<>();
+        prefix.forEachRemaining(entry -> prefixKeys.add(entry.getKey()));
+        List<Integer> suffixKeys = new ArrayList<>();
+        suffix.forEachRemaining(entry -> suffixKeys.add(entry.getKey()));
+        assertThat(prefixKeys, is(Arrays.asList(2, 3, 4)));
+        assertThat(suffixKeys, is(Arrays.asList(5)));
+    }
+
+    @Test
+    public void parallelStreamMatchesScan() {
+        // given
+        tree = newEmptyTree();
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            int key = random.nextInt(50000);
+            tree.insert(key, "v" + key);
+            expected.put(key, "v" + key);
+        }
+        LongAdder visited = new LongAdder();
+        // when
+        List<Integer> keys = tree.stream(100, 40000).parallel()
+                                 .map(Map.Entry::getKey).collect(Collectors.toList());
+        tree.parallelForEach(100, 40000, entry -> visited.increment());
+        // then
+        assertThat(keys, is(new ArrayList<>(expected.subMap(100, 40000).keySet())));
+        assertThat(visited.sum(), is((long) keys.size()));
+    }
+
+    ///// Buffering tests
+
+    @Test
+    public void bufferedInsertStaysInRoot() {
+        // given
+        tree = newTree(newNode(keys(3), nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                              newLeaf(keys(3, 4), values("c", "d")))));
+        tree.enableBuffering(4);
+        // when
+        tree.insert(5, "e");
+        String deleted = tree.delete(1);
+        // then
+        assertThat(deleted, is("a"));
+        assertThat(tree.lookup(5), is("e"));
+        assertThat(tree.lookup(1), is(nullValue()));
+        assertThat(((InnerNode) tree.rootNode()).getChildren()[0].getSize(), is(2));
+        tree.flush();
+        assertThat(tree, isTree(
+                newTree(newLeaf(keys(2, 3, 4, 5), values("b", "c", "d", "e")))));
+    }
+
+    @Test
+    public void bufferedRandomOperations() {
+        // given
+        tree = newEmptyTree();
+        tree.enableBuffering(8);
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        Random random = new Random(42);
+        // when
+        for (int i = 0; i < 20000; i++) {
+            int key = random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                assertThat(tree.delete(key), is(expected.remove(key)));
+            } else {
+                tree.insert(key, "v" + i);
+                expected.put(key, "v" + i);
+            }
+        }
+        // then
+        for (int key = 0; key < 2000; key++) {
+            assertThat(tree.lookup(key), is(expected.get(key)));
+        }
+        assertThat(scanValues(tree.scan(0, 2000)), is(new ArrayList<>(expected.values())));
+        assertThat(tree.size(), is((long) expected.size()));
+    }
+
+    @Test
+    public void snapshotSeesBufferedInserts() {
+        // given
+        tree = newTree(newNode(keys(3), nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                              newLeaf(keys(3, 4), values("c", "d")))));
+        tree.enableBuffering(4);
+        tree.insert(5, "e");
+        // when
+        Snapshot snapshot = tree.snapshot();
+        tree.insert(6, "f");
+        // then
+        assertThat(snapshot.lookup(5), is("e"));
+        assertThat(snapshot.lookup(6), is(nullValue()));
+        assertThat(tree.lookup(6), is("f"));
+    }
+
+    ///// Mixed workload
+
+    @Test
+    public void insertAndDeleteRandomKeys() {
+        // given
+        tree = newEmptyTree();
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        Random random = new Random(42);
+        // when
+        for (int i = 0; i < 5000; i++) {
+            int key = random.nextInt(500);
+            if (random.nextInt(3) == 0) {
+                assertThat(tree.delete(key), is(expected.remove(key)));
+            } else {
+                tree.insert(key, "v" + i);
+                expected.put(key, "v" + i);
+            }
+        }
+        // then
+        for (int key = 0; key < 500; key++) {
+            assertThat(tree.lookup(key), is(expected.get(key)));
+        }
+        assertThat(scanValues(tree.scan(100, 400)),
+                   is(new ArrayList<>(expected.subMap(100, 400).values())));
+        assertThat(scanValues(tree.scanDescending(100, 400)),
+                   is(new ArrayList<>(expected.subMap(100, true, 400, false)
+                                              .descendingMap().values())));
+    }
+
+    private List<String> scanValues(RangeCursor cursor) {
+        List<String> values = new ArrayList<>();
+        while (cursor.hasNext()) {
+            Map.Entry<Integer, String> entry = cursor.next();
+            values.add(entry.getValue());
+        }
+        return values;
+    }
+
 }
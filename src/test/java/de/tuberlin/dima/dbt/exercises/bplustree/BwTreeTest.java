@@ -0,0 +1,146 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static de.tuberlin.dima.dbt.grading.bplustree.BPlusTreeMatcher.isTree;
+import static de.tuberlin.dima.dbt.exercises.bplustree.BPlusTreeUtilities.*;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class BwTreeTest {
+
+    // fail each test after 10 seconds
+    @Rule
+    public Timeout globalTimeout = new Timeout(10000);
+
+    private BwTree tree;
+
+    @Test
+    public void splitLeafs() {
+        // given
+        tree = new BwTree(newNode(
+                keys(3), nodes(newLeaf(keys(1, 2), values("a", "b")),
+                               newLeaf(keys(3, 4, 5, 6),
+                                       values("c", "d", "e", "f")))),
+                          CAPACITY);
+        // when
+        tree.insert(7, "g");
+        // then
+        assertThat(newTree(tree.rootNode()), isTree(newTree(newNode(
+                keys(3, 5),
+                nodes(newLeaf(keys(1, 2), values("a", "b")),
+                      newLeaf(keys(3, 4), values("c", "d")),
+                      newLeaf(keys(5, 6, 7), values("e", "f", "g")))))));
+    }
+
+    @Test
+    public void deleteMergesIntoLeftSibling() {
+        // given
+        tree = new BwTree(newNode(
+                keys(3, 5), nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                  newLeaf(keys(3, 4), values("c", "d")),
+                                  newLeaf(keys(5, 6), values("e", "f")))),
+                          CAPACITY);
+        // when
+        String value = tree.delete(4);
+        // then
+        assertThat(value, is("d"));
+        assertThat(tree.lookup(4), is(nullValue()));
+        assertThat(newTree(tree.rootNode()), isTree(newTree(newNode(
+                keys(5),
+                nodes(newLeaf(keys(1, 2, 3), values("a", "b", "c")),
+                      newLeaf(keys(5, 6), values("e", "f")))))));
+    }
+
+    @Test
+    public void mergesAndSplitsRaceInSmallKeyRange() throws Exception {
+        // given
+        tree = new BwTree(CAPACITY);
+        int writers = 4;
+        int keysPerWriter = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        List<Future<Map<Integer, String>>> written = new ArrayList<>();
+        // when
+        for (int w = 0; w < writers; w++) {
+            // the writers share every leaf, each fills it with its own
+            // residue class of keys and empties it again, so pages split
+            // and merge while their neighbours do the same
+            int offset = w;
+            written.add(executor.submit(() -> {
+                Random random = new Random(offset);
+                List<Integer> keys = new ArrayList<>();
+                for (int i = 0; i < keysPerWriter; i++) {
+                    keys.add(writers * i + offset);
+                }
+                Map<Integer, String> expected = new HashMap<>();
+                for (int round = 0; round < 1000; round++) {
+                    Collections.shuffle(keys, random);
+                    for (int key : keys) {
+                        tree.insert(key, "r" + round);
+                    }
+                    Collections.shuffle(keys, random);
+                    for (int key : keys) {
+                        assertThat(tree.delete(key), is("r" + round));
+                        assertThat(tree.lookup(key), is(nullValue()));
+                    }
+                }
+                for (int key : keys.subList(0, keysPerWriter / 2)) {
+                    tree.insert(key, "w" + key);
+                    expected.put(key, "w" + key);
+                }
+                return expected;
+            }));
+        }
+        // then
+        Map<Integer, String> expected = new TreeMap<>();
+        for (Future<Map<Integer, String>> future : written) {
+            expected.putAll(future.get());
+        }
+        for (int key = 0; key < writers * keysPerWriter; key++) {
+            assertThat(tree.lookup(key), is(expected.get(key)));
+        }
+        List<Integer> leafKeys = new ArrayList<>();
+        collectLeafKeys(tree.rootNode(), Integer.MIN_VALUE, Integer.MAX_VALUE, leafKeys);
+        assertThat(leafKeys, is(new ArrayList<>(expected.keySet())));
+        executor.shutdown();
+    }
+
+    /**
+     * Collect the keys of all leaves in order, checking that each node only
+     * holds keys within the bounds given by its parent.
+     */
+    private static void collectLeafKeys(Node node, long low, long high, List<Integer> keys) {
+        int[] nodeKeys = node.getKeys();
+        for (int i = 0; i < node.getSize(); i++) {
+            assertTrue(nodeKeys[i] >= low && nodeKeys[i] <= high);
+            assertTrue(i == 0 || nodeKeys[i - 1] < nodeKeys[i]);
+        }
+        if (node instanceof LeafNode) {
+            for (int i = 0; i < node.getSize(); i++) {
+                keys.add(nodeKeys[i]);
+            }
+            return;
+        }
+        Node[] children = ((InnerNode) node).getChildren();
+        for (int i = 0; i <= node.getSize(); i++) {
+            collectLeafKeys(children[i], i == 0 ? low : nodeKeys[i - 1],
+                            i == node.getSize() ? high : nodeKeys[i] - 1L, keys);
+        }
+    }
+
+}
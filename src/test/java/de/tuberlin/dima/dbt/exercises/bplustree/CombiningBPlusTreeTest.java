@@ -0,0 +1,103 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static de.tuberlin.dima.dbt.exercises.bplustree.BPlusTreeUtilities.*;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class CombiningBPlusTreeTest {
+
+    // fail each test after 10 seconds
+    @Rule
+    public Timeout globalTimeout = new Timeout(10000);
+
+    @Test
+    public void operationsOfOneThreadKeepTheirOrder() {
+        // given
+        CombiningBPlusTree tree = new CombiningBPlusTree(CAPACITY);
+        tree.insert(1, "a");
+        // when
+        CompletableFuture<String> deleted = tree.deleteAsync(1);
+        CompletableFuture<String> missing = tree.lookupAsync(1);
+        tree.insertAsync(1, "b");
+        tree.insertAsync(2, "c");
+        CompletableFuture<String> found = tree.lookupAsync(1);
+        // then
+        assertThat(deleted.join(), is("a"));
+        assertThat(missing.join(), is(nullValue()));
+        assertThat(found.join(), is("b"));
+        assertThat(tree.lookup(2), is("c"));
+    }
+
+    @Test
+    public void waitingOperationsAreCombinedIntoOneBatch() throws Exception {
+        // given
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicReference<Thread> combiner = new AtomicReference<>();
+        CombiningBPlusTree tree = new CombiningBPlusTree(new BPlusTree(CAPACITY) {
+            @Override
+            public String lookup(Integer key) {
+                if (key == -1) {
+                    // hold the combiner while the other threads publish
+                    combiner.set(Thread.currentThread());
+                    blocked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                return super.lookup(key);
+            }
+        });
+        int publishers = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(publishers + 1);
+        Future<String> blocking = executor.submit(() -> tree.lookup(-1));
+        blocked.await();
+        // when
+        List<Future<List<CompletableFuture<?>>>> published = new ArrayList<>();
+        for (int p = 0; p < publishers; p++) {
+            int offset = p;
+            published.add(executor.submit(() -> {
+                for (int i = 0; i < 50; i++) {
+                    tree.insertAsync(publishers * i + offset, "v" + offset);
+                }
+                CompletableFuture<String> deleted = tree.deleteAsync(offset);
+                CompletableFuture<String> found = tree.lookupAsync(offset);
+                CompletableFuture<Thread> completedBy = deleted.thenApply(value -> Thread.currentThread());
+                return Arrays.asList(deleted, found, completedBy);
+            }));
+        }
+        List<List<CompletableFuture<?>>> results = new ArrayList<>();
+        for (Future<List<CompletableFuture<?>>> future : published) {
+            results.add(future.get());
+        }
+        release.countDown();
+        // then
+        assertThat(blocking.get(), is(nullValue()));
+        for (int p = 0; p < publishers; p++) {
+            assertThat(results.get(p).get(0).join(), is("v" + p));
+            assertThat(results.get(p).get(1).join(), is(nullValue()));
+            assertThat(results.get(p).get(2).join(), is(combiner.get()));
+        }
+        assertThat(tree.batchCount(), is(2L));
+        assertThat(tree.tree().size(), is((long) publishers * 49));
+        executor.shutdown();
+    }
+
+}
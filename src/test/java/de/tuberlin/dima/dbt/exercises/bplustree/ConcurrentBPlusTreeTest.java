@@ -0,0 +1,131 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static de.tuberlin.dima.dbt.grading.bplustree.BPlusTreeMatcher.isTree;
+import static de.tuberlin.dima.dbt.exercises.bplustree.BPlusTreeUtilities.*;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ConcurrentBPlusTreeTest {
+
+    // fail each test after 10 seconds
+    @Rule
+    public Timeout globalTimeout = new Timeout(10000);
+
+    private ConcurrentBPlusTree tree;
+
+    @Test
+    public void splitLeafs() {
+        // given
+        tree = new ConcurrentBPlusTree(newNode(
+                keys(3), nodes(newLeaf(keys(1, 2), values("a", "b")),
+                               newLeaf(keys(3, 4, 5, 6),
+                                       values("c", "d", "e", "f")))),
+                                       CAPACITY);
+        // when
+        tree.insert(7, "g");
+        // then
+        assertThat(newTree(tree.rootNode()), isTree(newTree(newNode(
+                keys(3, 5),
+                nodes(newLeaf(keys(1, 2), values("a", "b")),
+                      newLeaf(keys(3, 4), values("c", "d")),
+                      newLeaf(keys(5, 6, 7), values("e", "f", "g")))))));
+    }
+
+    @Test
+    public void deleteFromChildMergeInnerNodes() {
+        // given
+        tree = new ConcurrentBPlusTree(newNode(
+                keys(7),
+                nodes(newNode(keys(3, 5),
+                              nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                    newLeaf(keys(3, 4), values("c", "d")),
+                                    newLeaf(keys(5, 6), values("e", "f")))),
+                      newNode(keys(9, 11),
+                              nodes(newLeaf(keys(7, 8), values("g", "h")),
+                                    newLeaf(keys(9, 10), values("i", "j")),
+                                    newLeaf(keys(11, 12), values("k", "l")))))),
+                                       CAPACITY);
+        // when
+        String value = tree.delete(1);
+        // then
+        assertThat(value, is("a"));
+        assertThat(newTree(tree.rootNode()), isTree(newTree(newNode(
+                keys(5, 7, 9, 11),
+                nodes(newLeaf(keys(2, 3, 4), values("b", "c", "d")),
+                      newLeaf(keys(5, 6), values("e", "f")),
+                      newLeaf(keys(7, 8), values("g", "h")),
+                      newLeaf(keys(9, 10), values("i", "j")),
+                      newLeaf(keys(11, 12), values("k", "l")))))));
+    }
+
+    @Test
+    public void concurrentWritersAndReaders() throws Exception {
+        // given
+        tree = new ConcurrentBPlusTree(CAPACITY);
+        int stableKeys = 1000;
+        // residue 0 holds the stable keys, each writer one of the others
+        int residues = 4;
+        int writers = residues - 1;
+        int readers = 4;
+        for (int i = 0; i < stableKeys; i++) {
+            tree.insert(residues * i, "s" + i);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(writers + readers);
+        List<Future<Map<Integer, String>>> written = new ArrayList<>();
+        List<Future<?>> read = new ArrayList<>();
+        // when
+        for (int w = 0; w < writers; w++) {
+            // each writer inserts and deletes its own residue class of keys
+            int offset = w + 1;
+            written.add(executor.submit(() -> {
+                Map<Integer, String> expected = new HashMap<>();
+                Random random = new Random(offset);
+                for (int i = 0; i < 20000; i++) {
+                    int key = residues * random.nextInt(2 * stableKeys) + offset;
+                    if (random.nextBoolean()) {
+                        tree.insert(key, "w" + i);
+                        expected.put(key, "w" + i);
+                    } else {
+                        assertThat(tree.delete(key), is(expected.remove(key)));
+                    }
+                }
+                return expected;
+            }));
+        }
+        for (int r = 0; r < readers; r++) {
+            int seed = r;
+            read.add(executor.submit(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < 50000; i++) {
+                    int key = random.nextInt(stableKeys);
+                    assertThat(tree.lookup(residues * key), is("s" + key));
+                }
+                return null;
+            }));
+        }
+        // then
+        for (Future<?> future : read) {
+            future.get();
+        }
+        for (Future<Map<Integer, String>> future : written) {
+            for (Map.Entry<Integer, String> entry : future.get().entrySet()) {
+                assertThat(tree.lookup(entry.getKey()), is(entry.getValue()));
+            }
+        }
+        executor.shutdown();
+    }
+
+}
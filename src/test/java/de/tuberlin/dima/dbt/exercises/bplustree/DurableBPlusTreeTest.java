@@ -0,0 +1,127 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.Timeout;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class DurableBPlusTreeTest {
+
+    // fail each test after 10 seconds
+    @Rule
+    public Timeout globalTimeout = new Timeout(10000);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replayLogAfterRestart() throws IOException {
+        // given
+        Path directory = folder.newFolder("tree").toPath();
+        DurableBPlusTree tree = new DurableBPlusTree(directory, 4);
+        for (int key = 0; key < 50; key++) {
+            tree.insert(key, "v" + key);
+        }
+        tree.delete(7);
+        tree.insert(8, "eight");
+        tree.close();
+        // when
+        tree = new DurableBPlusTree(directory, 4);
+        // then
+        assertThat(tree.lookup(7), is(nullValue()));
+        assertThat(tree.lookup(8), is("eight"));
+        assertThat(tree.lookup(49), is("v49"));
+        tree.close();
+    }
+
+    @Test
+    public void recoverFromCheckpointAndLog() throws IOException {
+        // given
+        Path directory = folder.newFolder("tree").toPath();
+        DurableBPlusTree tree = new DurableBPlusTree(directory, 4);
+        for (int key = 0; key < 100; key++) {
+            tree.insert(key, "v" + key);
+        }
+        tree.checkpoint();
+        tree.delete(10);
+        tree.insert(200, "v200");
+        tree.close();
+        // when
+        tree = new DurableBPlusTree(directory, 4);
+        // then
+        assertThat(Files.size(directory.resolve(DurableBPlusTree.LOG_FILE)) > 0, is(true));
+        assertThat(tree.lookup(0), is("v0"));
+        assertThat(tree.lookup(10), is(nullValue()));
+        assertThat(tree.lookup(99), is("v99"));
+        assertThat(tree.lookup(200), is("v200"));
+        tree.close();
+    }
+
+    @Test
+    public void ignoreTornRecordAtEndOfLog() throws IOException {
+        // given
+        Path directory = folder.newFolder("tree").toPath();
+        DurableBPlusTree tree = new DurableBPlusTree(directory, 4);
+        tree.insert(1, "one");
+        tree.insert(2, "two");
+        tree.close();
+        Path log = directory.resolve(DurableBPlusTree.LOG_FILE);
+        Files.write(log, new byte[]{1, 0, 0, 0, 3, 0}, StandardOpenOption.APPEND);
+        // when
+        tree = new DurableBPlusTree(directory, 4);
+        tree.insert(3, "three");
+        tree.close();
+        tree = new DurableBPlusTree(directory, 4);
+        // then
+        assertThat(tree.lookup(1), is("one"));
+        assertThat(tree.lookup(2), is("two"));
+        assertThat(tree.lookup(3), is("three"));
+        tree.close();
+    }
+
+    @Test
+    public void concurrentWritersAreDurable() throws Exception {
+        // given
+        File directory = folder.newFolder("tree");
+        final DurableBPlusTree tree = new DurableBPlusTree(directory.toPath(), 8);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        Future<?>[] futures = new Future<?>[4];
+        // when
+        for (int t = 0; t < futures.length; t++) {
+            final int offset = t * 1000;
+            futures[t] = executor.submit(() -> {
+                for (int key = offset; key < offset + 200; key++) {
+                    tree.insert(key, "v" + key);
+                }
+                return null;
+            });
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        tree.close();
+        DurableBPlusTree reopened = new DurableBPlusTree(directory.toPath(), 8);
+        // then
+        for (int t = 0; t < futures.length; t++) {
+            for (int key = t * 1000; key < t * 1000 + 200; key++) {
+                assertThat(reopened.lookup(key), is("v" + key));
+            }
+        }
+        reopened.close();
+    }
+
+}
@@ -0,0 +1,112 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.Timeout;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class FilePageStoreTest {
+
+    // fail each test after 5 seconds
+    @Rule
+    public Timeout globalTimeout = new Timeout(5000);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FilePageStore store;
+
+    @Before
+    public void openStore() throws IOException {
+        store = new FilePageStore(folder.newFile("pages").toPath(), 256, 8);
+    }
+
+    @After
+    public void closeStore() throws IOException {
+        store.close();
+    }
+
+    @Test
+    public void pagesSurviveEviction() {
+        // given
+        int[] pages = new int[32];
+        for (int i = 0; i < pages.length; i++) {
+            pages[i] = store.allocatePage();
+            long address = store.pin(pages[i]);
+            store.putInt(address + 4, i);
+            store.unpin(pages[i], true);
+        }
+        // when
+        for (int i = 0; i < pages.length; i++) {
+            long address = store.pin(pages[i]);
+            // then
+            assertThat(store.getInt(address + 4), is(i));
+            store.unpin(pages[i], false);
+        }
+        assertTrue(store.writes() > 0);
+    }
+
+    @Test
+    public void hotPageStaysCached() {
+        // given
+        int hot = store.allocatePage();
+        int[] cold = new int[64];
+        for (int i = 0; i < cold.length; i++) {
+            cold[i] = store.allocatePage();
+        }
+        // when
+        for (int page : cold) {
+            store.pin(hot);
+            store.unpin(hot, false);
+            store.pin(page);
+            store.unpin(page, false);
+        }
+        long misses = store.misses();
+        store.pin(hot);
+        store.unpin(hot, false);
+        // then
+        assertThat(store.misses(), is(misses));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void failWhenAllFramesArePinned() {
+        for (int i = 0; i < 9; i++) {
+            store.pin(store.allocatePage());
+        }
+    }
+
+    @Test
+    public void treeLargerThanPool() {
+        // given
+        PagedBPlusTree tree = new PagedBPlusTree(store, PagedBPlusTree.maxCapacity(256));
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        Random random = new Random(42);
+        // when
+        for (int i = 0; i < 5000; i++) {
+            int key = random.nextInt(1000);
+            if (random.nextInt(3) == 0) {
+                assertThat(tree.delete(key), is(expected.remove(key)));
+            } else {
+                String value = "value " + i;
+                tree.insert(key, value);
+                expected.put(key, value);
+            }
+        }
+        // then
+        for (int key = 0; key < 1000; key++) {
+            assertThat(tree.lookup(key), is(expected.get(key)));
+        }
+        assertTrue(store.misses() > 0);
+    }
+
+}
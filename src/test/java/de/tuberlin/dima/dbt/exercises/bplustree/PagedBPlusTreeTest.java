@@ -0,0 +1,144 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class PagedBPlusTreeTest {
+
+    // fail each test after 1 second
+    @Rule
+    public Timeout globalTimeout = new Timeout(1000);
+
+    private PageStore store = new OffHeapPageStore(256, 4096);
+
+    private PagedBPlusTree tree;
+
+    @After
+    public void closeStore() throws IOException {
+        store.close();
+    }
+
+    @Test
+    public void insertAndLookup() {
+        // given
+        tree = new PagedBPlusTree(store, 4);
+        // when
+        for (int key = 10; key > 0; key--) {
+            tree.insert(key, "v" + key);
+        }
+        tree.insert(5, "five");
+        // then
+        assertThat(tree.lookup(1), is("v1"));
+        assertThat(tree.lookup(5), is("five"));
+        assertThat(tree.lookup(10), is("v10"));
+        assertThat(tree.lookup(11), is(nullValue()));
+    }
+
+    @Test
+    public void deleteAllKeys() {
+        // given
+        tree = new PagedBPlusTree(store, 4);
+        for (int key = 0; key < 100; key++) {
+            tree.insert(key, "v" + key);
+        }
+        // when
+        for (int key = 0; key < 100; key++) {
+            assertThat(tree.delete(key), is("v" + key));
+        }
+        // then
+        assertThat(tree.delete(0), is(nullValue()));
+        for (int key = 0; key < 100; key++) {
+            assertThat(tree.lookup(key), is(nullValue()));
+        }
+    }
+
+    @Test
+    public void insertAndDeleteRandomKeys() {
+        // given
+        tree = new PagedBPlusTree(store, PagedBPlusTree.maxCapacity(256));
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        Random random = new Random(42);
+        // when
+        for (int i = 0; i < 20000; i++) {
+            int key = random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                assertThat(tree.delete(key), is(expected.remove(key)));
+            } else {
+                String value = "value " + i + " " + "x".repeat(random.nextInt(60));
+                tree.insert(key, value);
+                expected.put(key, value);
+            }
+        }
+        // then
+        for (int key = 0; key < 2000; key++) {
+            assertThat(tree.lookup(key), is(expected.get(key)));
+        }
+    }
+
+    @Test
+    public void scanFollowsLeafLinks() {
+        // given
+        tree = new PagedBPlusTree(store, 4);
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 500; i++) {
+            int key = random.nextInt(1000);
+            tree.insert(key, "v" + key);
+            expected.put(key, "v" + key);
+        }
+        for (int key = 0; key < 1000; key += 3) {
+            tree.delete(key);
+            expected.remove(key);
+        }
+        // when
+        TreeMap<Integer, String> scanned = new TreeMap<>();
+        PagedBPlusTree.Cursor cursor = tree.scan(100, 900);
+        int previous = Integer.MIN_VALUE;
+        while (cursor.advance()) {
+            assertThat(cursor.key() > previous, is(true));
+            previous = cursor.key();
+            scanned.put(cursor.key(), cursor.value());
+        }
+        // then
+        assertThat(scanned, is(expected.subMap(100, 900)));
+        assertThat(tree.scan(1000, 2000).advance(), is(false));
+    }
+
+    @Test
+    public void emptyValuePagesAreReused() {
+        // given
+        tree = new PagedBPlusTree(store, 4);
+        long allocated = 0;
+        // when
+        for (int length : new int[] {100, 50, 25, 10, 100}) {
+            for (int key = 0; key < 500; key++) {
+                tree.insert(key, "x".repeat(length));
+            }
+            for (int key = 0; key < 500; key++) {
+                tree.delete(key);
+            }
+            if (allocated == 0) {
+                allocated = ((OffHeapPageStore) store).allocatedBytes();
+            }
+        }
+        // then
+        assertThat(((OffHeapPageStore) store).allocatedBytes(), is(allocated));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectValueLargerThanSlot() {
+        tree = new PagedBPlusTree(store, 4);
+        tree.insert(1, "x".repeat(200));
+    }
+
+}
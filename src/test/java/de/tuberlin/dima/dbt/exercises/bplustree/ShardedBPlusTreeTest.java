@@ -0,0 +1,142 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static de.tuberlin.dima.dbt.exercises.bplustree.BPlusTreeUtilities.*;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class ShardedBPlusTreeTest {
+
+    // fail each test after 10 seconds
+    @Rule
+    public Timeout globalTimeout = new Timeout(10000);
+
+    @Test
+    public void scanAcrossShards() {
+        // given
+        ShardedBPlusTree tree = new ShardedBPlusTree(4, CAPACITY);
+        int[] keys = {Integer.MIN_VALUE, -1 << 30, -1, 0, 1, 1 << 30, Integer.MAX_VALUE};
+        for (int key : keys) {
+            tree.insert(key, "v" + key);
+        }
+        // when
+        List<Map.Entry<Integer, String>> entries = tree.scan(-1 << 30, Integer.MAX_VALUE);
+        String deleted = tree.delete(0);
+        // then
+        assertThat(entries.size(), is(5));
+        for (int i = 0; i < entries.size(); i++) {
+            assertThat(entries.get(i).getKey(), is(keys[i + 1]));
+            assertThat(entries.get(i).getValue(), is("v" + keys[i + 1]));
+        }
+        assertThat(deleted, is("v0"));
+        assertThat(tree.lookup(0), is(nullValue()));
+        assertThat(tree.lookup(Integer.MIN_VALUE), is("v" + Integer.MIN_VALUE));
+        assertThat(tree.size(), is(6L));
+    }
+
+    @Test
+    public void largeShardMovesEntriesToNeighbours() {
+        // given
+        ShardedBPlusTree tree = new ShardedBPlusTree(4, CAPACITY);
+        int count = 20 * ShardedBPlusTree.REBALANCE_INTERVAL;
+        // when
+        for (int key = 0; key < count; key++) {
+            // all keys fall into the third shard at first
+            tree.insert(key, "v" + key);
+        }
+        // then
+        assertTrue(tree.shardSize(1) + tree.shardSize(3) > 0);
+        assertTrue(tree.shardSize(2) < count);
+        assertThat(tree.size(), is((long) count));
+        List<Map.Entry<Integer, String>> entries = tree.scan(0, count);
+        assertThat(entries.size(), is(count));
+        for (int key = 0; key < count; key++) {
+            assertThat(entries.get(key).getKey(), is(key));
+            assertThat(tree.lookup(key), is("v" + key));
+        }
+    }
+
+    @Test
+    public void rebalanceWhileSkewedWritersAndReadersRun() throws Exception {
+        // given
+        ShardedBPlusTree tree = new ShardedBPlusTree(4, CAPACITY);
+        int stableKeys = 1000;
+        for (int i = 1; i <= stableKeys; i++) {
+            // just below the third shard, which the writers overload
+            tree.insert(-i, "s" + i);
+        }
+        int writers = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(2 * writers);
+        List<Future<Map<Integer, String>>> written = new ArrayList<>();
+        List<Future<?>> read = new ArrayList<>();
+        // when
+        for (int w = 0; w < writers; w++) {
+            // half of the writers append, the others insert and delete at
+            // random, each in its own residue class of the third shard
+            int offset = w;
+            written.add(executor.submit(() -> {
+                Map<Integer, String> expected = new HashMap<>();
+                Random random = new Random(offset);
+                for (int i = 0; i < 10000; i++) {
+                    int key = writers * (offset < writers / 2 ? i : random.nextInt(10000)) + offset;
+                    if (offset < writers / 2 || random.nextBoolean()) {
+                        tree.insert(key, "w" + i);
+                        expected.put(key, "w" + i);
+                    } else {
+                        assertThat(tree.delete(key), is(expected.remove(key)));
+                    }
+                }
+                return expected;
+            }));
+        }
+        for (int r = 0; r < writers; r++) {
+            int seed = r;
+            read.add(executor.submit(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < 2000; i++) {
+                    int key = 1 + random.nextInt(stableKeys);
+                    assertThat(tree.lookup(-key), is("s" + key));
+                    if (i % 100 == 0) {
+                        assertThat(tree.scan(-stableKeys, 0).size(), is(stableKeys));
+                    }
+                }
+                return null;
+            }));
+        }
+        // then
+        for (Future<?> future : read) {
+            future.get();
+        }
+        Map<Integer, String> expected = new TreeMap<>();
+        for (int i = 1; i <= stableKeys; i++) {
+            expected.put(-i, "s" + i);
+        }
+        for (Future<Map<Integer, String>> future : written) {
+            expected.putAll(future.get());
+        }
+        assertTrue(tree.shardSize(1) + tree.shardSize(3) > stableKeys);
+        for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+            assertThat(tree.lookup(entry.getKey()), is(entry.getValue()));
+        }
+        assertThat(tree.size(), is((long) expected.size()));
+        assertThat(tree.scan(Integer.MIN_VALUE, Integer.MAX_VALUE),
+                   is(new ArrayList<>(expected.entrySet())));
+        executor.shutdown();
+    }
+
+}